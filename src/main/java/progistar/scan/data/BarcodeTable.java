@@ -3,16 +3,24 @@ package progistar.scan.data;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMTag;
-import htsjdk.samtools.fastq.FastqRecord;
 
 public class BarcodeTable {
 
-	public static Hashtable<String, Boolean> hasBarcode = new Hashtable<String, Boolean>();
+	// barcode ordinals. Null and Others are always 0 and 1 in single cell mode.
+	public static final int NULL_BARCODE_ORDINAL = 0;
+	public static final int OTHER_BARCODE_ORDINAL = 1;
+	// the only ordinal of bulk RNA-seq
+	public static final int DEFAULT_BARCODE_ORDINAL = 0;
+	
+	// barcode id => ordinal
+	public static Hashtable<String, Integer> ordinals = new Hashtable<String, Integer>();
+	// ordinal => barcode id
 	public static ArrayList<String> barcodeIds = new ArrayList<String>();
 	
 	public static void load() {
@@ -28,74 +36,133 @@ public class BarcodeTable {
 			 * Proportion of null and undefined barcodes is small, and they barely give a good information.
 			 * 
 			 */
-			barcodeIds.add(Constants.NULL_BARCODE_ID);
-			barcodeIds.add(Constants.OTHER_BARCODE_ID);
+			addBarcode(Constants.NULL_BARCODE_ID);
+			addBarcode(Constants.OTHER_BARCODE_ID);
 			
 			//BR.readLine(); // skip header
 			while((line = BR.readLine()) != null) {
 				String[] fields = line.split("\t");
-				
-				if(hasBarcode.get(fields[0]) == null) {
-					hasBarcode.put(fields[0], true);
-					barcodeIds.add(fields[0]);
-				}
+				addBarcode(fields[0]);
 			}
 			
 			BR.close();
 			
-			System.out.println("A total of "+hasBarcode.size()+" barcodes were saved.");
+			System.out.println("A total of "+(barcodeIds.size()-2)+" barcodes were saved.");
 		}catch(IOException ioe) {
 			System.out.println("Fail to load white list: "+Parameters.whitelistFile.getName());
 		}
 	}
 	
+	private static void addBarcode (String barcodeId) {
+		if(ordinals.get(barcodeId) == null) {
+			ordinals.put(barcodeId, barcodeIds.size());
+			barcodeIds.add(barcodeId);
+		}
+	}
+	
 	/**
-	 * If Scan.isSingleCellMode is:
-	 *  - turned on => find barcode id and return the id. 
-	 *  - turned off => return default barcode id.
+	 * Number of barcode ordinals. It is 1 (DEFAULT_BARCODE_ID) in bulk RNA-seq.
+	 * 
+	 * @return
+	 */
+	public static int getBarcodeSize () {
+		return Parameters.isSingleCellMode ? barcodeIds.size() : 1;
+	}
+	
+	public static String getBarcodeId (int ordinal) {
+		return Parameters.isSingleCellMode ? barcodeIds.get(ordinal) : Constants.DEFAULT_BARCODE_ID;
+	}
+	
+	/**
+	 * Return the ordinal of a given barcode id, or -1 if it is unknown.
+	 * 
+	 * @param barcodeId
+	 * @return
+	 */
+	public static int getOrdinal (String barcodeId) {
+		if(!Parameters.isSingleCellMode) {
+			return barcodeId.equals(Constants.DEFAULT_BARCODE_ID) ? DEFAULT_BARCODE_ORDINAL : -1;
+		}
+		Integer ordinal = ordinals.get(barcodeId);
+		return ordinal == null ? -1 : ordinal;
+	}
+	
+	/**
+	 * Ordinal version of getBarcodeFromBam.
 	 * 
 	 * @param samRecord
 	 * @return
 	 */
-	public static String getBarcodeFromBam (SAMRecord samRecord) {
-		String barcodeId = Constants.DEFAULT_BARCODE_ID;
-		
-		// single cell mode?
-		if(Parameters.isSingleCellMode) {
-			Object cbTag = samRecord.getAttribute(SAMTag.CB);
-			if(cbTag == null) {
-				barcodeId = Constants.NULL_BARCODE_ID;
-			} else {
-				barcodeId = (String) cbTag;
-				// check whitelist
-				if(BarcodeTable.hasBarcode.get(barcodeId) == null) {
-					barcodeId = Constants.OTHER_BARCODE_ID;
-				}
-			}
- 		}
+	public static int getBarcodeOrdinalFromBam (SAMRecord samRecord) {
+		if(!Parameters.isSingleCellMode) {
+			return DEFAULT_BARCODE_ORDINAL;
+		}
 		
-		return barcodeId;
+		Object cbTag = samRecord.getAttribute(SAMTag.CB);
+		if(cbTag == null) {
+			return NULL_BARCODE_ORDINAL;
+		}
+		// check whitelist
+		Integer ordinal = ordinals.get((String) cbTag);
+		return ordinal == null ? OTHER_BARCODE_ORDINAL : ordinal;
 	}
 	
-	public static String getBarcodeFromFASTQ (FastqRecord fastqRecord) {
-		String barcodeId = Constants.DEFAULT_BARCODE_ID;
+	/**
+	 * Ordinal version of getBarcodeFromFASTQ.
+	 * 
+	 * @param fastqRecord
+	 * @return
+	 */
+	public static int getBarcodeOrdinalFromFASTQ (FastqBatch records, int index) {
+		if(!Parameters.isSingleCellMode) {
+			return DEFAULT_BARCODE_ORDINAL;
+		}
 		
-		// single cell mode?
-		if(Parameters.isSingleCellMode) {
-			String[] splitReadName = fastqRecord.getReadName().split(Parameters.barcodeSeparatorInReadName); 
-			Object cbTag = splitReadName[splitReadName.length-1];
-			if(cbTag == null) {
-				barcodeId = Constants.NULL_BARCODE_ID;
-			} else {
-				barcodeId = (String) cbTag;
-				// check whitelist
-				if(BarcodeTable.hasBarcode.get(barcodeId) == null) {
-					barcodeId = Constants.OTHER_BARCODE_ID;
-				}
+		// the last field of the read name split by the separator.
+		// trailing separators are ignored as String.split removes trailing empty fields.
+		byte[] data = records.data;
+		byte[] separator = Parameters.barcodeSeparatorInReadName.getBytes(StandardCharsets.ISO_8859_1);
+		int nameStart = records.nameStarts[index];
+		int end = nameStart + records.nameLengths[index];
+		while(end - separator.length >= nameStart && isSeparator(data, end - separator.length, separator)) {
+			end -= separator.length;
+		}
+		int start = nameStart;
+		for(int pos=end - separator.length; pos>=nameStart; pos--) {
+			if(isSeparator(data, pos, separator)) {
+				start = pos + separator.length;
+				break;
 			}
- 		}
+		}
 		
-		return barcodeId;
+		// check whitelist
+		Integer ordinal = ordinals.get(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+		return ordinal == null ? OTHER_BARCODE_ORDINAL : ordinal;
+	}
+	
+	private static boolean isSeparator (byte[] data, int pos, byte[] separator) {
+		for(int i=0; i<separator.length; i++) {
+			if(data[pos + i] != separator[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * If Scan.isSingleCellMode is:
+	 *  - turned on => find barcode id and return the id. 
+	 *  - turned off => return default barcode id.
+	 * 
+	 * @param samRecord
+	 * @return
+	 */
+	public static String getBarcodeFromBam (SAMRecord samRecord) {
+		return getBarcodeId(getBarcodeOrdinalFromBam(samRecord));
+	}
+	
+	public static String getBarcodeFromFASTQ (FastqBatch records, int index) {
+		return getBarcodeId(getBarcodeOrdinalFromFASTQ(records, index));
 	}
 	
 }
@@ -22,6 +22,21 @@ public class Constants {
 	public static final String UNION_MAX = "max";
 	public static final String UNION_SUM = "sum";
 	
+	// matching engines (see PeptideMatcher)
+	public static final String ENGINE_CODON = "codon";
+	public static final String ENGINE_FRAME = "frame";
+	public static final String ENGINE_TRIE = "trie";
+	
+	// target mode strategies per chromosome
+	public static final String TARGET_STRATEGY_AUTO = "auto";
+	public static final String TARGET_STRATEGY_QUERY = "query";
+	public static final String TARGET_STRATEGY_SWEEP = "sweep";
+	
+	// library size estimation of target mode (see LibrarySize)
+	public static final String LIB_ESTIMATE_INDEX = "index";
+	public static final String LIB_ESTIMATE_SAMPLE = "sample";
+	public static final String LIB_ESTIMATE_EXACT = "exact";
+	
 	public static final int	TYPE_TARGET_MODE_TASK						= 1;
 	public static final int TYPE_TARGET_MODE_LIBRARY_ESTIMATION_TASK 	= 2;
 	public static final int TYPE_SCAN_MODE_TASK							= 3;
@@ -36,6 +51,11 @@ public class Constants {
 	//
 	public static final int MAPPED_READS		=	1;
 	public static final int UNMAPPED_READS		=	2;
+	// all reads of a BAM/SAM stream in file order (see StreamScanRun)
+	public static final int ALL_READS			=	3;
+	
+	// BAM/SAM file name for stdin
+	public static final String STDIN			=	"-";
 	
 	
 	public static final String NULL				=	".";
@@ -0,0 +1,157 @@
+package progistar.scan.data;
+
+import java.util.Arrays;
+
+/**
+ * Read counts of a location indexed by barcode ordinal (see BarcodeTable). <br>
+ * Most locations are covered by a few barcodes, so counts are kept as a sparse vector
+ * (sorted ordinals and their counts), and it switches to a dense vector
+ * when more than 1/DENSE_FILL_DIVISOR of the barcodes have counts. <br>
+ * With a few barcodes (e.g. bulk RNA-seq), it is dense from the start.
+ *
+ */
+public class CountVector {
+
+	private static final int DENSE_FILL_DIVISOR = 4;
+	private static final int DENSE_MAX_BARCODE_SIZE = 16;
+
+	private boolean isDense;
+	// sparse: sorted ordinals of counts[0, size)
+	private int[] ordinals;
+	// sparse: counts of ordinals, dense: counts by ordinal
+	private long[] counts;
+	private int size = 0;
+
+	public CountVector () {
+		int barcodeSize = BarcodeTable.getBarcodeSize();
+		if(barcodeSize <= DENSE_MAX_BARCODE_SIZE) {
+			this.isDense = true;
+			this.counts = new long[barcodeSize];
+		} else {
+			this.isDense = false;
+			this.ordinals = new int[1];
+			this.counts = new long[1];
+		}
+	}
+
+	public long get (int ordinal) {
+		if(isDense) {
+			return counts[ordinal];
+		}
+		int idx = Arrays.binarySearch(ordinals, 0, size, ordinal);
+		return idx < 0 ? 0 : counts[idx];
+	}
+
+	/**
+	 * Write counts of all ordinals to a given array.
+	 *
+	 * @param dense length of BarcodeTable.getBarcodeSize()
+	 */
+	public void fill (long[] dense) {
+		if(isDense) {
+			System.arraycopy(counts, 0, dense, 0, counts.length);
+		} else {
+			Arrays.fill(dense, 0);
+			for(int i=0; i<size; i++) {
+				dense[ordinals[i]] = counts[i];
+			}
+		}
+	}
+
+	public void add (int ordinal, long count) {
+		if(isDense) {
+			counts[ordinal] += count;
+			return;
+		}
+		int idx = Arrays.binarySearch(ordinals, 0, size, ordinal);
+		if(idx >= 0) {
+			counts[idx] += count;
+		} else {
+			insert(-(idx + 1), ordinal, count);
+		}
+	}
+
+	private void set (int ordinal, long count) {
+		if(isDense) {
+			counts[ordinal] = count;
+			return;
+		}
+		int idx = Arrays.binarySearch(ordinals, 0, size, ordinal);
+		if(idx >= 0) {
+			counts[idx] = count;
+		} else {
+			insert(-(idx + 1), ordinal, count);
+		}
+	}
+
+	private void insert (int idx, int ordinal, long count) {
+		int barcodeSize = BarcodeTable.getBarcodeSize();
+		if((size + 1) * DENSE_FILL_DIVISOR > barcodeSize) {
+			toDense(barcodeSize);
+			counts[ordinal] += count;
+			return;
+		}
+
+		if(size == ordinals.length) {
+			int newSize = Math.min(size * 2, barcodeSize);
+			ordinals = Arrays.copyOf(ordinals, newSize);
+			counts = Arrays.copyOf(counts, newSize);
+		}
+		System.arraycopy(ordinals, idx, ordinals, idx + 1, size - idx);
+		System.arraycopy(counts, idx, counts, idx + 1, size - idx);
+		ordinals[idx] = ordinal;
+		counts[idx] = count;
+		size++;
+	}
+
+	private void toDense (int barcodeSize) {
+		long[] denseCounts = new long[barcodeSize];
+		for(int i=0; i<size; i++) {
+			denseCounts[ordinals[i]] = counts[i];
+		}
+		this.counts = denseCounts;
+		this.ordinals = null;
+		this.size = 0;
+		this.isDense = true;
+	}
+
+	/**
+	 * this[i] += vector[i] for all ordinals.
+	 *
+	 * @param vector
+	 */
+	public void add (CountVector vector) {
+		if(vector.isDense) {
+			for(int ordinal=0; ordinal<vector.counts.length; ordinal++) {
+				if(vector.counts[ordinal] != 0) {
+					add(ordinal, vector.counts[ordinal]);
+				}
+			}
+		} else {
+			for(int i=0; i<vector.size; i++) {
+				add(vector.ordinals[i], vector.counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * this[i] = max(this[i], vector[i]) for all ordinals.
+	 *
+	 * @param vector
+	 */
+	public void max (CountVector vector) {
+		if(vector.isDense) {
+			for(int ordinal=0; ordinal<vector.counts.length; ordinal++) {
+				if(vector.counts[ordinal] > get(ordinal)) {
+					set(ordinal, vector.counts[ordinal]);
+				}
+			}
+		} else {
+			for(int i=0; i<vector.size; i++) {
+				if(vector.counts[i] > get(vector.ordinals[i])) {
+					set(vector.ordinals[i], vector.counts[i]);
+				}
+			}
+		}
+	}
+}
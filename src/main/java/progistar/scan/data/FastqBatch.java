@@ -0,0 +1,130 @@
+package progistar.scan.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import progistar.scan.function.Translator;
+
+/**
+ * FASTQ records parsed in a chunk of bytes (see FastqParser). <br>
+ * A record is kept as offsets of its name, bases and qualities in the chunk,
+ * so Strings are made only when they are needed (e.g. the bases of a match). <br>
+ * Qualities are Phred33 as they are in the file.
+ *
+ */
+public class FastqBatch {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	public byte[] data;
+	// the number of records
+	public int size = 0;
+	public int[] nameStarts = new int[INITIAL_CAPACITY];
+	public int[] nameLengths = new int[INITIAL_CAPACITY];
+	public int[] baseStarts = new int[INITIAL_CAPACITY];
+	// the number of bases (the same as the number of qualities)
+	public int[] baseLengths = new int[INITIAL_CAPACITY];
+	public int[] qualityStarts = new int[INITIAL_CAPACITY];
+
+	public FastqBatch (byte[] data) {
+		this.data = data;
+	}
+
+	public void add (int nameStart, int nameLength, int baseStart, int baseLength, int qualityStart) {
+		if(size == nameStarts.length) {
+			int capacity = size * 2;
+			nameStarts = Arrays.copyOf(nameStarts, capacity);
+			nameLengths = Arrays.copyOf(nameLengths, capacity);
+			baseStarts = Arrays.copyOf(baseStarts, capacity);
+			baseLengths = Arrays.copyOf(baseLengths, capacity);
+			qualityStarts = Arrays.copyOf(qualityStarts, capacity);
+		}
+		nameStarts[size] = nameStart;
+		nameLengths[size] = nameLength;
+		baseStarts[size] = baseStart;
+		baseLengths[size] = baseLength;
+		qualityStarts[size] = qualityStart;
+		size++;
+	}
+
+	/**
+	 * The header line without "@" (same as FastqRecord.getReadName).
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String getReadName (int index) {
+		return new String(data, nameStarts[index], nameLengths[index], StandardCharsets.ISO_8859_1);
+	}
+
+	public String getReadString (int index) {
+		return getReadString(index, 0, baseLengths[index]);
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @param start zero-based (inclusive)
+	 * @param end zero-based (exclusive)
+	 * @return
+	 */
+	public String getReadString (int index, int start, int end) {
+		return new String(data, baseStarts[index] + start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Bases of a record as a CharSequence without copy. <br>
+	 * '-' is the reverse complement (same as Translator.getReverseComplement).
+	 *
+	 * @param index
+	 * @param strand
+	 * @return
+	 */
+	public CharSequence getBases (int index, char strand) {
+		return new BaseView(data, baseStarts[index], baseLengths[index], strand == '-');
+	}
+
+	private static class BaseView implements CharSequence {
+		private byte[] data;
+		private int offset;
+		private int length;
+		private boolean isReverse;
+
+		BaseView (byte[] data, int offset, int length, boolean isReverse) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.isReverse = isReverse;
+		}
+
+		@Override
+		public int length () {
+			return length;
+		}
+
+		@Override
+		public char charAt (int index) {
+			if(isReverse) {
+				return Translator.complement((char) (data[offset + length - 1 - index] & 0xFF));
+			}
+			return (char) (data[offset + index] & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence (int start, int end) {
+			if(isReverse) {
+				return new BaseView(data, offset + length - end, end - start, true);
+			}
+			return new BaseView(data, offset + start, end - start, false);
+		}
+
+		@Override
+		public String toString () {
+			StringBuilder bases = new StringBuilder(length);
+			for(int i=0; i<length; i++) {
+				bases.append(charAt(i));
+			}
+			return bases.toString();
+		}
+	}
+}
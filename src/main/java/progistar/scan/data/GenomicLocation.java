@@ -0,0 +1,173 @@
+package progistar.scan.data;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Genomic location of a matched sequence. <br>
+ * A location consists of a contig and blocks ([starts[i], ends[i]], one-based), and it is immutable. <br>
+ * Contig names are interned to ids, so hashing and equality are integer operations.
+ * The text form (chr:start-end|chr:start-end...) is made only when it is written.
+ *
+ */
+public class GenomicLocation {
+
+	// contig name => contig id
+	private static Hashtable<String, Integer> contigIds = new Hashtable<String, Integer>();
+	private static Vector<String> contigNames = new Vector<String>();
+	// contig id => id of the case-insensitive contig name
+	private static Vector<Integer> foldedContigIds = new Vector<Integer>();
+
+	public static final GenomicLocation UNMAPPED = new GenomicLocation(-1, new int[0], new int[0]);
+
+	public final int contigId;
+	public final int[] starts;
+	public final int[] ends;
+	private final int hash;
+
+	public GenomicLocation (int contigId, int[] starts, int[] ends) {
+		this.contigId = contigId;
+		this.starts = starts;
+		this.ends = ends;
+
+		int hash = contigId;
+		for(int i=0; i<starts.length; i++) {
+			hash = hash * 31 + starts[i];
+			hash = hash * 31 + ends[i];
+		}
+		this.hash = hash;
+	}
+
+	/**
+	 * Return the id of a given contig name. <br>
+	 * A new id is assigned if the name is not seen before.
+	 *
+	 * @param contigName
+	 * @return
+	 */
+	public static int getContigId (String contigName) {
+		Integer contigId = contigIds.get(contigName);
+		if(contigId == null) {
+			contigId = registerContig(contigName);
+		}
+		return contigId;
+	}
+
+	private static synchronized int registerContig (String contigName) {
+		Integer contigId = contigIds.get(contigName);
+		if(contigId != null) {
+			return contigId;
+		}
+
+		contigId = contigNames.size();
+		int foldedContigId = contigId;
+		for(int i=0; i<contigNames.size(); i++) {
+			if(contigNames.get(i).equalsIgnoreCase(contigName)) {
+				foldedContigId = foldedContigIds.get(i);
+				break;
+			}
+		}
+		contigNames.add(contigName);
+		foldedContigIds.add(foldedContigId);
+		contigIds.put(contigName, contigId);
+		return contigId;
+	}
+
+	public static String getContigName (int contigId) {
+		return contigNames.get(contigId);
+	}
+
+	/**
+	 * Parse a text form of location. "." is parsed to UNMAPPED.
+	 *
+	 * @param location chr:start-end|chr:start-end...
+	 * @return
+	 */
+	public static GenomicLocation parse (String location) {
+		if(location.equalsIgnoreCase(Constants.NULL)) {
+			return UNMAPPED;
+		}
+
+		String[] blocks = location.split("\\|");
+		int[] starts = new int[blocks.length];
+		int[] ends = new int[blocks.length];
+		String chr = null;
+		for(int i=0; i<blocks.length; i++) {
+			int colonIdx = blocks[i].lastIndexOf(':');
+			int dashIdx = blocks[i].indexOf('-', colonIdx);
+			chr = blocks[i].substring(0, colonIdx);
+			starts[i] = Integer.parseInt(blocks[i].substring(colonIdx+1, dashIdx));
+			ends[i] = Integer.parseInt(blocks[i].substring(dashIdx+1));
+		}
+
+		return new GenomicLocation(getContigId(chr), starts, ends);
+	}
+
+	public boolean isUnmapped () {
+		return this.contigId == -1;
+	}
+
+	public String getContigName () {
+		return isUnmapped() ? Constants.NULL : getContigName(contigId);
+	}
+
+	public int getStart () {
+		return starts.length == 0 ? -1 : starts[0];
+	}
+
+	public int getEnd () {
+		return ends.length == 0 ? -1 : ends[ends.length-1];
+	}
+
+	/**
+	 * Same as equals except that contig names are compared case-insensitively.
+	 *
+	 * @param location
+	 * @return
+	 */
+	public boolean equalsIgnoreCase (GenomicLocation location) {
+		if(this.contigId != location.contigId) {
+			if(this.isUnmapped() || location.isUnmapped() ||
+				!foldedContigIds.get(this.contigId).equals(foldedContigIds.get(location.contigId))) {
+				return false;
+			}
+		}
+		return Arrays.equals(this.starts, location.starts) && Arrays.equals(this.ends, location.ends);
+	}
+
+	@Override
+	public int hashCode () {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals (Object o) {
+		if(this == o) {
+			return true;
+		}
+		if(!(o instanceof GenomicLocation)) {
+			return false;
+		}
+		GenomicLocation location = (GenomicLocation) o;
+		return this.hash == location.hash && this.contigId == location.contigId &&
+				Arrays.equals(this.starts, location.starts) && Arrays.equals(this.ends, location.ends);
+	}
+
+	@Override
+	public String toString () {
+		if(isUnmapped()) {
+			return Constants.NULL;
+		}
+
+		String chr = getContigName(contigId);
+		StringBuilder location = new StringBuilder();
+		for(int i=0; i<starts.length; i++) {
+			if(i != 0) {
+				location.append("|");
+			}
+			location.append(chr).append(":").append(starts[i]).append("-").append(ends[i]);
+		}
+		return location.toString();
+	}
+}
@@ -42,4 +42,35 @@ public class LibraryTable {
 		
 		return false;
 	}
+	
+	/**
+	 * Add processed reads (indexed by barcode ordinal) to the library sizes.
+	 * 
+	 * @param processedReads
+	 */
+	public static void addProcessedReads (long[] processedReads) {
+		for(int ordinal=0; ordinal<processedReads.length; ordinal++) {
+			if(processedReads[ordinal] == 0) {
+				continue;
+			}
+			String barcode = BarcodeTable.getBarcodeId(ordinal);
+			Double libSize = table.get(barcode);
+			if(libSize == null) {
+				libSize = .0;
+			}
+			libSize += processedReads[ordinal];
+			table.put(barcode, libSize);
+		}
+	}
+	
+	/**
+	 * Library size of a given barcode ordinal. It is 0 if the barcode has no read.
+	 * 
+	 * @param barcodeOrdinal
+	 * @return
+	 */
+	public static double getLibSize (int barcodeOrdinal) {
+		Double libSize = table.get(BarcodeTable.getBarcodeId(barcodeOrdinal));
+		return libSize == null ? 0 : libSize;
+	}
 }
@@ -1,44 +1,151 @@
 package progistar.scan.data;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
 
+/**
+ * Matched locations of the input sequences. <br>
+ * Locations are kept in an open-addressing table keyed by a 64-bit hash of
+ * (sequence id, location, strand, observed and reference nucleotides),
+ * and a hit is verified by comparing the fields. <br>
+ * Entries are stored densely in insertion order, so merge is linear in the size of the merged table. <br>
+ * It is not thread-safe: each task owns its table, and the tables are merged at the end.
+ *
+ */
 public class LocTable {
-	public Hashtable<String, Hashtable<String, LocationInformation>> table = new Hashtable<String, Hashtable<String, LocationInformation>>(); 
 
+	private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+	private static final int EMPTY = -1;
+
+	// slot => entry index
+	private int[] slots = new int[64];
+	private int slotMask = 63;
+
+	// entry index => values
+	private long[] keys = new long[32];
+	private LocationInformation[] infos = new LocationInformation[32];
+	// next entry of the same sequence
+	private int[] nexts = new int[32];
+	private int size = 0;
+
+	// sequence id => the last entry of the sequence
+	private int[] heads = new int[0];
+
+	public LocTable () {
+		Arrays.fill(slots, EMPTY);
+	}
+
+	public int size () {
+		return this.size;
+	}
+
+	/**
+	 * Put a location. If the same location exists, its read counts are added to the existing one.
+	 *
+	 * @param lInfo
+	 * @return true if the location is new
+	 */
 	public boolean putLocation (LocationInformation lInfo) {
-		Hashtable<String, LocationInformation> gTable = table.get(lInfo.inputSequence);
-		if(gTable == null) {
-			gTable = new Hashtable<String, LocationInformation>();
-			table.put(lInfo.inputSequence, gTable);
-		}
-		
-		LocationInformation slInfo = gTable.get(lInfo.getKey());
-		if(slInfo == null) {
-			gTable.put(lInfo.getKey(), lInfo);
-			return true;
-		} else {
-			lInfo.readCounts.forEach((barcodeId, value)->{
-				Long val = slInfo.readCounts.get(barcodeId);
-				if(val == null) {
-					val = 0L;
-				}
-				slInfo.readCounts.put(barcodeId, (value + val));
-			});
-		}
-		
-		return false;
-	}
-	
+		if(lInfo.sequenceId == -1) {
+			lInfo.sequenceId = SequenceTable.getId(lInfo.inputSequence);
+		}
+		return putLocation(lInfo, getKey(lInfo));
+	}
+
+	private boolean putLocation (LocationInformation lInfo, long key) {
+		int slot = (int) key & slotMask;
+		while(slots[slot] != EMPTY) {
+			int entryIdx = slots[slot];
+			if(keys[entryIdx] == key && isSame(infos[entryIdx], lInfo)) {
+				infos[entryIdx].readCounts.add(lInfo.readCounts);
+				return false;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+
+		ensureCapacity();
+		int entryIdx = size++;
+		keys[entryIdx] = key;
+		infos[entryIdx] = lInfo;
+		nexts[entryIdx] = heads[lInfo.sequenceId];
+		heads[lInfo.sequenceId] = entryIdx;
+		slots[slot] = entryIdx;
+
+		if(size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * Add all locations of a given table. <br>
+	 * Keys are not recomputed, so it takes linear time in the size of the given table.
+	 *
+	 * @param locTable
+	 */
+	public void merge (LocTable locTable) {
+		for(int i=0; i<locTable.size; i++) {
+			putLocation(locTable.infos[i], locTable.keys[i]);
+		}
+	}
+
 	public ArrayList<LocationInformation> getLocations (String inputSequence) {
 		ArrayList<LocationInformation> locations = new ArrayList<LocationInformation>();
-		Hashtable<String, LocationInformation> gTable = table.get(inputSequence);
-		if(gTable != null) {
-			gTable.forEach((key, info)->{
-				locations.add(info);
-			});
+		int sequenceId = SequenceTable.getId(inputSequence);
+		if(sequenceId == -1 || sequenceId >= heads.length) {
+			return locations;
+		}
+
+		for(int entryIdx = heads[sequenceId]; entryIdx != EMPTY; entryIdx = nexts[entryIdx]) {
+			locations.add(infos[entryIdx]);
 		}
-		
 		return locations;
 	}
+
+	private static long getKey (LocationInformation lInfo) {
+		long key = lInfo.sequenceId;
+		key = key * HASH_MULTIPLIER + lInfo.location.hashCode();
+		key = key * HASH_MULTIPLIER + lInfo.strand;
+		key = key * HASH_MULTIPLIER + lInfo.obsNucleotide.hashCode();
+		key = key * HASH_MULTIPLIER + lInfo.refNucleotide.hashCode();
+
+		// 64-bit finalizer of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static boolean isSame (LocationInformation lInfo, LocationInformation lInfo_) {
+		return lInfo.sequenceId == lInfo_.sequenceId && lInfo.equals(lInfo_);
+	}
+
+	private void ensureCapacity () {
+		if(size == keys.length) {
+			int newSize = size * 2;
+			keys = Arrays.copyOf(keys, newSize);
+			infos = Arrays.copyOf(infos, newSize);
+			nexts = Arrays.copyOf(nexts, newSize);
+		}
+		if(heads.length < SequenceTable.size()) {
+			int oldSize = heads.length;
+			heads = Arrays.copyOf(heads, SequenceTable.size());
+			Arrays.fill(heads, oldSize, heads.length, EMPTY);
+		}
+	}
+
+	private void rehash (int slotSize) {
+		slots = new int[slotSize];
+		slotMask = slotSize - 1;
+		Arrays.fill(slots, EMPTY);
+		for(int entryIdx=0; entryIdx<size; entryIdx++) {
+			int slot = (int) keys[entryIdx] & slotMask;
+			while(slots[slot] != EMPTY) {
+				slot = (slot + 1) & slotMask;
+			}
+			slots[slot] = entryIdx;
+		}
+	}
 }
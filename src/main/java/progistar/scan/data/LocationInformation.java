@@ -1,61 +1,74 @@
 package progistar.scan.data;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.ahocorasick.trie.Emit;
 
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMTag;
-import htsjdk.samtools.fastq.FastqRecord;
 import progistar.scan.function.PhredQualityCheck;
+import progistar.scan.function.ReadQuality;
 import progistar.scan.function.Translator;
 import progistar.scan.function.Utils;
 
 public class LocationInformation {
-	public static final Pattern EACH_CIGAR_REGEX = Pattern.compile("([0-9]+)([MINDSHPX=])");
-	public static final Pattern EACH_MD_REGEX = Pattern.compile("(([0-9]+)|([A-Z]+|\\^[A-Z]+))");
 	
 	public String inputSequence;
+	// see SequenceTable
+	public int sequenceId = -1;
 	
-	public String location;
+	public GenomicLocation location;
 	public String mutation;
 	public String obsNucleotide;
 	public String refNucleotide;
 	public String obsPeptide;
 	public String refPeptide;
-	public Hashtable<String, Long> readCounts = new Hashtable<String, Long>();
+	public CountVector readCounts = new CountVector();
 	public char strand;
 	
-	public String getKey () {
-		return location+"\t"+strand+"\t"+obsNucleotide+"\t"+refNucleotide;
+	/**
+	 * Two locations are the same if they have the same location, strand, observed and reference nucleotides. <br>
+	 * Read counts are not considered.
+	 * 
+	 */
+	@Override
+	public int hashCode () {
+		int hash = location.hashCode();
+		hash = hash * 31 + strand;
+		hash = hash * 31 + obsNucleotide.hashCode();
+		hash = hash * 31 + refNucleotide.hashCode();
+		return hash;
+	}
+	
+	@Override
+	public boolean equals (Object o) {
+		if(this == o) {
+			return true;
+		}
+		if(!(o instanceof LocationInformation)) {
+			return false;
+		}
+		LocationInformation lInfo = (LocationInformation) o;
+		return this.strand == lInfo.strand && this.location.equals(lInfo.location) &&
+				this.obsNucleotide.equals(lInfo.obsNucleotide) && this.refNucleotide.equals(lInfo.refNucleotide);
 	}
 	
 	public String getRes () {
 		if(Parameters.isSingleCellMode) {
 			StringBuilder str = new StringBuilder(location+"\t"+mutation+"\t"+strand+"\t"+obsPeptide+"\t"+obsNucleotide+"\t"+refNucleotide);
 			// write raw read counts
-			for(String barcodeId : BarcodeTable.barcodeIds) {
-				Long read = readCounts.get(barcodeId);
-				if(read == null) {
-					read = 0L;
-				}
-				str.append("\t").append(read);
+			long[] reads = new long[BarcodeTable.getBarcodeSize()];
+			readCounts.fill(reads);
+			for(int ordinal=0; ordinal<reads.length; ordinal++) {
+				str.append("\t").append(reads[ordinal]);
 			}
 			// write RPHTs
-			for(String barcodeId : BarcodeTable.barcodeIds) {
-				Long read = readCounts.get(barcodeId);
-				if(read == null) {
-					read = 0L;
-				}
-				str.append("\t").append(Utils.getRPHT(read, barcodeId));
+			for(int ordinal=0; ordinal<reads.length; ordinal++) {
+				str.append("\t").append(Utils.getRPHT(reads[ordinal], ordinal));
 			}
 			return str.toString();
 		} else {
-			Long read = readCounts.get(Constants.DEFAULT_BARCODE_ID);
-			return location+"\t"+mutation+"\t"+strand+"\t"+obsPeptide+"\t"+obsNucleotide+"\t"+refNucleotide+"\t"+read+"\t"+Utils.getRPHM((double)read, Constants.DEFAULT_BARCODE_ID);
+			long read = readCounts.get(BarcodeTable.DEFAULT_BARCODE_ORDINAL);
+			return location+"\t"+mutation+"\t"+strand+"\t"+obsPeptide+"\t"+obsNucleotide+"\t"+refNucleotide+"\t"+read+"\t"+Utils.getRPHM(read, BarcodeTable.DEFAULT_BARCODE_ORDINAL);
 		}
 	}
 	
@@ -64,33 +77,29 @@ public class LocationInformation {
 		assert this.obsNucleotide != null;
 		
 		if(strand == '+') {
-			this.obsPeptide = Translator.translation(this.obsNucleotide, 0);
+			this.obsPeptide = Translator.translation(this.obsNucleotide, false);
 		} else if(strand == '-') {
-			this.obsPeptide = Translator.translation(Translator.getReverseComplement(this.obsNucleotide), 0);
+			this.obsPeptide = Translator.translation(this.obsNucleotide, true);
 		}
 		// if a strand is not defined, it should save forward strand nucleotide
 		else if(strand == Constants.NULL.charAt(0)) {
-			this.obsPeptide = Translator.translation(this.obsNucleotide, 0);
+			this.obsPeptide = Translator.translation(this.obsNucleotide, false);
 		}
 	}
 	
 	public void calMutation () {
-		String[] locations = location.split("\\|");
 		int mPos =0;
 		ArrayList<Mutation> mutations = new ArrayList<Mutation>();
-		for(int i=0; i<locations.length; i++) {
-			String location = locations[i];
-			
+		String chr = location.getContigName();
+		for(int i=0; i<location.starts.length; i++) {
 			
 			try {
 				// unmapped location
-				if(location.equalsIgnoreCase(Constants.NULL)) {
+				if(location.isUnmapped()) {
 					this.mutation = Constants.NULL;
 				} else {
-					String chr = location.split("\\:")[0];
-					String[] fields = location.split("\\:")[1].split("\\-");
-					int start = Integer.parseInt(fields[0]);
-					int end = Integer.parseInt(fields[1]);
+					int start = location.starts[i];
+					int end = location.ends[i];
 					
 					for(int j=start; j<=end; j++) {
 						// mutation
@@ -171,31 +180,38 @@ public class LocationInformation {
 	 * If the sequence contains low quality position-specific Phred score, than it return null.
 	 * 
 	 * @param samRecord
+	 * @param barcodeOrdinal barcode ordinal of the samRecord
 	 * @param emit
 	 * @param frame
+	 * @param strand
+	 * @param quality quality context of the samRecord
+	 * @param alignment alignment context of the samRecord
 	 * @return
 	 */
-	public static LocationInformation getMatchedLocation (SAMRecord samRecord, Emit emit, int frame, char strand) {
-		boolean isMD = true;
-		Object mdTag = samRecord.getAttribute(SAMTag.MD);
-		String barcodeId = BarcodeTable.getBarcodeFromBam(samRecord);
-		
-		if(mdTag == null) {
-			isMD = false;
-		}
-		
+	public static LocationInformation getMatchedLocation (SAMRecord samRecord, int barcodeOrdinal, Emit emit, int frame, char strand, ReadQuality quality, ReadAlignment alignment) {
+		return getMatchedLocation(samRecord, barcodeOrdinal, emit.getStart(), emit.getEnd(), frame, strand, quality, alignment);
+	}
+	
+	/**
+	 * Same as getMatchedLocation with an Emit, for matches reported by a PeptideMatcher (see MatchBuffer).
+	 * 
+	 * @param samRecord
+	 * @param barcodeOrdinal
+	 * @param start zero-based start of the match (inclusive)
+	 * @param end zero-based end of the match (inclusive, as Emit)
+	 * @param frame
+	 * @param strand
+	 * @param quality
+	 * @param alignment
+	 * @return
+	 */
+	public static LocationInformation getMatchedLocation (SAMRecord samRecord, int barcodeOrdinal, int start, int end, int frame, char strand, ReadQuality quality, ReadAlignment alignment) {
 		LocationInformation lInfo = new LocationInformation();
 		lInfo.strand = strand;
-		lInfo.readCounts.put(barcodeId, 1L);
-		
-		String nucleotide = samRecord.getReadString();
-		String reference = getRefSequence(samRecord);
+		lInfo.readCounts.add(barcodeOrdinal, 1);
 		
-		StringBuilder obsSequenceGivenRegion = new StringBuilder();
-		StringBuilder refSequenceGivenRegion = new StringBuilder();
-		
-		int startPos = emit.getStart();
-		int endPos = emit.getEnd()+1;
+		int startPos = start;
+		int endPos = end+1;
 		
 		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
 			startPos = (startPos) * 3 + frame;
@@ -203,7 +219,7 @@ public class LocationInformation {
 		}
 		
 		if(strand == '-') {
-			int len = nucleotide.length();
+			int len = samRecord.getReadLength();
 			int tmp = len - startPos;
 			startPos = len - endPos;
 			endPos = tmp;
@@ -212,141 +228,51 @@ public class LocationInformation {
 		// [startPos, endPos) zero-based
 		
 		// check quality
-		boolean isPass = PhredQualityCheck.isPass(samRecord, startPos, endPos);
+		boolean isPass = PhredQualityCheck.isPass(samRecord, quality, startPos, endPos);
 		if(!isPass) {
 			return null;
 		}
 		
-		String cigarStr = samRecord.getCigarString();
-		// unmapped reads
-		if(cigarStr.equalsIgnoreCase("*")) {
-			// 
-			lInfo.location = Constants.NULL;
-			lInfo.strand = Constants.NULL.charAt(0);
-			lInfo.obsNucleotide = nucleotide.substring(startPos, endPos);
-			lInfo.refNucleotide = reference.substring(startPos, endPos);
-			
-			if(strand == '-') {
-				lInfo.obsNucleotide = Translator.getReverseComplement(lInfo.obsNucleotide);
-				lInfo.refNucleotide = Translator.getReverseComplement(lInfo.refNucleotide);
-			}
-			
-			return lInfo;
+		// cigar and MD are decoded once per read
+		if(!alignment.isLoaded()) {
+			alignment.load(samRecord);
 		}
+		alignment.project(startPos, endPos, lInfo);
 		
-		String chr = samRecord.getReferenceName();
-		
-		
-		Matcher matcher = EACH_CIGAR_REGEX.matcher(cigarStr);
-		ArrayList<Integer> startLocations = new ArrayList<Integer>();
-		ArrayList<Integer> endLocations = new ArrayList<Integer>();
-		int baseStartPos = samRecord.getUnclippedStart(); // one-based
-		
-		int startGenomicPosition = -1;
-		int endGenomicPosition = -1;
-		
-		int seqPos = -1;
-		int refPos = -1;
-		int gPos = baseStartPos - 1;
-		
-		while (matcher.find()) {
-			int markerSize = Integer.parseInt(matcher.group(1));
-			char operation = matcher.group(2).charAt(0);
-			
-			if(operation == 'N') {
-				if(startGenomicPosition != -1 && endGenomicPosition != -1) {
-					startLocations.add(startGenomicPosition);
-					endLocations.add(endGenomicPosition);
-				}
-				
-				startGenomicPosition = -1;
-				endGenomicPosition = -1;
-				gPos += markerSize;
-			} else if(operation == 'M' || operation == 'D' || operation == 'S' || operation == 'I') {
-				for(int i=0; i<markerSize; i++) {
-					if(operation == 'D') {
-						// do not consume sequence position
-						if(isMD) {
-							refPos++;
-						}
-						gPos++;
-					} else if (operation == 'I') {
-						seqPos ++;
-						refPos ++;
-					} else {
-						gPos++;
-						seqPos ++;
-						refPos ++;
-					}
-					
-					try {
-						if(seqPos >= startPos && seqPos < endPos) {
-							if(startGenomicPosition == -1 && operation != 'I') {
-								startGenomicPosition = gPos;
-							}
-							endGenomicPosition = gPos;
-							
-							if(operation == 'D' ) {
-								obsSequenceGivenRegion.append(".");
-								if(isMD) {
-									refSequenceGivenRegion.append(reference.charAt(refPos));
-								} else {
-									refSequenceGivenRegion.append(".");
-								}
-							} else if (operation == 'I') {
-								obsSequenceGivenRegion.append(nucleotide.charAt(seqPos));
-								refSequenceGivenRegion.append(reference.charAt(refPos));
-							} else {
-								obsSequenceGivenRegion.append(nucleotide.charAt(seqPos));
-								refSequenceGivenRegion.append(reference.charAt(refPos));
-							}
-						}
-					}catch(Exception e) {
-						e.printStackTrace();
-						System.out.println(emit.getKeyword());
-						System.out.println(samRecord.getSAMString());
-						
-						System.exit(-1);
-					}
-					
-				}
-			} else {
-				System.out.println(operation);
-			}
-	    }
-		
-		if(startGenomicPosition != -1 && endGenomicPosition != -1) {
-			startLocations.add(startGenomicPosition);
-			endLocations.add(endGenomicPosition);
-		}
-		
-		StringBuilder locations = new StringBuilder();
-		for(int i=0; i<startLocations.size(); i++) {
-			int start = startLocations.get(i);
-			int end = endLocations.get(i);
-			if(locations.length() != 0) {
-				locations.append("|");
-			}
-			locations.append(chr+":"+start+"-"+end);
+		// unmapped reads
+		if(lInfo.location.isUnmapped() && strand == '-') {
+			lInfo.obsNucleotide = Translator.getReverseComplement(lInfo.obsNucleotide);
+			lInfo.refNucleotide = Translator.getReverseComplement(lInfo.refNucleotide);
 		}
 		
-		lInfo.location = locations.toString();
-		lInfo.obsNucleotide = obsSequenceGivenRegion.toString();
-		lInfo.refNucleotide = refSequenceGivenRegion.toString();
 		return lInfo;
 	}
 	
-	public static LocationInformation getMatchedLocation (FastqRecord fastqRecord, Emit emit, int frame, char strand) {
-		String barcodeId = BarcodeTable.getBarcodeFromFASTQ(fastqRecord);
-		
+	public static LocationInformation getMatchedLocation (FastqBatch records, int index, int barcodeOrdinal, Emit emit, int frame, char strand, ReadQuality quality) {
+		return getMatchedLocation(records, index, barcodeOrdinal, emit.getStart(), emit.getEnd(), frame, strand, quality);
+	}
+	
+	/**
+	 * Same as getMatchedLocation with an Emit, for matches reported by a PeptideMatcher (see MatchBuffer).
+	 * 
+	 * @param records
+	 * @param index
+	 * @param barcodeOrdinal
+	 * @param start zero-based start of the match (inclusive)
+	 * @param end zero-based end of the match (inclusive, as Emit)
+	 * @param frame
+	 * @param strand
+	 * @param quality
+	 * @return
+	 */
+	public static LocationInformation getMatchedLocation (FastqBatch records, int index, int barcodeOrdinal, int start, int end, int frame, char strand, ReadQuality quality) {
 		LocationInformation lInfo = new LocationInformation();
 		lInfo.strand = strand;
-		lInfo.readCounts.put(barcodeId, 1L);
+		lInfo.readCounts.add(barcodeOrdinal, 1);
 		
-		String nucleotide = fastqRecord.getReadString();
 		
-		int startPos = emit.getStart();
-		int endPos = emit.getEnd()+1;
+		int startPos = start;
+		int endPos = end+1;
 		
 		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
 			startPos = (startPos) * 3 + frame;
@@ -354,7 +280,7 @@ public class LocationInformation {
 		}
 		
 		if(strand == '-') {
-			int len = nucleotide.length();
+			int len = records.baseLengths[index];
 			int tmp = len - startPos;
 			startPos = len - endPos;
 			endPos = tmp;
@@ -363,15 +289,16 @@ public class LocationInformation {
 		// [startPos, endPos) zero-based
 		
 		// check quality
-		boolean isPass = PhredQualityCheck.isPass(fastqRecord, startPos, endPos);
+		boolean isPass = PhredQualityCheck.isPass(records, index, quality, startPos, endPos);
 		if(!isPass) {
 			return null;
 		}
 		
 		// 
-		lInfo.location = Constants.NULL;
+		lInfo.location = GenomicLocation.UNMAPPED;
 		lInfo.strand = Constants.NULL.charAt(0);
-		lInfo.obsNucleotide = nucleotide.substring(startPos, endPos);
+		// a String is made only for the match
+		lInfo.obsNucleotide = records.getReadString(index, startPos, endPos);
 		lInfo.refNucleotide = Constants.NULL;
 		
 		if(strand == '-') {
@@ -383,85 +310,5 @@ public class LocationInformation {
 
 	}
 
-	private static String getRefSequence (SAMRecord samRecord) {
-		StringBuilder refSequence = new StringBuilder();
-		String obsSequence = samRecord.getReadString();
-		refSequence.append(obsSequence);
-		Object mdTag = samRecord.getAttribute(SAMTag.MD);
-		
-		if(mdTag == null) {
-			return refSequence.toString();
-		}
-		
-		// find softclip
-		Matcher matcher = EACH_CIGAR_REGEX.matcher(samRecord.getCigarString());
-		int pos = -1;
-		while (matcher.find()) {
-			int markerSize = Integer.parseInt(matcher.group(1));
-			char operation = matcher.group(2).charAt(0);
-			
-			if(operation == 'S') {
-				for(int i=0; i<markerSize; i++) {
-					pos++;
-					refSequence.setCharAt(pos, '*');
-				}
-			} else if(operation == 'I') {
-				for(int i=0; i<markerSize; i++) {
-					pos++;
-					refSequence.setCharAt(pos, '.');
-				}
-			} else if(operation == 'M') {
-				pos += markerSize;
-			}
-		}
-
-		// MD parsing
-		Matcher mdMatcher = EACH_MD_REGEX.matcher((String) mdTag);
-		pos = 0;
-		while(mdMatcher.find()) {
-			String md = mdMatcher.group();
-			char sign = md.charAt(0);
-			
-			// match size
-			if(Character.isDigit(sign)) {
-				pos += Integer.parseInt(md);
-			} 
-			// nt change
-			else if(Character.isAlphabetic(sign)) {
-				for(int i=0; i<md.length(); i++) {
-					pos++;
-					
-					int mPos = 0;
-					for(int j=0; j<refSequence.length(); j++) {
-						if(refSequence.charAt(j) != '*' && refSequence.charAt(j) != '.') {
-							mPos++;
-							
-							if(mPos == pos) {
-								refSequence.setCharAt(j, Character.toLowerCase(md.charAt(i)));
-							}
-						}
-					}
-				}
-			} 
-			// deletion sequence
-			else if(sign == '^') {
-				int mPos = 0;
-				for(int j=0; j<refSequence.length(); j++) {
-					if(refSequence.charAt(j) != '*' && refSequence.charAt(j) != '.') {
-						mPos++;
-						
-						if(mPos == pos) {
-							refSequence.insert(j+1, md.substring(1).toLowerCase());
-							break;
-						}
-					}
-				}
-			}
-		}
-		
-		
-		return refSequence.toString();
-	}
-	
 
 }
@@ -29,12 +29,22 @@ public class Parameters {
 	public static String count	=	Constants.COUNT_PRIMARY;
 	public static String union	=	Constants.UNION_SUM;
 	public static String strandedness = Constants.AUTO_STRANDED;
+	public static String engine = Constants.ENGINE_CODON;
+	public static String targetStrategy = Constants.TARGET_STRATEGY_AUTO;
+	// single-cell mode always uses the exact estimation
+	public static String libEstimate = Constants.LIB_ESTIMATE_SAMPLE;
+	// k of amino acid k-mer prefilter (0: disable)
+	public static int prefilterK = 4;
 	
 	public static boolean isILEqual = false;
 	public static boolean isSingleCellMode = false;
+	// count a read pair once if both mates match the same sequence (paired-end FASTQ)
+	public static boolean isFragmentCount = false;
 	public static boolean verbose = false;
 	public static boolean stretch = false;
 	public static int threadNum = 4;
+	// threads inflating BGZF blocks for the tasks (0: each task inflates its own blocks)
+	public static int inflateThreadNum = 0;
 	public static int chunkSize = 100;
 	
 	
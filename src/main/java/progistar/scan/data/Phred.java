@@ -42,4 +42,24 @@ public class Phred {
 	public static double getProbOfAtLeastOneError (String phredStr) {
 		return 1 - getProbOfAllCorrected(phredStr);
 	}
+	
+	/**
+	 * 
+	 * @param phred raw base quality (not Phred33)
+	 * @return
+	 */
+	public static double getCorrectPhred (int phred) {
+		return CORRECT_PHRED_TABLE[phred];
+	}
+	
+	/**
+	 * A probability of at least one error is less than a given threshold
+	 * if and only if the sum of correct phreds is less than the returned cutoff.
+	 * 
+	 * @param errorThreshold
+	 * @return
+	 */
+	public static double getCorrectPhredCutoff (double errorThreshold) {
+		return convertToPhred(1 - errorThreshold);
+	}
 }
@@ -0,0 +1,320 @@
+package progistar.scan.data;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+
+/**
+ * Alignment of a read projected on the genome. <br>
+ * Cigar and MD tag are decoded once per read into columns, and each column is a base of the alignment
+ * (soft-clip, match, insertion or deletion). <br>
+ * A matched region [start, end) of the read is a contiguous range of the columns,
+ * so its location and nucleotides are slices of the arrays. <br>
+ * It is reused for all matches (frames and strands) of the same read.
+ *
+ */
+public class ReadAlignment {
+
+	private static final byte OP_MATCH = 0;
+	private static final byte OP_INSERTION = 1;
+	private static final byte OP_DELETION = 2;
+
+	private boolean isLoaded = false;
+	private boolean isUnmapped = false;
+	private int contigId;
+	private int readLength = 0;
+	private int columnSize = 0;
+
+	// column => values
+	private byte[] operations = new byte[256];
+	private int[] genomicPositions = new int[256];
+	private int[] blockIndices = new int[256];
+	private char[] obsBases = new char[256];
+	private char[] refBases = new char[256];
+
+	// read offset => the first column of the offset
+	private int[] firstColumns = new int[256];
+
+	// decoded MD tag
+	private char[] mismatchBases = new char[256];
+	private char[] deletionBases = new char[256];
+
+	/**
+	 * Use it when a new read is processed.
+	 *
+	 */
+	public void clear () {
+		this.isLoaded = false;
+	}
+
+	public boolean isLoaded () {
+		return this.isLoaded;
+	}
+
+	public void load (SAMRecord samRecord) {
+		byte[] bases = samRecord.getReadBases();
+		this.readLength = bases.length;
+		this.columnSize = 0;
+		this.isUnmapped = samRecord.getCigarLength() == 0;
+		this.contigId = isUnmapped ? -1 : GenomicLocation.getContigId(samRecord.getReferenceName());
+		this.isLoaded = true;
+
+		if(firstColumns.length <= readLength) {
+			firstColumns = new int[readLength * 2];
+		}
+
+		// unmapped reads: there is no reference.
+		if(isUnmapped) {
+			ensureCapacity(readLength);
+			for(int i=0; i<readLength; i++) {
+				obsBases[i] = (char) bases[i];
+				refBases[i] = (char) bases[i];
+				firstColumns[i] = i;
+			}
+			columnSize = readLength;
+			firstColumns[readLength] = readLength;
+			return;
+		}
+
+		Object mdTag = samRecord.getAttribute(SAMTag.MD);
+		boolean isMD = mdTag != null;
+		int alignedSize = 0;
+		int deletionSize = 0;
+		int clippedSize = 0;
+		int columnNum = 0;
+		boolean isLeading = true;
+		for(CigarElement element : samRecord.getCigar().getCigarElements()) {
+			CigarOperator operator = element.getOperator();
+			if(operator.isAlignment()) {
+				alignedSize += element.getLength();
+			}
+			if(operator == CigarOperator.D) {
+				deletionSize += element.getLength();
+			}
+			if(operator == CigarOperator.S && isLeading) {
+				clippedSize += element.getLength();
+			}
+			if(operator != CigarOperator.S && operator != CigarOperator.H) {
+				isLeading = false;
+			}
+			if(operator.consumesReadBases() || operator == CigarOperator.D) {
+				columnNum += element.getLength();
+			}
+		}
+		ensureCapacity(columnNum);
+
+		if(isMD) {
+			decodeMD((String) mdTag, alignedSize, deletionSize);
+		}
+
+		// [start, end] one-based
+		int gPos = samRecord.getAlignmentStart() - clippedSize - 1;
+		int seqPos = -1;
+		int alignedPos = 0;
+		int deletionPos = 0;
+		int blockIdx = 0;
+		for(CigarElement element : samRecord.getCigar().getCigarElements()) {
+			CigarOperator operator = element.getOperator();
+			int markerSize = element.getLength();
+
+			if(operator == CigarOperator.N) {
+				blockIdx++;
+				gPos += markerSize;
+				continue;
+			}
+
+			for(int i=0; i<markerSize; i++) {
+				char obs = 0;
+				char ref = 0;
+				byte op = OP_MATCH;
+				if(operator.isAlignment()) {
+					gPos++;
+					seqPos++;
+					obs = (char) bases[seqPos];
+					ref = obs;
+					if(isMD && mismatchBases[alignedPos] != 0) {
+						ref = mismatchBases[alignedPos];
+					}
+					alignedPos++;
+				} else if(operator == CigarOperator.S) {
+					gPos++;
+					seqPos++;
+					obs = (char) bases[seqPos];
+					ref = isMD ? '*' : obs;
+				} else if(operator == CigarOperator.I) {
+					seqPos++;
+					obs = (char) bases[seqPos];
+					ref = isMD ? '.' : obs;
+					op = OP_INSERTION;
+				} else if(operator == CigarOperator.D) {
+					gPos++;
+					obs = '.';
+					ref = '.';
+					if(isMD && deletionPos < deletionSize) {
+						ref = deletionBases[deletionPos++];
+					}
+					op = OP_DELETION;
+				} else {
+					// hard-clip and padding do not have any base.
+					break;
+				}
+
+				if(op != OP_DELETION) {
+					firstColumns[seqPos] = columnSize;
+				}
+				operations[columnSize] = op;
+				genomicPositions[columnSize] = gPos;
+				blockIndices[columnSize] = blockIdx;
+				obsBases[columnSize] = obs;
+				refBases[columnSize] = ref;
+				columnSize++;
+			}
+		}
+
+		// a read offset which is not covered by the cigar
+		for(int i=seqPos+1; i<=readLength; i++) {
+			firstColumns[i] = columnSize;
+		}
+	}
+
+	/**
+	 * Decode MD tag. <br>
+	 * mismatchBases[i] is a reference base of i-th aligned base (0 if it is matched),
+	 * and deletionBases are the deleted reference bases in order. <br>
+	 * Reference bases are written in lower case.
+	 *
+	 * @param md
+	 * @param alignedSize
+	 * @param deletionSize
+	 */
+	private void decodeMD (String md, int alignedSize, int deletionSize) {
+		if(mismatchBases.length < alignedSize) {
+			mismatchBases = new char[alignedSize * 2];
+		}
+		if(deletionBases.length < deletionSize) {
+			deletionBases = new char[deletionSize * 2];
+		}
+		Arrays.fill(mismatchBases, 0, alignedSize, (char) 0);
+
+		int alignedPos = 0;
+		int deletionPos = 0;
+		int length = md.length();
+		for(int i=0; i<length; i++) {
+			char sign = md.charAt(i);
+			// match size
+			if(Character.isDigit(sign)) {
+				int size = 0;
+				while(i < length && Character.isDigit(md.charAt(i))) {
+					size = size * 10 + (md.charAt(i) - '0');
+					i++;
+				}
+				i--;
+				alignedPos += size;
+			}
+			// deletion sequence
+			else if(sign == '^') {
+				while(i+1 < length && Character.isLetter(md.charAt(i+1))) {
+					i++;
+					if(deletionPos < deletionSize) {
+						deletionBases[deletionPos++] = Character.toLowerCase(md.charAt(i));
+					}
+				}
+			}
+			// nt change
+			else if(Character.isLetter(sign)) {
+				if(alignedPos < alignedSize) {
+					mismatchBases[alignedPos] = Character.toLowerCase(sign);
+				}
+				alignedPos++;
+			}
+		}
+	}
+
+	private void ensureCapacity (int size) {
+		if(operations.length < size) {
+			int newSize = size * 2;
+			operations = new byte[newSize];
+			genomicPositions = new int[newSize];
+			blockIndices = new int[newSize];
+			obsBases = new char[newSize];
+			refBases = new char[newSize];
+		}
+	}
+
+	/**
+	 * Write location, observed and reference nucleotides of [start, end) of the read. <br>
+	 * A deletion right after the region is included in the region.
+	 *
+	 * @param start zero-based read offset (inclusive)
+	 * @param end zero-based read offset (exclusive)
+	 * @param lInfo
+	 */
+	public void project (int start, int end, LocationInformation lInfo) {
+		int startColumn = firstColumns[start];
+		int endColumn = firstColumns[end];
+
+		lInfo.obsNucleotide = new String(obsBases, startColumn, endColumn - startColumn);
+		lInfo.refNucleotide = new String(refBases, startColumn, endColumn - startColumn);
+
+		if(isUnmapped) {
+			lInfo.location = GenomicLocation.UNMAPPED;
+			lInfo.strand = Constants.NULL.charAt(0);
+			return;
+		}
+
+		// count blocks
+		int blockSize = 0;
+		int startGenomicPosition = -1;
+		int blockIdx = startColumn < endColumn ? blockIndices[startColumn] : 0;
+		for(int column=startColumn; column<endColumn; column++) {
+			// intron
+			if(blockIndices[column] != blockIdx) {
+				if(startGenomicPosition != -1) {
+					blockSize++;
+				}
+				startGenomicPosition = -1;
+				blockIdx = blockIndices[column];
+			}
+			if(startGenomicPosition == -1 && operations[column] != OP_INSERTION) {
+				startGenomicPosition = genomicPositions[column];
+			}
+		}
+		if(startGenomicPosition != -1) {
+			blockSize++;
+		}
+
+		// fill blocks
+		int[] starts = new int[blockSize];
+		int[] ends = new int[blockSize];
+		blockSize = 0;
+		startGenomicPosition = -1;
+		int endGenomicPosition = -1;
+		blockIdx = startColumn < endColumn ? blockIndices[startColumn] : 0;
+		for(int column=startColumn; column<endColumn; column++) {
+			// intron
+			if(blockIndices[column] != blockIdx) {
+				if(startGenomicPosition != -1) {
+					starts[blockSize] = startGenomicPosition;
+					ends[blockSize++] = endGenomicPosition;
+				}
+				startGenomicPosition = -1;
+				endGenomicPosition = -1;
+				blockIdx = blockIndices[column];
+			}
+
+			if(startGenomicPosition == -1 && operations[column] != OP_INSERTION) {
+				startGenomicPosition = genomicPositions[column];
+			}
+			endGenomicPosition = genomicPositions[column];
+		}
+		if(startGenomicPosition != -1) {
+			starts[blockSize] = startGenomicPosition;
+			ends[blockSize++] = endGenomicPosition;
+		}
+
+		lInfo.location = new GenomicLocation(contigId, starts, ends);
+	}
+}
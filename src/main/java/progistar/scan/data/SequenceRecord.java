@@ -5,6 +5,7 @@ import java.util.Hashtable;
 
 import org.ahocorasick.trie.Trie;
 
+import progistar.scan.function.PeptideMatcher;
 import progistar.scan.run.Main;
 
 public class SequenceRecord {
@@ -16,7 +17,7 @@ public class SequenceRecord {
 	public ArrayList<String> records = new ArrayList<String>();
 	public String sequence;
 	public String strand;
-	public String location;
+	public GenomicLocation location;
 	
 	public int start = 0;
 	public int end = 0;
@@ -42,6 +43,33 @@ public class SequenceRecord {
 	 * @return
 	 */
 	public static Trie getTrie (ArrayList<SequenceRecord> records) {
+		ArrayList<String> sequences = getUniqueSequences(records);
+		
+		if(sequences.size() == 0) {
+			return null;
+		} else {
+			return Trie.builder().addKeywords(sequences).build();
+		}
+	}
+	
+	/**
+	 * Peptide version of getTrie. <br>
+	 * The engine is selected by Parameters.engine (see PeptideMatcher).
+	 * 
+	 * @param records
+	 * @return
+	 */
+	public static PeptideMatcher getMatcher (ArrayList<SequenceRecord> records) {
+		ArrayList<String> sequences = getUniqueSequences(records);
+		
+		if(sequences.size() == 0) {
+			return null;
+		} else {
+			return PeptideMatcher.build(sequences);
+		}
+	}
+	
+	private static ArrayList<String> getUniqueSequences (ArrayList<SequenceRecord> records) {
 		ArrayList<String> sequences = new ArrayList<String>();
 		Hashtable<String, String> rmDups = new Hashtable<String, String>();
 		
@@ -53,10 +81,6 @@ public class SequenceRecord {
 			}
 		}
 		
-		if(sequences.size() == 0) {
-			return null;
-		} else {
-			return Trie.builder().addKeywords(sequences).build();
-		}
+		return sequences;
 	}
 }
@@ -0,0 +1,45 @@
+package progistar.scan.data;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/**
+ * Dense ids of the input sequences. <br>
+ * Ids are assigned once after parsing the input (see ParseRecord), so LocTable can key locations by an int
+ * instead of the sequence string.
+ *
+ */
+public class SequenceTable {
+
+	public static Hashtable<String, Integer> ids = new Hashtable<String, Integer>();
+	public static ArrayList<String> sequences = new ArrayList<String>();
+
+	public static int register (String sequence) {
+		Integer id = ids.get(sequence);
+		if(id == null) {
+			id = sequences.size();
+			ids.put(sequence, id);
+			sequences.add(sequence);
+		}
+		return id;
+	}
+
+	/**
+	 * Return the id of a given sequence, or -1 if it is not an input sequence.
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	public static int getId (String sequence) {
+		Integer id = ids.get(sequence);
+		return id == null ? -1 : id;
+	}
+
+	public static String getSequence (int id) {
+		return sequences.get(id);
+	}
+
+	public static int size () {
+		return sequences.size();
+	}
+}
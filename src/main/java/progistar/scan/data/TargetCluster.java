@@ -0,0 +1,224 @@
+package progistar.scan.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Target records whose query windows overlap on the same chromosome. <br>
+ * A cluster is read by one query over the union of the windows (see TargetModeRun),
+ * and a match is routed to the targets at its location. <br>
+ * Targets are sorted by start, so only the targets starting at the match start are compared. <br>
+ * Clusters of a chromosome can be merged for a sequential sweep. <br>
+ * A read is matched only in its offsets which can be projected into the targets it overlaps (see getReadRange),
+ * and a read overlapping no target is skipped.
+ *
+ */
+public class TargetCluster {
+
+	public String chr;
+	// the union of the query windows
+	public int start;
+	public int end;
+	public ArrayList<SequenceRecord> records = new ArrayList<SequenceRecord>();
+	// estimated bytes to decode by the query
+	public long cost = 0;
+	private int[] starts;
+	private int[] ends;
+	// maxEnds[i] = max(ends[0..i])
+	private int[] maxEnds;
+
+	/**
+	 * Merge target records into clusters of overlapping windows [start-margin, end+margin]. <br>
+	 * Clusters are ordered by chromosome and start.
+	 *
+	 * @param records mapped target records
+	 * @param margin
+	 * @return
+	 */
+	public static ArrayList<TargetCluster> cluster (ArrayList<SequenceRecord> records, int margin) {
+		ArrayList<SequenceRecord> sortedRecords = new ArrayList<SequenceRecord>(records);
+		Collections.sort(sortedRecords, TargetCluster::compareByLocus);
+
+		ArrayList<TargetCluster> clusters = new ArrayList<TargetCluster>();
+		TargetCluster cluster = null;
+		for(SequenceRecord record : sortedRecords) {
+			int windowStart = record.start - margin;
+			int windowEnd = record.end + margin;
+			if(cluster == null || !cluster.chr.equals(record.chr) || windowStart > cluster.end) {
+				cluster = new TargetCluster();
+				cluster.chr = record.chr;
+				cluster.start = windowStart;
+				cluster.end = windowEnd;
+				clusters.add(cluster);
+			}
+			cluster.end = Math.max(cluster.end, windowEnd);
+			cluster.records.add(record);
+		}
+
+		for(TargetCluster c : clusters) {
+			c.indexRecords();
+		}
+		return clusters;
+	}
+	
+	/**
+	 * Merge clusters of the same chromosome into one cluster.
+	 * 
+	 * @param clusters ordered by start
+	 * @return
+	 */
+	public static TargetCluster merge (ArrayList<TargetCluster> clusters) {
+		TargetCluster merged = new TargetCluster();
+		merged.chr = clusters.get(0).chr;
+		merged.start = clusters.get(0).start;
+		merged.end = clusters.get(clusters.size()-1).end;
+		for(TargetCluster cluster : clusters) {
+			merged.records.addAll(cluster.records);
+		}
+		merged.indexRecords();
+		return merged;
+	}
+	
+	private void indexRecords () {
+		Collections.sort(records, (r1, r2) -> Integer.compare(r1.location.getStart(), r2.location.getStart()));
+		starts = new int[records.size()];
+		ends = new int[records.size()];
+		maxEnds = new int[records.size()];
+		for(int i=0; i<starts.length; i++) {
+			starts[i] = records.get(i).location.getStart();
+			ends[i] = records.get(i).location.getEnd();
+			maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i-1], ends[i]);
+		}
+	}
+	
+	/**
+	 * Return the read offsets [start, end) which can be in a match at a target location,
+	 * or null if the read overlaps no target. <br>
+	 * Positions of a match are within its location, and the positions of the read increase along the read,
+	 * so the offsets are those after the last base before the overlapped targets and before the first base after them.
+	 * Soft-clipped bases have positions as in ReadAlignment, and insertions are kept with the bases around them. <br>
+	 * All frames of the offsets are matched, so no frame margin is needed.
+	 * 
+	 * @param samRecord
+	 * @return
+	 */
+	public int[] getReadRange (SAMRecord samRecord) {
+		if(samRecord.getReadUnmappedFlag() || samRecord.getCigarLength() == 0) {
+			return null;
+		}
+		
+		// the span of the targets overlapping the read
+		int readStart = samRecord.getUnclippedStart();
+		int readEnd = samRecord.getUnclippedEnd();
+		int spanStart = Integer.MAX_VALUE;
+		int spanEnd = Integer.MIN_VALUE;
+		for(int i=getLastStartIndex(readEnd); i>=0 && maxEnds[i] >= readStart; i--) {
+			if(ends[i] >= readStart) {
+				spanStart = Math.min(spanStart, starts[i]);
+				spanEnd = Math.max(spanEnd, ends[i]);
+			}
+		}
+		if(spanStart == Integer.MAX_VALUE) {
+			return null;
+		}
+		
+		// [start, end) zero-based
+		int start = 0;
+		int end = samRecord.getReadLength();
+		int readPos = 0;
+		// the position of the first base (clipped bases are included)
+		int gPos = readStart;
+		for(CigarElement element : samRecord.getCigar().getCigarElements()) {
+			CigarOperator operator = element.getOperator();
+			int length = element.getLength();
+			if(operator.isAlignment() || operator == CigarOperator.S) {
+				// the last base before the span
+				if(gPos < spanStart) {
+					start = Math.max(start, readPos + Math.min(length, spanStart - gPos));
+				}
+				// the first base after the span
+				if(gPos + length - 1 > spanEnd) {
+					end = Math.min(end, readPos + Math.max(0, spanEnd + 1 - gPos));
+				}
+				readPos += length;
+				gPos += length;
+			} else if(operator == CigarOperator.I) {
+				readPos += length;
+			} else if(operator == CigarOperator.D || operator == CigarOperator.N || operator == CigarOperator.H) {
+				gPos += length;
+			}
+		}
+		
+		if(start >= end) {
+			return null;
+		}
+		return new int[] {start, end};
+	}
+	
+	// the last target starting at or before a given position, or -1
+	private int getLastStartIndex (int position) {
+		int lo = 0;
+		int hi = starts.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Order of target records by chromosome and start. Chunking by this order keeps nearby targets together.
+	 *
+	 * @param r1
+	 * @param r2
+	 * @return
+	 */
+	public static int compareByLocus (SequenceRecord r1, SequenceRecord r2) {
+		int cmp = r1.chr.compareTo(r2.chr);
+		if(cmp != 0) {
+			return cmp;
+		}
+		cmp = Integer.compare(r1.start, r2.start);
+		return cmp != 0 ? cmp : Integer.compare(r1.end, r2.end);
+	}
+
+	/**
+	 * Return the number of targets with a given sequence and location. <br>
+	 * Each target counts the match once, as if the target were queried alone.
+	 *
+	 * @param sequence
+	 * @param location
+	 * @return
+	 */
+	public int getTargetCount (String sequence, GenomicLocation location) {
+		int locationStart = location.getStart();
+		// the first target starting at the location
+		int lo = 0;
+		int hi = starts.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(starts[mid] < locationStart) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		int count = 0;
+		for(int i=lo; i<starts.length && starts[i] == locationStart; i++) {
+			SequenceRecord record = records.get(i);
+			if(record.sequence.equals(sequence) && record.location.equalsIgnoreCase(location)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -126,21 +126,12 @@ public class Transcript {
 		
 		String classCode = "Undefined";
 		
-		String[] locations	= sRecord.location.split("\\|");
-		int[] qStarts	= new int[locations.length];
-		int[] qEnds		= new int[locations.length];
-		
-		// is invalid location?
-		for(int i=0; i<locations.length; i++) {
-			// TODO: check validity
-			String[] location = locations[i].split("\\:")[1].split("\\-");
-			qStarts[i]	= Integer.parseInt(location[0]);
-			qEnds[i]	= Integer.parseInt(location[1]);
-		}
+		int[] qStarts	= sRecord.location.starts;
+		int[] qEnds		= sRecord.location.ends;
 		
 		// if the positions are out of bound to transcript ?
 		boolean isIGR = false;
-		for(int i=0; i<locations.length; i++) {
+		for(int i=0; i<qStarts.length; i++) {
 			if( (qStarts[i] < start || qStarts[i] > end) ||
 				(qEnds[i] < start || qEnds[i] > end)) {
 				isIGR = true;
@@ -165,7 +156,7 @@ public class Transcript {
 		//System.out.println(sRecord.toString());
 		for(Exon exon : exons) {
 			// overlap
-			for(int i=0; i<locations.length; i++) {
+			for(int i=0; i<qStarts.length; i++) {
 				int qStart	= qStarts[i];
 				int qEnd	= qEnds[i];
 				if( !((exon.start > qEnd) || (exon.end < qStart)) ) {
@@ -187,13 +178,13 @@ public class Transcript {
 		}
 		
 		// check AS
-		if(locations.length != 1) {
+		if(qStarts.length != 1) {
 			// if the number of reference exons is different from the size of locations
 			// it implies that it should be mis-spliced.
-			if(locations.length != matchedExons.size()) {
+			if(qStarts.length != matchedExons.size()) {
 				isAS = true;
 			} else {
-				for(int i=0; i<locations.length; i++) {
+				for(int i=0; i<qStarts.length; i++) {
 					if( ((i%2 == 0) && (qEnds[i] == matchedExons.get(i).end)) || 
 						((i%2 == 1) && (qStarts[i] == matchedExons.get(i).start))) {
 						// match well
@@ -12,11 +12,13 @@ import java.util.Iterator;
 
 import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Constants;
+import progistar.scan.data.GenomicLocation;
 import progistar.scan.data.LibraryTable;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.LocationInformation;
 import progistar.scan.data.Parameters;
 import progistar.scan.data.SequenceRecord;
+import progistar.scan.data.SequenceTable;
 import progistar.scan.function.Utils;
 import progistar.scan.function.Validation;
 import progistar.scan.function.WriteStatistics;
@@ -111,7 +113,7 @@ public class ParseRecord {
 				}
 				
 				record.strand = strand;
-				record.location = genomicLoci;
+				record.location = GenomicLocation.parse(genomicLoci);
 				
 				/** @deprecated
 				if(Scan.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
@@ -122,20 +124,11 @@ public class ParseRecord {
 				}
 				**/
 				
-				String chr = Constants.NULL;
-				int start = -1;
-				int end = -1;
+				String chr = record.location.getContigName();
+				int start = record.location.getStart();
+				int end = record.location.getEnd();
 				
-				if(!genomicLoci.equalsIgnoreCase(Constants.NULL)) {
-					String[] gLoc = genomicLoci.split("\\|");
-					for(String gLocus : gLoc) {
-						chr = gLocus.split("\\:")[0];
-						if(start == -1) {
-							start = Integer.parseInt(gLocus.split("\\:")[1].split("\\-")[0]);
-						}
-						end = Integer.parseInt(gLocus.split("\\:")[1].split("\\-")[1]);
-					}
-					
+				if(!record.location.isUnmapped()) {
 					if(chr.equalsIgnoreCase("chrx")) {
 						chr = "chrX";
 					} else if(chr.equalsIgnoreCase("chry")) {
@@ -174,7 +167,7 @@ public class ParseRecord {
 				SequenceRecord record = new SequenceRecord();
 				record.sequence = Parameters.isILEqual ? sequence.replace("I", "L") : sequence;
 				record.strand = Constants.NULL;
-				record.location = Constants.NULL;
+				record.location = GenomicLocation.UNMAPPED;
 				
 				String key = record.getKey();
 				
@@ -194,6 +187,7 @@ public class ParseRecord {
 			// set longestLengthOfInputSequences
 			for(SequenceRecord record : records) {
 				Parameters.longestSequenceLen = Math.max(record.sequence.length(), Parameters.longestSequenceLen);
+				SequenceTable.register(record.sequence);
 			}
 			System.out.println("Longest length of input sequences: "+Parameters.longestSequenceLen);
 		} else if(Parameters.mode.equalsIgnoreCase(Constants.MODE_ANNOTATE)) {
@@ -6,12 +6,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 
 import progistar.scan.data.Annotation;
 import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Constants;
+import progistar.scan.data.CountVector;
+import progistar.scan.data.GenomicLocation;
 import progistar.scan.data.LibraryTable;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.LocationInformation;
@@ -116,7 +117,7 @@ public class WriteOutput {
 		
 		// write records
 		// unique observed sequence.
-		Hashtable<String, Hashtable<String, Long>> readCountsTupleLevel = new Hashtable<String, Hashtable<String, Long>>();
+		Hashtable<String, CountVector> readCountsTupleLevel = new Hashtable<String, CountVector>();
 		
 		for(int i=0; i<records.size(); i++) {
 			SequenceRecord record = records.get(i);
@@ -129,54 +130,37 @@ public class WriteOutput {
 						continue;
 					}
 				
-				Hashtable<String, Long> readCounts = location.readCounts;
 				// it must be calculated once!
 				// peptide level count
 				
 				String tupleKey = location.obsPeptide+"\t"+location.location+"\t"+location.strand;
-				Hashtable<String, Long> sumReads = readCountsTupleLevel.get(tupleKey);
+				CountVector sumReads = readCountsTupleLevel.get(tupleKey);
 				if(sumReads == null) {
-					sumReads = new Hashtable<String, Long>();
+					sumReads = new CountVector();
+					readCountsTupleLevel.put(tupleKey, sumReads);
 				}
-				
-				Iterator<String> keys = (Iterator<String>) readCounts.keys();
-				while(keys.hasNext()) {
-					String barcodeId = keys.next();
-					Long val = sumReads.get(barcodeId);
-					if(val == null) {
-						val = 0L;
-					}
-					sumReads.put(barcodeId, (readCounts.get(barcodeId) + val));
-				}
-				
-				readCountsTupleLevel.put(tupleKey, sumReads);
+				sumReads.add(location.readCounts);
 			}
 			
 		}
 		
+		long[] denseReads = new long[BarcodeTable.getBarcodeSize()];
 		readCountsTupleLevel.forEach((tupleKey, reads)->{
 			try {
 				if(Parameters.isSingleCellMode) {
 					BW.append(tupleKey);
+					reads.fill(denseReads);
 					// write raw read counts
-					for(String barcodeId : BarcodeTable.barcodeIds) {
-						Long read = reads.get(barcodeId);
-						if(read == null) {
-							read = 0L;
-						}
-						BW.append("\t"+read);
+					for(int ordinal=0; ordinal<denseReads.length; ordinal++) {
+						BW.append("\t"+denseReads[ordinal]);
 					}
 					// write RPHTs
-					for(String barcodeId : BarcodeTable.barcodeIds) {
-						Long read = reads.get(barcodeId);
-						if(read == null) {
-							read = 0L;
-						}
-						BW.append("\t"+Utils.getRPHT(read, barcodeId));
+					for(int ordinal=0; ordinal<denseReads.length; ordinal++) {
+						BW.append("\t"+Utils.getRPHT(denseReads[ordinal], ordinal));
 					}
 				} else {
-					Long read = reads.get(Constants.DEFAULT_BARCODE_ID);
-					BW.append(tupleKey+"\t"+read+"\t"+Utils.getRPHM((double)read, Constants.DEFAULT_BARCODE_ID));
+					long read = reads.get(BarcodeTable.DEFAULT_BARCODE_ORDINAL);
+					BW.append(tupleKey+"\t"+read+"\t"+Utils.getRPHM(read, BarcodeTable.DEFAULT_BARCODE_ORDINAL));
 				}
 				
 				BW.newLine();
@@ -212,8 +196,8 @@ public class WriteOutput {
 		
 		// write records
 		// unique observed sequence.
-		Hashtable<String, Hashtable<String, Long>> readCountsPeptLevel = new Hashtable<String, Hashtable<String, Long>>();
-		Hashtable<String, Hashtable<String, Boolean>> locationsPeptLevel = new Hashtable<String, Hashtable<String, Boolean>>();
+		Hashtable<String, CountVector> readCountsPeptLevel = new Hashtable<String, CountVector>();
+		Hashtable<String, Hashtable<GenomicLocation, Boolean>> locationsPeptLevel = new Hashtable<String, Hashtable<GenomicLocation, Boolean>>();
 		
 		for(int i=0; i<records.size(); i++) {
 			SequenceRecord record = records.get(i);
@@ -226,34 +210,24 @@ public class WriteOutput {
 						continue;
 					}
 				
-				Hashtable<String, Long> readCounts = location.readCounts;
 				// it must be calculated once!
 				// peptide level count
 				
-				Hashtable<String, Long> unionReads = readCountsPeptLevel.get(location.obsPeptide);
+				CountVector unionReads = readCountsPeptLevel.get(location.obsPeptide);
 				if(unionReads == null) {
-					unionReads = new Hashtable<String, Long>();
+					unionReads = new CountVector();
+					readCountsPeptLevel.put(location.obsPeptide, unionReads);
 				}
 				
-				Iterator<String> keys = (Iterator<String>) readCounts.keys();
-				while(keys.hasNext()) {
-					String barcodeId = keys.next();
-					Long val = unionReads.get(barcodeId);
-					if(val == null) {
-						val = 0L;
-					}
-					if(Parameters.union.equalsIgnoreCase(Constants.UNION_MAX)) {
-						unionReads.put(barcodeId, Math.max(readCounts.get(barcodeId), val));
-					} else if(Parameters.union.equalsIgnoreCase(Constants.UNION_SUM)){
-						unionReads.put(barcodeId, (readCounts.get(barcodeId) + val));
-					}
+				if(Parameters.union.equalsIgnoreCase(Constants.UNION_MAX)) {
+					unionReads.max(location.readCounts);
+				} else if(Parameters.union.equalsIgnoreCase(Constants.UNION_SUM)){
+					unionReads.add(location.readCounts);
 				}
 				
-				readCountsPeptLevel.put(location.obsPeptide, unionReads);
-				
-				Hashtable<String, Boolean> gLocationMap = locationsPeptLevel.get(location.obsPeptide);
+				Hashtable<GenomicLocation, Boolean> gLocationMap = locationsPeptLevel.get(location.obsPeptide);
 				if(gLocationMap == null) {
-					gLocationMap = new Hashtable<String, Boolean>();
+					gLocationMap = new Hashtable<GenomicLocation, Boolean>();
 					locationsPeptLevel.put(location.obsPeptide, gLocationMap);
 				}
 				
@@ -262,29 +236,23 @@ public class WriteOutput {
 			
 		}
 
+		long[] denseReads = new long[BarcodeTable.getBarcodeSize()];
 		readCountsPeptLevel.forEach((sequence, reads)->{
 			try {
 				if(Parameters.isSingleCellMode) {
 					BW.append(sequence+"\t"+locationsPeptLevel.get(sequence).size());
+					reads.fill(denseReads);
 					// write raw read counts
-					for(String barcodeId : BarcodeTable.barcodeIds) {
-						Long read = reads.get(barcodeId);
-						if(read == null) {
-							read = 0L;
-						}
-						BW.append("\t"+read);
+					for(int ordinal=0; ordinal<denseReads.length; ordinal++) {
+						BW.append("\t"+denseReads[ordinal]);
 					}
 					// write RPHTs
-					for(String barcodeId : BarcodeTable.barcodeIds) {
-						Long read = reads.get(barcodeId);
-						if(read == null) {
-							read = 0L;
-						}
-						BW.append("\t"+Utils.getRPHT(read, barcodeId));
+					for(int ordinal=0; ordinal<denseReads.length; ordinal++) {
+						BW.append("\t"+Utils.getRPHT(denseReads[ordinal], ordinal));
 					}
 				} else {
-					Long read = reads.get(Constants.DEFAULT_BARCODE_ID);
-					BW.append(sequence+"\t"+locationsPeptLevel.get(sequence).size()+"\t"+read+"\t"+Utils.getRPHM((double)read, Constants.DEFAULT_BARCODE_ID));
+					long read = reads.get(BarcodeTable.DEFAULT_BARCODE_ORDINAL);
+					BW.append(sequence+"\t"+locationsPeptLevel.get(sequence).size()+"\t"+read+"\t"+Utils.getRPHM(read, BarcodeTable.DEFAULT_BARCODE_ORDINAL));
 				}
 				BW.newLine();
 			}catch(IOException ioe) {
@@ -0,0 +1,89 @@
+package progistar.scan.function;
+
+import java.util.ArrayList;
+
+import progistar.scan.data.Codon;
+import progistar.scan.data.Parameters;
+
+/**
+ * Aho-Corasick automaton over amino acids which consumes nucleotides directly. <br>
+ * A strand of a read is traversed once and the three frames are tracked at the same time:
+ * each frame keeps its own state and moves forward whenever the third base of its codon arrives. <br>
+ * Therefore, it does not build any translated sequence per read.
+ *
+ */
+public class CodonAutomaton extends PeptideMatcher {
+
+	private static final int CODON_SIZE = 512; // 8 * 8 * 8 (see Codon)
+
+	// complement nucleotide. Note that only upper cases are complemented (same as Translator.getReverseComplement).
+	private static final byte[] COMPLEMENT = new byte[256];
+
+	static {
+		for(int i=0; i<COMPLEMENT.length; i++) {
+			COMPLEMENT[i] = (byte) i;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+		COMPLEMENT['T'] = 'A';
+	}
+
+	// codon index => amino acid code of PeptideAutomaton
+	private int[] codonToCode = new int[CODON_SIZE];
+	private PeptideAutomaton automaton;
+
+	public CodonAutomaton (ArrayList<String> sequences) {
+		super(sequences);
+		this.automaton = PeptideAutomaton.build(sequences);
+
+		// codon table
+		for(int idx=0; idx<CODON_SIZE; idx++) {
+			char aa = Codon.nuclToAmino(""+(char)(idx >> 6)+(char)((idx >> 3) & 7)+(char)(idx & 7));
+			// if it is il equal mode?
+			if(Parameters.isILEqual && aa == 'I') {
+				aa = 'L';
+			}
+			codonToCode[idx] = PeptideAutomaton.toCode(aa);
+		}
+	}
+
+	@Override
+	public void match (byte[] bases, int offset, int length, ArrayList<Character> strands, MatchVisitor visitor) {
+		for(Character strand : strands) {
+			match(bases, offset, length, strand, visitor);
+		}
+	}
+
+	private void match (byte[] bases, int offset, int length, char strand, MatchVisitor visitor) {
+		int state0 = PeptideAutomaton.ROOT;
+		int state1 = PeptideAutomaton.ROOT;
+		int state2 = PeptideAutomaton.ROOT;
+		int codon = 0;
+
+		for(int pos=0; pos<length; pos++) {
+			byte nt = strand == '-' ? COMPLEMENT[bases[offset + length - 1 - pos] & 0xFF] : bases[offset + pos];
+			codon = ((codon << 3) | (nt & 7)) & (CODON_SIZE - 1);
+
+			if(pos < 2) {
+				continue;
+			}
+
+			// the codon started at pos-2
+			int frame = (pos - 2) % 3;
+			int code = codonToCode[codon];
+			int state = 0;
+			if(frame == 0) {
+				state = state0 = automaton.next(state0, code);
+			} else if(frame == 1) {
+				state = state1 = automaton.next(state1, code);
+			} else {
+				state = state2 = automaton.next(state2, code);
+			}
+
+			if(automaton.hasOutput(state)) {
+				automaton.report(state, strand, frame, (pos - 2 - frame) / 3, visitor);
+			}
+		}
+	}
+}
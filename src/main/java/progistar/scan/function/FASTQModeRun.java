@@ -1,21 +1,51 @@
 package progistar.scan.function;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
-import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqRecord;
-import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Constants;
+import progistar.scan.data.FastqBatch;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.Parameters;
 import progistar.scan.run.Task;
 
+/**
+ * FASTQ mode as a producer/consumer pipeline. <br>
+ * A task parses its FASTQ file (see FastqParser) and puts batches of records into a bounded queue,
+ * and matcher threads (-@) take the batches from the queue. <br>
+ * Paired-end files are parsed in lockstep by one task, so a batch has the mates of the same reads and both mates are matched by the same matcher. <br>
+ * Each matcher keeps its own location table, and the tables are merged once after all tasks (see stopMatchers). <br>
+ * The batch size follows the measured matching time per read, so a batch takes about TARGET_BATCH_NANOS to match. <br>
+ * With inflate threads (--inflate_thread), a gzip file is inflated in parallel ahead of the reading task.
+ *
+ */
 public class FASTQModeRun extends Mode {
 
+	private static final int INITIAL_BATCH_SIZE = 10000;
+	private static final int MIN_BATCH_SIZE = 1000;
+	private static final int MAX_BATCH_SIZE = 200000;
+	private static final long TARGET_BATCH_NANOS = 50000000L;
+	// batches in the queue per matcher
+	private static final int BATCHES_PER_MATCHER = 2;
+
+	private static class Batch {
+		Task task;
+		FastqBatch records;
+		// the second mates of records (null for single-end reads)
+		FastqBatch mates;
+	}
+
+	private static ArrayBlockingQueue<Batch> queue = null;
+	private static ArrayList<Thread> matchers = new ArrayList<Thread>();
+	private static ArrayList<LocTable> locTables = new ArrayList<LocTable>();
+
+	// matching time to adapt the batch size
+	private static LongAdder matchedReads = new LongAdder();
+	private static LongAdder matchNanos = new LongAdder();
+
 	public static void runFASTQMode (Task task) {
 		if(task.type == Constants.TYPE_FASTQ_MODE_TASK) {
 			if(Parameters.verbose) {
@@ -24,83 +54,129 @@ public class FASTQModeRun extends Mode {
 			scanReads(task);
 		}
 	}
-	
+
+	/**
+	 * Start matcher threads. Use it before running FASTQ mode tasks.
+	 *
+	 * @param threadNum
+	 */
+	public static void startMatchers (int threadNum) {
+		queue = new ArrayBlockingQueue<Batch>(threadNum * BATCHES_PER_MATCHER);
+		for(int i=0; i<threadNum; i++) {
+			LocTable locTable = new LocTable();
+			locTables.add(locTable);
+			Thread matcher = new Thread(() -> match(locTable));
+			matcher.start();
+			matchers.add(matcher);
+		}
+	}
+
+	/**
+	 * Stop the matcher threads after the queued batches are matched, and return their location tables.
+	 * Use it when all FASTQ mode tasks are done.
+	 *
+	 * @return
+	 */
+	public static ArrayList<LocTable> stopMatchers () {
+		try {
+			// a batch without records stops a matcher
+			for(int i=0; i<matchers.size(); i++) {
+				Batch batch = new Batch();
+				batch.records = null;
+				queue.put(batch);
+			}
+			for(Thread matcher : matchers) {
+				matcher.join();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		ArrayList<LocTable> tables = locTables;
+		matchers = new ArrayList<Thread>();
+		locTables = new ArrayList<LocTable>();
+		return tables;
+	}
+
+	private static void match (LocTable locTable) {
+		try {
+			while(true) {
+				Batch batch = queue.take();
+				if(batch.records == null) {
+					break;
+				}
+				long startTime = System.nanoTime();
+				// note that if you process something inside "find" function,
+				// you are care about concurrence, conflicts.
+				find(batch.records, batch.mates, Task.allTrie, Task.allMatcher, batch.task, locTable);
+				matchNanos.add(System.nanoTime() - startTime);
+				matchedReads.add(batch.mates == null ? batch.records.size : batch.records.size * 2L);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// the number of reads matched in TARGET_BATCH_NANOS by a matcher
+	private static int getBatchSize () {
+		long reads = matchedReads.sum();
+		long nanos = matchNanos.sum();
+		if(reads == 0 || nanos == 0) {
+			return INITIAL_BATCH_SIZE;
+		}
+		long batchSize = TARGET_BATCH_NANOS * reads / nanos;
+		return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, batchSize));
+	}
+
 	private static void scanReads (Task task) {
 		long startTime = System.currentTimeMillis();
 		File file = null;
-		int threadNum = Parameters.threadNum+1;
-		
+		File mateFile = null;
+		int inflateThreadNum = Parameters.inflateThreadNum;
+
 		// single-end
 		if(task.start == 0) {
 			file = new File(Parameters.fastq0File.getAbsolutePath());
-		} 
-		// first fastq
+		}
+		// first and second fastq
 		else if(task.start == 1) {
 			file = new File(Parameters.fastq1File.getAbsolutePath());
-			threadNum /= 2;
-		} 
-		// second fastq
-		else if(task.start == 2) {
-			file = new File(Parameters.fastq2File.getAbsolutePath());
-			threadNum /= 2;
+			mateFile = new File(Parameters.fastq2File.getAbsolutePath());
+			// the files are read at the same rate
+			if(inflateThreadNum > 0) {
+				inflateThreadNum = Math.max(1, inflateThreadNum / 2);
+			}
 		}
-		
-		
-		ExecutorService executorService = Executors.newFixedThreadPool(threadNum);
-		try(FastqReader reader = new FastqReader(file)) {
-			int maxSize = 10000;
-			int curSize = 0;
-			
-			ArrayList<FastqRecord> records = new ArrayList<FastqRecord>();
-			for(FastqRecord fastqRecord : reader) {
-				String barcodeId = BarcodeTable.getBarcodeFromFASTQ(fastqRecord);
-	    		
-	    		// increase processed reads
-	        	Double pReads = task.processedReads.get(barcodeId);
-	        	if(pReads == null) {
-	        		pReads = .0;
-	        	}
-	        	pReads++;
-	        	task.processedReads.put(barcodeId, pReads);
-				
-	        	// 
-				records.add(fastqRecord);
-				curSize++;
-				
-				if(curSize == maxSize || !reader.hasNext()) {
-					final ArrayList<FastqRecord> copies = records;
-					 
-					// note that if you process something inside "find" function, 
-					// you are care about concurrence, conflicts. 
-					Future<LocTable> future = executorService.submit(() -> find(copies, Task.allTrie, task));
-					records = new ArrayList<FastqRecord>();
-					curSize = 0;
-					
-					LocTable locTable = future.get();
-					locTable.table.forEach((key, subTable)->{
-						subTable.forEach((key_, linfo)->{
-							task.locTable.putLocation(linfo);
-						});
-					});
+
+		try(FastqParser parser = new FastqParser(file, inflateThreadNum);
+			FastqParser mateParser = mateFile == null ? null : new FastqParser(mateFile, inflateThreadNum)) {
+			FastqBatch records = null;
+			// processed reads are counted in find
+			while(true) {
+				int batchSize = mateParser == null ? getBatchSize() : Math.max(1, getBatchSize() / 2);
+				records = parser.read(batchSize);
+				FastqBatch mates = mateParser == null ? null : mateParser.read(batchSize);
+				if(mateParser != null && (records == null ? 0 : records.size) != (mates == null ? 0 : mates.size)) {
+					throw new IOException("The number of reads is different between "+file.getName()+" and "+mateFile.getName());
 				}
+				if(records == null) {
+					break;
+				}
+				Batch batch = new Batch();
+				batch.task = task;
+				batch.records = records;
+				batch.mates = mates;
+				queue.put(batch);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			executorService.shutdown();
-		}
-		
-		while(!executorService.isTerminated()) {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			System.exit(1);
 		}
+
 		long endTime = System.currentTimeMillis();
 		if(Parameters.verbose) {
-			System.out.println("Task"+task.taskIdx+" "+(endTime-startTime)/1000+" sec");
+			System.out.println("Task"+task.taskIdx+" "+(endTime-startTime)/1000+" sec (batch size "+getBatchSize()+")");
 		}
 	}
 }
@@ -0,0 +1,171 @@
+package progistar.scan.function;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import htsjdk.samtools.util.IOUtil;
+import progistar.scan.data.FastqBatch;
+
+/**
+ * Byte-level FASTQ parser. <br>
+ * A chunk of the file is read into a byte array, and record boundaries are found in the chunk without decoding lines to Strings.
+ * The records of a chunk are returned as a FastqBatch (offsets in the chunk),
+ * and the incomplete record at the end of the chunk is carried to the next chunk. <br>
+ * The chunk size follows the mean record size, and a chunk is extended until it holds the requested number of records,
+ * so the batches of paired files have the same mates (see FASTQModeRun). <br>
+ * A record is four lines as in FastqReader, but blank lines between records are skipped.
+ *
+ */
+public class FastqParser implements Closeable {
+
+	private static final int INITIAL_RECORD_BYTES = 512;
+	private static final int MIN_CHUNK_SIZE = 1 << 16;
+	private static final int MAX_CHUNK_SIZE = 64 << 20;
+
+	private File file;
+	private InputStream input;
+	private boolean isEOF = false;
+	// the incomplete record of the last chunk
+	private byte[] carry = new byte[0];
+	private int carryStart = 0;
+	private int carryLength = 0;
+	// parsed records and their bytes for the chunk size
+	private long records = 0;
+	private long recordBytes = 0;
+
+	/**
+	 *
+	 * @param file plain or gzip FASTQ file
+	 * @param inflateThreadNum threads inflating a gzip file (see ParallelGzipInputStream). 0 inflates it in the calling thread.
+	 * @throws IOException
+	 */
+	public FastqParser (File file, int inflateThreadNum) throws IOException {
+		this.file = file;
+		this.input = inflateThreadNum > 0 ? ParallelGzipInputStream.open(file, inflateThreadNum) : IOUtil.openFileForReading(file);
+	}
+
+	/**
+	 * Parse the next given number of records. Fewer records are returned only at the end of the file.
+	 *
+	 * @param maxRecords
+	 * @return null at the end of the file
+	 * @throws IOException
+	 */
+	public FastqBatch read (int maxRecords) throws IOException {
+		long meanRecordBytes = records == 0 ? INITIAL_RECORD_BYTES : recordBytes / records + 1;
+		long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, meanRecordBytes * maxRecords));
+		byte[] data = new byte[(int) Math.max(chunkSize, carryLength + meanRecordBytes)];
+		System.arraycopy(carry, carryStart, data, 0, carryLength);
+		int limit = carryLength;
+
+		FastqBatch batch = new FastqBatch(data);
+		int end = 0;
+		while(true) {
+			limit = fill(batch.data, limit);
+			end = parse(batch, end, limit, maxRecords);
+			if(batch.size == maxRecords || isEOF) {
+				break;
+			}
+			// extend the chunk for the remaining records
+			long remainingBytes = (maxRecords - batch.size + 1) * meanRecordBytes;
+			byte[] largerData = new byte[(int) Math.min(Integer.MAX_VALUE - 8, limit + Math.max(remainingBytes, batch.data.length / 2))];
+			System.arraycopy(batch.data, 0, largerData, 0, limit);
+			batch.data = largerData;
+		}
+		
+		carry = batch.data;
+		carryStart = end;
+		carryLength = limit - end;
+		records += batch.size;
+		recordBytes += end;
+		return batch.size > 0 ? batch : null;
+	}
+
+	private int fill (byte[] data, int limit) throws IOException {
+		int size = 0;
+		while(limit < data.length && (size = input.read(data, limit, data.length - limit)) != -1) {
+			limit += size;
+		}
+		if(size == -1) {
+			isEOF = true;
+		}
+		return limit;
+	}
+
+	/**
+	 * Add the complete records in data[start, limit) to a batch.
+	 *
+	 * @param batch
+	 * @param start
+	 * @param limit
+	 * @param maxRecords
+	 * @return the offset after the last complete record
+	 * @throws IOException
+	 */
+	private int parse (FastqBatch batch, int start, int limit, int maxRecords) throws IOException {
+		byte[] data = batch.data;
+		int pos = start;
+		while(batch.size < maxRecords) {
+			// skip blank lines
+			while(pos < limit && (data[pos] == '\n' || data[pos] == '\r')) {
+				pos++;
+			}
+			if(pos >= limit) {
+				return limit;
+			}
+
+			int recordStart = pos;
+			int nameEnd = findLineEnd(data, recordStart, limit);
+			int baseEnd = nameEnd == -1 ? -1 : findLineEnd(data, nameEnd + 1, limit);
+			int plusEnd = baseEnd == -1 ? -1 : findLineEnd(data, baseEnd + 1, limit);
+			int qualityEnd = plusEnd == -1 ? -1 : findLineEnd(data, plusEnd + 1, limit);
+			if(qualityEnd == -1) {
+				if(isEOF) {
+					throw new IOException("Truncated FASTQ record "+(records + batch.size + 1)+" in "+file.getName());
+				}
+				return recordStart;
+			}
+
+			int baseStart = nameEnd + 1;
+			int baseLength = getLineLength(data, baseStart, baseEnd);
+			int qualityStart = plusEnd + 1;
+			if(data[recordStart] != '@' || data[baseEnd + 1] != '+' || baseLength != getLineLength(data, qualityStart, qualityEnd)) {
+				throw new IOException("Invalid FASTQ record "+(records + batch.size + 1)+" in "+file.getName());
+			}
+			batch.add(recordStart + 1, getLineLength(data, recordStart + 1, nameEnd), baseStart, baseLength, qualityStart);
+			pos = qualityEnd + 1;
+		}
+		return Math.min(pos, limit);
+	}
+
+	/**
+	 * Return the offset of the line feed of a line, or -1 if the line is incomplete. <br>
+	 * The last line of the file can end without a line feed.
+	 */
+	private int findLineEnd (byte[] data, int start, int limit) {
+		if(start > limit) {
+			return -1;
+		}
+		for(int pos=start; pos<limit; pos++) {
+			if(data[pos] == '\n') {
+				return pos;
+			}
+		}
+		return isEOF && start < limit ? limit : -1;
+	}
+
+	// without carriage return
+	private static int getLineLength (byte[] data, int start, int end) {
+		if(end > start && data[end - 1] == '\r') {
+			end--;
+		}
+		return end - start;
+	}
+
+	@Override
+	public void close () throws IOException {
+		input.close();
+	}
+}
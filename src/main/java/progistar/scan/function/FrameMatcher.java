@@ -0,0 +1,45 @@
+package progistar.scan.function;
+
+import java.util.ArrayList;
+
+import progistar.scan.data.Parameters;
+
+/**
+ * Translates the frames of a read and finds keywords by PeptideAutomaton.
+ *
+ */
+public class FrameMatcher extends PeptideMatcher {
+
+	private PeptideAutomaton automaton;
+
+	public FrameMatcher (ArrayList<String> sequences) {
+		super(sequences);
+		this.automaton = PeptideAutomaton.build(sequences);
+	}
+
+	@Override
+	public void match (byte[] bases, int offset, int length, ArrayList<Character> strands, MatchVisitor visitor) {
+		Translator.Frames frames = Translator.translation(bases, offset, length, strands.contains('+'), strands.contains('-'), Parameters.isILEqual);
+
+		int probed = 0;
+		int rejected = 0;
+		for(Character strand : strands) {
+			int frameOffset = strand == '-' ? 3 : 0;
+			for(int fr=0; fr<3; fr++) {
+				// skip the frame without any k-mer of the keywords
+				if(filter != null) {
+					probed++;
+					if(!filter.mightMatch(frames.peptides[frameOffset + fr], frames.lengths[frameOffset + fr])) {
+						rejected++;
+						continue;
+					}
+				}
+				automaton.search(frames.peptides[frameOffset + fr], frames.lengths[frameOffset + fr], strand, fr, visitor);
+			}
+		}
+		
+		if(filter != null) {
+			filter.count(probed, rejected);
+		}
+	}
+}
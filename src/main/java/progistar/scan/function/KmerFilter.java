@@ -0,0 +1,166 @@
+package progistar.scan.function;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Amino acid k-mer prefilter of the query peptides. <br>
+ * A translated frame can contain a query only if it contains a k-mer of the query,
+ * so frames without any query k-mer are rejected before the full matching. <br>
+ * k <= 4 uses a dense bitset of all k-mers, and longer k uses a Bloom filter. <br>
+ * Each amino acid is packed to 5 bits (see PeptideAutomaton.toCode), so k is at most 12.
+ *
+ */
+public class KmerFilter {
+
+	public static final int MIN_K = 3;
+	public static final int DENSE_MAX_K = 4;
+	public static final int MAX_K = 12;
+
+	private static final int BITS_PER_AA = 5;
+	private static final int BLOOM_HASH_NUM = 3;
+	private static final int BLOOM_BITS_PER_KMER = 16;
+
+	private int k;
+	private long kmerMask;
+	private boolean isBloom;
+	private long[] bits;
+	private long bitMask;
+
+	private LongAdder probedFrames = new LongAdder();
+	private LongAdder rejectedFrames = new LongAdder();
+
+	private KmerFilter (int k, boolean isBloom, long bitSize) {
+		this.k = k;
+		this.kmerMask = (1L << (BITS_PER_AA * k)) - 1;
+		this.isBloom = isBloom;
+		this.bits = new long[(int) Math.max(1, bitSize >>> 6)];
+		this.bitMask = bitSize - 1;
+	}
+
+	/**
+	 * Build a prefilter from query peptides. <br>
+	 * k is reduced to the shortest query length, and null is returned if k is less than MIN_K.
+	 *
+	 * @param sequences
+	 * @param k
+	 * @return
+	 */
+	public static KmerFilter build (String[] sequences, int k) {
+		if(sequences.length == 0) {
+			return null;
+		}
+
+		for(String sequence : sequences) {
+			k = Math.min(k, sequence.length());
+		}
+		k = Math.min(k, MAX_K);
+		if(k < MIN_K) {
+			return null;
+		}
+
+		KmerFilter filter = null;
+		if(k <= DENSE_MAX_K) {
+			filter = new KmerFilter(k, false, 1L << (BITS_PER_AA * k));
+		} else {
+			// power of two bits
+			long bitSize = 1024;
+			long kmerNum = 0;
+			for(String sequence : sequences) {
+				kmerNum += sequence.length() - k + 1;
+			}
+			while(bitSize < kmerNum * BLOOM_BITS_PER_KMER) {
+				bitSize <<= 1;
+			}
+			filter = new KmerFilter(k, true, bitSize);
+		}
+
+		for(String sequence : sequences) {
+			long kmer = 0;
+			for(int pos=0; pos<sequence.length(); pos++) {
+				kmer = ((kmer << BITS_PER_AA) | PeptideAutomaton.toCode(sequence.charAt(pos))) & filter.kmerMask;
+				if(pos >= k-1) {
+					filter.add(kmer);
+				}
+			}
+		}
+
+		return filter;
+	}
+
+	private void add (long kmer) {
+		if(isBloom) {
+			long hash = mix(kmer);
+			long step = (hash >>> 32) | 1;
+			for(int i=0; i<BLOOM_HASH_NUM; i++) {
+				long bit = (hash + i * step) & bitMask;
+				bits[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		} else {
+			bits[(int) (kmer >>> 6)] |= 1L << kmer;
+		}
+	}
+
+	private boolean contains (long kmer) {
+		if(isBloom) {
+			long hash = mix(kmer);
+			long step = (hash >>> 32) | 1;
+			for(int i=0; i<BLOOM_HASH_NUM; i++) {
+				long bit = (hash + i * step) & bitMask;
+				if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return (bits[(int) (kmer >>> 6)] & (1L << kmer)) != 0;
+	}
+
+	// 64-bit finalizer of MurmurHash3
+	private static long mix (long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * Whether a translated frame has any k-mer of the queries. <br>
+	 * If it returns false, the frame cannot contain any query.
+	 *
+	 * @param peptide
+	 * @param length
+	 * @return
+	 */
+	public boolean mightMatch (byte[] peptide, int length) {
+		long kmer = 0;
+		for(int pos=0; pos<length; pos++) {
+			kmer = ((kmer << BITS_PER_AA) | PeptideAutomaton.toCode((char) peptide[pos])) & kmerMask;
+			if(pos >= k-1 && contains(kmer)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add the number of probed and rejected frames. <br>
+	 * Call it once per read to keep the counters cheap.
+	 *
+	 * @param probed
+	 * @param rejected
+	 */
+	public void count (long probed, long rejected) {
+		probedFrames.add(probed);
+		rejectedFrames.add(rejected);
+	}
+
+	public String getSummary () {
+		long probed = probedFrames.sum();
+		long rejected = rejectedFrames.sum();
+		double rate = probed == 0 ? 0 : (100.0 * rejected) / probed;
+		return "K-mer prefilter (k="+k+", "+(isBloom ? "bloom filter" : "bitset")+"): rejected "
+				+rejected+"/"+probed+" frames ("+String.format("%.3f", rate)+"%)";
+	}
+}
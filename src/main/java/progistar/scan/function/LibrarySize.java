@@ -0,0 +1,186 @@
+package progistar.scan.function;
+
+import java.util.List;
+
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+/**
+ * Library size (the number of non-secondary reads) from the record counts of a BAM index. <br>
+ * The index has aligned and unaligned record counts per reference and the count of reads without coordinate,
+ * but secondary alignments are not distinguished. <br>
+ * The fraction of secondary alignments is estimated per reference from blocks of reads at evenly spaced positions.
+ * A reference with fewer reads than its share of the sample is read fully, so a small BAM file gets the exact size. <br>
+ * The error is a standard error of the sampled fractions, taking the reads of a block as independent.
+ *
+ */
+public class LibrarySize {
+
+	// the number of reads to decode for the secondary fraction
+	public static final int SAMPLE_SIZE = 1000000;
+	// blocks of reads per reference
+	private static final int SAMPLE_BLOCKS = 32;
+
+	// all records in the index
+	public long indexedReads = 0;
+	public long sampledReads = 0;
+	public long sampledSecondaryReads = 0;
+	public double size = 0;
+	public double error = 0;
+
+	/**
+	 * Estimate the library size of an indexed BAM file. <br>
+	 * Return null if the file has no BAM index.
+	 *
+	 * @param samReader
+	 * @param sampleSize the number of reads to decode. 0 takes the index counts as they are (secondary alignments are included).
+	 * @return
+	 */
+	public static LibrarySize estimate (SamReader samReader, int sampleSize) {
+		if(!samReader.hasIndex() || samReader.type() != SamReader.Type.BAM_TYPE) {
+			return null;
+		}
+
+		LibrarySize libSize = new LibrarySize();
+		BAMIndex index = samReader.indexing().getIndex();
+		List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
+		long[] counts = new long[chromosomes.size()];
+		long placedReads = 0;
+		for(int i=0; i<chromosomes.size(); i++) {
+			BAMIndexMetaData metaData = index.getMetaData(i);
+			if(metaData != null) {
+				counts[i] = (long) metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+			}
+			placedReads += counts[i];
+		}
+
+		// reads without coordinate are not secondary
+		long unplacedReads = 0;
+		Long noCoordinateCount = index instanceof AbstractBAMFileIndex ? ((AbstractBAMFileIndex) index).getNoCoordinateCount() : null;
+		if(noCoordinateCount != null) {
+			unplacedReads = noCoordinateCount;
+		} else {
+			// old index without the count
+			try (SAMRecordIterator iterator = samReader.queryUnmapped()) {
+				while(iterator.hasNext()) {
+					iterator.next();
+					unplacedReads++;
+				}
+			}
+		}
+		libSize.indexedReads = placedReads + unplacedReads;
+		libSize.size = unplacedReads;
+
+		if(sampleSize == 0) {
+			libSize.size += placedReads;
+			return libSize;
+		}
+
+		// reference => {reads, secondary reads} of the sample
+		long[][] samples = new long[chromosomes.size()][2];
+		boolean[] isFullyRead = new boolean[chromosomes.size()];
+		for(int i=0; i<chromosomes.size(); i++) {
+			if(counts[i] == 0) {
+				continue;
+			}
+			String chrName = chromosomes.get(i).getSequenceName();
+			int length = chromosomes.get(i).getSequenceLength();
+			long quota = (long) Math.ceil((double) sampleSize * counts[i] / placedReads);
+			if(counts[i] <= quota) {
+				sample(samReader, chrName, 1, Integer.MAX_VALUE, Long.MAX_VALUE, samples[i]);
+				isFullyRead[i] = true;
+			} else {
+				long blockSize = Math.max(1, quota / SAMPLE_BLOCKS);
+				for(int block=0; block<SAMPLE_BLOCKS; block++) {
+					int start = (int) ((long) length * block / SAMPLE_BLOCKS) + 1;
+					int end = (int) ((long) length * (block + 1) / SAMPLE_BLOCKS);
+					sample(samReader, chrName, start, end, blockSize, samples[i]);
+				}
+			}
+			libSize.sampledReads += samples[i][0];
+			libSize.sampledSecondaryReads += samples[i][1];
+		}
+
+		// a reference without any sampled read takes the fraction of all samples
+		double pooledFraction = libSize.sampledReads == 0 ? 0 : (double) libSize.sampledSecondaryReads / libSize.sampledReads;
+		double variance = 0;
+		for(int i=0; i<chromosomes.size(); i++) {
+			if(isFullyRead[i]) {
+				libSize.size += counts[i] - samples[i][1];
+				continue;
+			}
+			double fraction = pooledFraction;
+			long sampledReads = libSize.sampledReads;
+			if(samples[i][0] > 0) {
+				fraction = (double) samples[i][1] / samples[i][0];
+				sampledReads = samples[i][0];
+			}
+			libSize.size += counts[i] * (1 - fraction);
+			if(sampledReads > 0) {
+				variance += (double) counts[i] * counts[i] * fraction * (1 - fraction) / sampledReads;
+			}
+		}
+		libSize.error = Math.sqrt(variance);
+		return libSize;
+	}
+
+	/**
+	 * Count non-secondary reads by decoding all reads. <br>
+	 * It is the same as "samtools view -F 256 -c".
+	 *
+	 * @param samReader
+	 * @return
+	 */
+	public static long count (SamReader samReader) {
+		long reads = 0;
+		try (SAMRecordIterator iterator = samReader.iterator()) {
+			while(iterator.hasNext()) {
+				if(!iterator.next().isSecondaryAlignment()) {
+					reads++;
+				}
+			}
+		}
+		return reads;
+	}
+
+	/**
+	 * Count reads starting in [start, end] of a chromosome, up to a given number of reads.
+	 *
+	 * @param samReader
+	 * @param chrName
+	 * @param start
+	 * @param end
+	 * @param limit
+	 * @param counts {reads, secondary reads} to be added
+	 */
+	private static void sample (SamReader samReader, String chrName, int start, int end, long limit, long[] counts) {
+		long reads = 0;
+		try (SAMRecordIterator iterator = samReader.queryOverlapping(chrName, start, end)) {
+			while(iterator.hasNext() && reads < limit) {
+				SAMRecord samRecord = iterator.next();
+				int alignmentStart = samRecord.getAlignmentStart();
+				if(alignmentStart < start) {
+					continue;
+				}
+				if(alignmentStart > end) {
+					break;
+				}
+				reads++;
+				if(samRecord.isSecondaryAlignment()) {
+					counts[1]++;
+				}
+			}
+		}
+		counts[0] += reads;
+	}
+
+	public String getSummary () {
+		return "Library size from the bam index: "+String.format("%.1f", size)+" (+/- "+String.format("%.1f", error)+", "
+				+indexedReads+" indexed reads, "+sampledSecondaryReads+" secondary alignments in "+sampledReads+" sampled reads)";
+	}
+}
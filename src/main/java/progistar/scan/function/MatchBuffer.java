@@ -0,0 +1,40 @@
+package progistar.scan.function;
+
+import java.util.Arrays;
+
+/**
+ * Reusable MatchVisitor collecting matches into primitive arrays. <br>
+ * One buffer is used per thread (or per task), so it is not thread-safe.
+ *
+ */
+public class MatchBuffer implements MatchVisitor {
+
+	public int size = 0;
+	public int[] keywordIndices = new int[16];
+	public char[] strands = new char[16];
+	public int[] frames = new int[16];
+	public int[] starts = new int[16];
+	public int[] ends = new int[16];
+
+	public void clear () {
+		size = 0;
+	}
+
+	@Override
+	public void visit (int keywordIdx, char strand, int frame, int start, int end) {
+		if(size == keywordIndices.length) {
+			int newSize = size * 2;
+			keywordIndices = Arrays.copyOf(keywordIndices, newSize);
+			strands = Arrays.copyOf(strands, newSize);
+			frames = Arrays.copyOf(frames, newSize);
+			starts = Arrays.copyOf(starts, newSize);
+			ends = Arrays.copyOf(ends, newSize);
+		}
+		keywordIndices[size] = keywordIdx;
+		strands[size] = strand;
+		frames[size] = frame;
+		starts[size] = start;
+		ends[size] = end;
+		size++;
+	}
+}
@@ -0,0 +1,19 @@
+package progistar.scan.function;
+
+/**
+ * Callback of the matching engines. <br>
+ * It is called for each match, so the engines do not need to allocate any emit object.
+ *
+ */
+public interface MatchVisitor {
+
+	/**
+	 *
+	 * @param keywordIdx index of the matched keyword (see PeptideMatcher.getKeyword)
+	 * @param strand strand of the match ('+' or '-')
+	 * @param frame reading frame of the match
+	 * @param start zero-based amino acid start position in the frame (inclusive)
+	 * @param end zero-based amino acid end position in the frame (inclusive)
+	 */
+	public void visit (int keywordIdx, char strand, int frame, int start, int end);
+}
@@ -1,6 +1,7 @@
 package progistar.scan.function;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.ahocorasick.trie.Emit;
@@ -8,17 +9,69 @@ import org.ahocorasick.trie.Trie;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.fastq.FastqRecord;
+import htsjdk.samtools.SamReader;
 import progistar.scan.data.BarcodeTable;
+import progistar.scan.data.FastqBatch;
 import progistar.scan.data.Constants;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.LocationInformation;
 import progistar.scan.data.Parameters;
+import progistar.scan.data.ReadAlignment;
 import progistar.scan.run.Main;
 import progistar.scan.run.Task;
 
 public abstract class Mode {
 	
+	private static final ArrayList<Character> BOTH_STRANDS = new ArrayList<Character>(Arrays.asList('+', '-'));
+	// segment and orientation of a read: R1 forward, R1 reverse, R2 forward and R2 reverse
+	// a read without the first segment flag is R2 (see getStrandedness)
+	private static final int[] CANDIDATE_FLAGS = {0x40, 0x50, 0x00, 0x10};
+	// reads between the checks for idle workers (see Task.splitRunning)
+	private static final int SPLIT_CHECK_READS = 4096;
+	
+	/**
+	 * Return the records of a given task. <br>
+	 * A task owning a file span reads the span only, through the decode pipeline if inflate threads are given. Otherwise, it queries the genomic range (mapped reads)
+	 * or the unmapped reads.
+	 * 
+	 * @param samReader
+	 * @param task
+	 * @return
+	 */
+	protected static SAMRecordIterator query (SamReader samReader, Task task) {
+		if(task.fileSpan != null && Parameters.inflateThreadNum > 0) {
+			return new PipelinedRecordIterator(Parameters.bamFile, samReader.getFileHeader(), task.fileSpan);
+		} else if(task.fileSpan != null) {
+			return samReader.indexing().iterator(task.fileSpan);
+		} else if(task.readType == Constants.MAPPED_READS) {
+			return samReader.queryOverlapping(task.chrName, task.start, task.end);
+		} else {
+			return samReader.queryUnmapped();
+		}
+	}
+	
+	/**
+	 * Return true if a match of target mode is at a target location. <br>
+	 * In a cluster of targets, the match is counted once per target at its location,
+	 * the same as querying each target alone.
+	 * 
+	 * @param task
+	 * @param matchedLocation
+	 * @param barcodeOrdinal
+	 * @return
+	 */
+	private static boolean isTargetLocation (Task task, LocationInformation matchedLocation, int barcodeOrdinal) {
+		if(task.targetCluster == null) {
+			return task.records.get(task.currentRecordIdx).location.equalsIgnoreCase(matchedLocation.location);
+		}
+		
+		int targetCount = task.targetCluster.getTargetCount(matchedLocation.inputSequence, matchedLocation.location);
+		if(targetCount > 1) {
+			matchedLocation.readCounts.add(barcodeOrdinal, targetCount - 1);
+		}
+		return targetCount > 0;
+	}
+	
 	private static ArrayList<Character> getStrandedness (int flags) {
 		ArrayList<Character> strands = new ArrayList<Character>();
 		boolean isFirstSegment = (0x40 & flags) == 0x40 ? true : false;
@@ -90,36 +143,76 @@ public abstract class Mode {
 	 * Plus, task is not shared between threads.
 	 * 
 	 * @param iterator
-	 * @param trie
+	 * @param trie only for nucleotide sequences
+	 * @param matcher only for peptide sequences
 	 * @param task
 	 */
-	public static void find (SAMRecordIterator iterator, Trie trie, Task task) {
+	public static void find (SAMRecordIterator iterator, Trie trie, PeptideMatcher matcher, Task task) {
 		int count = 0;
+		MatchBuffer matches = new MatchBuffer();
+		ReadQuality quality = new ReadQuality();
+		ReadAlignment alignment = new ReadAlignment();
+		// strandedness is decided after all tasks (see resolveStrands)
+		boolean isStrandPending = Parameters.strandedness.equalsIgnoreCase(Constants.AUTO_STRANDED);
 		while (iterator.hasNext()) {
             SAMRecord samRecord = iterator.next();
             count ++;
             
+            // a file span task split while running owns the reads starting in [minReadStart, maxReadStart]
+            if(task.fileSpan != null && task.readType == Constants.MAPPED_READS) {
+            	int alignmentStart = samRecord.getAlignmentStart();
+            	// the rest of the span belongs to the forked task
+            	if(alignmentStart > task.maxReadStart) {
+            		break;
+            	}
+            	if(alignmentStart < task.minReadStart) {
+            		continue;
+            	}
+            	if(task.forker != null && count % SPLIT_CHECK_READS == 0 && task.forker.isIdle()) {
+            		Task rest = task.splitRunning(SamReaderPool.get(), alignmentStart);
+            		if(rest != null) {
+            			task.forker.fork(rest);
+            		}
+            	}
+            }
+            
             boolean isPass = false;
+            // [start, end) of the read to be matched (null: the whole read)
+            int[] readRange = null;
             // if the task is for mapped reads
             // only reads with below that genomic start are retrieved
-            if(task.readType == Constants.MAPPED_READS) {
+            // a stream task takes all reads in file order (see StreamScanRun)
+            if(task.readType == Constants.MAPPED_READS || task.readType == Constants.ALL_READS) {
             	if(Parameters.count.equalsIgnoreCase(Constants.COUNT_PRIMARY) && samRecord.isSecondaryAlignment()) {
             		isPass = true;
             	}
             	
             	// In case of ScanMode, it should check the task range
             	// In case of TargetMode, iterator is already checked by a previous call.
-            	if(task.type == Constants.TYPE_SCAN_MODE_TASK) {
+            	if(task.type == Constants.TYPE_SCAN_MODE_TASK && task.fileSpan == null && task.readType == Constants.MAPPED_READS) {
             		if( !(samRecord.getAlignmentStart() >= task.start && 
             				samRecord.getAlignmentStart() <= task.end) ) {
             			isPass = true;
             		}
             	}
+            	// In case of TargetMode, only reads overlapping the targets are processed,
+            	// and only the read offsets reaching the targets are matched.
+            	if(task.type == Constants.TYPE_TARGET_MODE_TASK && task.targetCluster != null) {
+            		readRange = task.targetCluster.getReadRange(samRecord);
+            		if(readRange == null) {
+            			isPass = true;
+            		}
+            	}
             }
             // if the task is for unmapped reads
             // only process reads given range
             else if(task.readType == Constants.UNMAPPED_READS) {
-            	if(count < task.start || count > task.end) {
+            	// a file span task owns its slice of the unmapped tail
+            	if(task.fileSpan != null) {
+            		if(samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            			isPass = true;
+            		}
+            	} else if(count < task.start || count > task.end) {
         			isPass = true;
         		}
             }
@@ -131,8 +224,8 @@ public abstract class Mode {
             
             // if barcode id is null or others, pass the read
             // no worry about bulk RNA-seq because it should be "undefined" in the bulk RNA-seq.
-            String barcodeId = BarcodeTable.getBarcodeFromBam(samRecord);
-            if(barcodeId.equalsIgnoreCase(Constants.NULL_BARCODE_ID) || barcodeId.equalsIgnoreCase(Constants.OTHER_BARCODE_ID) ) {
+            int barcodeOrdinal = BarcodeTable.getBarcodeOrdinalFromBam(samRecord);
+            if(Parameters.isSingleCellMode && (barcodeOrdinal == BarcodeTable.NULL_BARCODE_ORDINAL || barcodeOrdinal == BarcodeTable.OTHER_BARCODE_ORDINAL)) {
             	//continue;
             }
             
@@ -141,81 +234,92 @@ public abstract class Mode {
             // a read is primary.
             // In case of target mode, we do not count the reads in this routine.
             if(!samRecord.isSecondaryAlignment() && task.type == Constants.TYPE_SCAN_MODE_TASK) {
-            	Double pReads = task.processedReads.get(barcodeId);
-            	if(pReads == null) {
-            		pReads = .0;
-            	}
-            	pReads++;
-            	task.processedReads.put(barcodeId, pReads);
+            	task.processedReads[barcodeOrdinal]++;
             }
             
             // Process each SAM record
             // determine strand
             int flags = samRecord.getFlags();
-            ArrayList<Character> strands = getStrandedness(flags);
-            
-            for(Character strand : strands) {
-            	String sequence = null;
-            	if(strand == '+') {
-            		sequence = samRecord.getReadString();
-            	} else {
-            		sequence = Translator.getReverseComplement(samRecord.getReadString());
+            ArrayList<Character> strands = null;
+            if(isStrandPending) {
+            	// XS tags of the whole BAM file are counted in scan mode
+            	if(task.type == Constants.TYPE_SCAN_MODE_TASK) {
+            		StrandDetection.count(samRecord, task);
             	}
-            	
-            	if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+            	strands = BOTH_STRANDS;
+            } else {
+            	strands = getStrandedness(flags);
+            }
+            quality.clear();
+            alignment.clear();
+            
+            if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+            	for(Character strand : strands) {
+            		String sequence = samRecord.getReadString();
+            		int shift = 0;
+            		if(readRange != null) {
+            			shift = strand == '+' ? readRange[0] : sequence.length() - readRange[1];
+            			sequence = sequence.substring(readRange[0], readRange[1]);
+            		}
+            		if(strand == '-') {
+            			sequence = Translator.getReverseComplement(sequence);
+            		}
+            		
             		Collection<Emit> emits = trie.parseText(sequence);
             		
             		for(Emit emit : emits) {
-        				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(samRecord, emit, 0, strand);
+            			// offsets of the emit are in the trimmed read
+        				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(samRecord, barcodeOrdinal, 
+        						emit.getStart() + shift, emit.getEnd() + shift, 0, strand, quality, alignment);
         				if(matchedLocation != null) {
         					matchedLocation.inputSequence = emit.getKeyword();
         					if(task.type == Constants.TYPE_TARGET_MODE_TASK) {
         						
         						// discard if the location is not matched
-        						int targetMappedTaskCurrentIdx = task.currentRecordIdx;
-        						if(!task.records.get(targetMappedTaskCurrentIdx).location
-        								.equalsIgnoreCase(matchedLocation.location)) {
+        						if(!isTargetLocation(task, matchedLocation, barcodeOrdinal)) {
         							continue;
         						}
         						
         					}
         					
-        					if(task.locTable.putLocation(matchedLocation)) {
+        					LocTable locTable = isStrandPending ? getStrandCandidates(task, flags, strand) : task.locTable;
+        					if(locTable.putLocation(matchedLocation)) {
         						matchedLocation.calMetaInfo();
         					}
         				}
         			}
-            	} else if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
-            		for(int fr=0; fr<3; fr++) {
-            			String peptide = Translator.translation(sequence, fr);
-            			// if it is il equal mode?
-            			if(Parameters.isILEqual) {
-            				peptide = peptide.replace("I", "L");
-            			}
-            			
-            			Collection<Emit> emits = trie.parseText(peptide);
+            	}
+            } else if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
+            	// all strands of the read are matched at once
+            	matches.clear();
+            	byte[] bases = samRecord.getReadBases();
+            	if(readRange != null) {
+            		matcher.match(bases, readRange[0], readRange[1] - readRange[0], strands, matches);
+            		shiftMatches(matches, readRange[0], bases.length - readRange[1]);
+            	} else {
+            		matcher.match(bases, strands, matches);
+            	}
+            	
+            	for(int i=0; i<matches.size; i++) {
+            		LocationInformation matchedLocation = LocationInformation.getMatchedLocation(samRecord, barcodeOrdinal, 
+            				matches.starts[i], matches.ends[i], matches.frames[i], matches.strands[i], quality, alignment);
+            		if(matchedLocation != null) {
+            			matchedLocation.inputSequence = matcher.getKeyword(matches.keywordIndices[i]);
+            			matchedLocation.sequenceId = matcher.getKeywordId(matches.keywordIndices[i]);
             			
-            			for(Emit emit : emits) {
-            				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(samRecord, emit, fr, strand);
-            				if(matchedLocation != null) {
-            					matchedLocation.inputSequence = emit.getKeyword();
-            					
-            					// we are only interested in the given region in case of target mode.
-            					if(task.type == Constants.TYPE_TARGET_MODE_TASK) {
-            						
-            						// discard if the location is not matched
-            						int targetMappedTaskCurrentIdx = task.currentRecordIdx;
-            						if(!task.records.get(targetMappedTaskCurrentIdx).location
-            								.equalsIgnoreCase(matchedLocation.location)) {
-            							continue;
-            						}
-            					}
-            					
-            					if(task.locTable.putLocation(matchedLocation)) {
-            						matchedLocation.calMetaInfo();
-            					}
+            			// we are only interested in the given region in case of target mode.
+            			if(task.type == Constants.TYPE_TARGET_MODE_TASK) {
+            				
+            				// discard if the location is not matched
+            				if(!isTargetLocation(task, matchedLocation, barcodeOrdinal)) {
+            					continue;
             				}
             			}
+            			
+            			LocTable locTable = isStrandPending ? getStrandCandidates(task, flags, matches.strands[i]) : task.locTable;
+            			if(locTable.putLocation(matchedLocation)) {
+            				matchedLocation.calMetaInfo();
+            			}
             		}
             	}
             }
@@ -225,71 +329,163 @@ public abstract class Mode {
 	}
 	
 	/**
-	 * For FASTQ mode.
+	 * Return the table of candidates matched on a given strand of reads with the same segment and orientation. <br>
+	 * Candidates are kept until the strandedness is decided.
+	 * 
+	 * @param task
+	 * @param flags
+	 * @param strand
+	 * @return
+	 */
+	private static LocTable getStrandCandidates (Task task, int flags, char strand) {
+		if(task.strandCandidates == null) {
+			task.strandCandidates = new LocTable[CANDIDATE_FLAGS.length * 2];
+		}
+		// index of CANDIDATE_FLAGS
+		int idx = ((flags & 0x40) == 0x40 ? 0 : 2) + ((flags & 0x10) == 0x10 ? 1 : 0);
+		idx = idx * 2 + (strand == '+' ? 0 : 1);
+		if(task.strandCandidates[idx] == null) {
+			task.strandCandidates[idx] = new LocTable();
+		}
+		return task.strandCandidates[idx];
+	}
+	
+	/**
+	 * Move the candidates of a task to its location table by the decided strandedness. <br>
+	 * A candidate is kept if its strand is the strand of its reads, so the table is the same as matching with the strandedness.
+	 * 
+	 * @param task
+	 */
+	public static void resolveStrands (Task task) {
+		if(task.strandCandidates == null) {
+			return;
+		}
+		for(int i=0; i<CANDIDATE_FLAGS.length; i++) {
+			for(Character strand : getStrandedness(CANDIDATE_FLAGS[i])) {
+				LocTable candidates = task.strandCandidates[i * 2 + (strand == '+' ? 0 : 1)];
+				if(candidates != null) {
+					task.locTable.merge(candidates);
+				}
+			}
+		}
+		task.strandCandidates = null;
+	}
+	
+	/**
+	 * Move matches of a part of a read to the offsets of the whole read. <br>
+	 * An amino acid offset and its frame are recomputed from the nucleotide offset.
+	 * 
+	 * @param matches
+	 * @param forwardShift offset of the part in the read
+	 * @param reverseShift offset of the part in the reverse complement of the read
+	 */
+	private static void shiftMatches (MatchBuffer matches, int forwardShift, int reverseShift) {
+		for(int i=0; i<matches.size; i++) {
+			int shift = matches.frames[i] + (matches.strands[i] == '+' ? forwardShift : reverseShift);
+			matches.frames[i] = shift % 3;
+			matches.starts[i] += shift / 3;
+			matches.ends[i] += shift / 3;
+		}
+	}
+	
+	/**
+	 * For FASTQ mode. <br>
+	 * Reads are matched in the chunk of the batch, and Strings are made only for the matches. <br>
+	 * The mates of paired-end reads are at the same index of records and mates, and each mate takes its own strands.
+	 * If Parameters.isFragmentCount, a pair is counted once: the processed reads count pairs,
+	 * and a match of the second mate is skipped if the first mate matches the same sequence.
 	 * Note that, task is a shared object between threads.
 	 * Do not implement an operation using a task object that may cause concurrence between threads.
 	 * 
-	 * @param records
-	 * @param trie
+	 * @param records single-end reads or the first mates
+	 * @param mates the second mates (null for single-end reads)
+	 * @param trie only for nucleotide sequences
+	 * @param matcher only for peptide sequences
 	 * @param task
-	 * @return
+	 * @param locTable the table of the calling thread
 	 */
-	public static LocTable find (ArrayList<FastqRecord> records, Trie trie, Task task) {
+	public static void find (FastqBatch records, FastqBatch mates, Trie trie, PeptideMatcher matcher, Task task, LocTable locTable) {
 		// Reads from a FASTQ file must be forwarded.
-		int flags = 0x00;
-		if(task.start == 0 || task.start == 1) {
-			flags |= 0x40; // first segment
-		} else if(task.start == 2) {
-			flags |= 0x80; // last segment
-		}
-        ArrayList<Character> strands = getStrandedness(flags);
-        LocTable locTable = new LocTable();
+        ArrayList<Character> firstStrands = getStrandedness(0x40); // first segment (or single-end)
+        ArrayList<Character> lastStrands = getStrandedness(0x80); // last segment
+        FastqBatch[] batches = mates == null ? new FastqBatch[] {records} : new FastqBatch[] {records, mates};
+        MatchBuffer matches = new MatchBuffer();
+        ReadQuality quality = new ReadQuality();
+        long[] processedReads = new long[task.processedReads.length];
+        // sequences matched by the first mate of a pair
+        ArrayList<String> fragmentHits = Parameters.isFragmentCount && mates != null ? new ArrayList<String>() : null;
         
-        for(FastqRecord fastqRecord : records) {
-        	for(Character strand : strands) {
-            	String sequence = null;
-            	if(strand == '+') {
-            		sequence = fastqRecord.getReadString();
-            	} else {
-            		sequence = Translator.getReverseComplement(fastqRecord.getReadString());
-            	}
-            	
-            	if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
-            		Collection<Emit> emits = trie.parseText(sequence);
-            		
-            		for(Emit emit : emits) {
-        				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(fastqRecord, emit, 0, strand);
-        				if(matchedLocation != null) {
-        					matchedLocation.inputSequence = emit.getKeyword();
-        					if(locTable.putLocation(matchedLocation)) {
-        						matchedLocation.calMetaInfo();
+        for(int index=0; index<records.size; index++) {
+        	if(fragmentHits != null) {
+        		fragmentHits.clear();
+        	}
+        	
+        	for(int mate=0; mate<batches.length; mate++) {
+        		FastqBatch batch = batches[mate];
+        		ArrayList<Character> strands = mate == 0 ? firstStrands : lastStrands;
+        		int barcodeOrdinal = BarcodeTable.getBarcodeOrdinalFromFASTQ(batch, index);
+        		if(mate == 0 || fragmentHits == null) {
+        			processedReads[barcodeOrdinal]++;
+        		}
+        		
+        		quality.clear();
+        		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+        			for(Character strand : strands) {
+        				Collection<Emit> emits = trie.parseText(batch.getBases(index, strand));
+        				
+        				for(Emit emit : emits) {
+        					LocationInformation matchedLocation = LocationInformation.getMatchedLocation(batch, index, barcodeOrdinal, emit, 0, strand, quality);
+        					if(matchedLocation != null) {
+        						matchedLocation.inputSequence = emit.getKeyword();
+        						putFragmentLocation(locTable, matchedLocation, fragmentHits, mate == 0);
         					}
         				}
         			}
-            	} else if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
-            		for(int fr=0; fr<3; fr++) {
-            			String peptide = Translator.translation(sequence, fr);
-            			// if it is il equal mode?
-            			if(Parameters.isILEqual) {
-            				peptide = peptide.replace("I", "L");
-            			}
-            			
-            			Collection<Emit> emits = trie.parseText(peptide);
-            			
-            			for(Emit emit : emits) {
-            				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(fastqRecord, emit, fr, strand);
-            				if(matchedLocation != null) {
-            					matchedLocation.inputSequence = emit.getKeyword();
-            					if(locTable.putLocation(matchedLocation)) {
-            						matchedLocation.calMetaInfo();
-            					}
-            				}
-            			}
-            		}
-            	}
-            }
+        		} else if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_PEPTIDE)) {
+        			// all strands of the read are matched at once
+        			matches.clear();
+        			matcher.match(batch.data, batch.baseStarts[index], batch.baseLengths[index], strands, matches);
+        			
+        			for(int i=0; i<matches.size; i++) {
+        				LocationInformation matchedLocation = LocationInformation.getMatchedLocation(batch, index, barcodeOrdinal, 
+        						matches.starts[i], matches.ends[i], matches.frames[i], matches.strands[i], quality);
+        				if(matchedLocation != null) {
+        					matchedLocation.inputSequence = matcher.getKeyword(matches.keywordIndices[i]);
+        					matchedLocation.sequenceId = matcher.getKeywordId(matches.keywordIndices[i]);
+        					putFragmentLocation(locTable, matchedLocation, fragmentHits, mate == 0);
+        				}
+        			}
+        		}
+        	}
         }
         
-        return locTable;
+        // the task is shared by threads
+        for(int i=0; i<processedReads.length; i++) {
+        	if(processedReads[i] != 0) {
+        		task.sharedProcessedReads[i].add(processedReads[i]);
+        	}
+        }
+	}
+	
+	/**
+	 * Put a FASTQ match into a location table. <br>
+	 * With fragmentHits, a match of the second mate is skipped if the first mate matched the same sequence.
+	 * 
+	 * @param locTable
+	 * @param matchedLocation
+	 * @param fragmentHits null if every mate is counted
+	 * @param isFirstMate
+	 */
+	private static void putFragmentLocation (LocTable locTable, LocationInformation matchedLocation, ArrayList<String> fragmentHits, boolean isFirstMate) {
+		if(fragmentHits != null) {
+			if(isFirstMate) {
+				fragmentHits.add(matchedLocation.inputSequence);
+			} else if(fragmentHits.contains(matchedLocation.inputSequence)) {
+				return;
+			}
+		}
+		if(locTable.putLocation(matchedLocation)) {
+			matchedLocation.calMetaInfo();
+		}
 	}
 }
@@ -0,0 +1,561 @@
+package progistar.scan.function;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed bytes of a gzip file inflated by a thread pool. <br>
+ * BGZF: the block sizes are in the headers, so blocks are read in order and inflated in parallel. <br>
+ * Other gzip: members cannot be found without inflating them. The file is cut into segments,
+ * and each segment is inflated from the first member header in it (speculative). A segment is accepted only if it starts
+ * where the accepted bytes end, and each member is verified by its CRC32 and size.
+ * After a rejected segment, decoding restarts at the end of the accepted bytes. <br>
+ * A member larger than MAX_SEGMENT_OUTPUT (e.g. a single-member gzip) is inflated by one thread ahead of the reader,
+ * so a single-member gzip is not inflated in parallel. <br>
+ * A corrupt member is an error, and only trailing bytes which are not a member are ignored (as in gzip). <br>
+ * BGZF blocks can also be read from a stream (see openBGZF), e.g. a BAM file from stdin.
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final int BGZF_FOOTER_SIZE = 8;
+	private static final int GZIP_HEADER_SIZE = 10;
+	private static final int GZIP_TRAILER_SIZE = 8;
+	private static final int FLAG_HCRC = 0x02;
+	private static final int FLAG_EXTRA = 0x04;
+	private static final int FLAG_NAME = 0x08;
+	private static final int FLAG_COMMENT = 0x10;
+	private static final int FLAG_RESERVED = 0xE0;
+
+	// compressed bytes of a speculative segment
+	private static final int SEGMENT_SIZE = 1 << 20;
+	private static final int SEGMENTS_PER_THREAD = 2;
+	// decompressed bytes kept by a segment before it is streamed
+	private static final int MAX_SEGMENT_OUTPUT = 8 << 20;
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int QUEUE_SIZE = 64;
+	private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+
+	// null for a stream
+	private FileChannel channel;
+	private InputStream source;
+	private long fileLength;
+	private int threadNum;
+	private ExecutorService inflatePool;
+	// an empty chunk is the end
+	private ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+	private byte[] chunk = new byte[0];
+	private int pos = 0;
+	private boolean isDone = false;
+	private volatile boolean isClosed = false;
+	// the error of the producer, thrown by the reader at the end of the chunks
+	private volatile Exception error = null;
+
+	/**
+	 * Inflated members starting in a segment.
+	 */
+	private static class Segment {
+		// offset of the first member. -1 if there is no member header.
+		long start = -1;
+		// offset after the last inflated member
+		long end = -1;
+		ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		// the last member is not inflated to the end (too large)
+		MemberDecoder decoder = null;
+		boolean isFailed = false;
+	}
+
+	/**
+	 * Open a FASTQ file. A gzip file is inflated by a given number of threads, and the others are read as they are.
+	 *
+	 * @param file
+	 * @param threadNum
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open (File file, int threadNum) throws IOException {
+		byte[] header = new byte[BGZF_HEADER_SIZE];
+		int length = 0;
+		try (FileInputStream input = new FileInputStream(file)) {
+			int size = 0;
+			while(length < header.length && (size = input.read(header, length, header.length - length)) != -1) {
+				length += size;
+			}
+		}
+		if(length < GZIP_HEADER_SIZE || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B) {
+			return new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
+		}
+		return new ParallelGzipInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ), null, threadNum, isBGZF(header, length));
+	}
+
+	/**
+	 * Inflate BGZF blocks of a stream on a given number of threads. <br>
+	 * The blocks are read in order, so the stream does not need to be a file.
+	 *
+	 * @param input
+	 * @param threadNum
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openBGZF (InputStream input, int threadNum) throws IOException {
+		return new ParallelGzipInputStream(null, input, threadNum, true);
+	}
+
+	public static boolean isBGZF (byte[] header, int length) {
+		return length >= BGZF_HEADER_SIZE && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B &&
+				(header[3] & FLAG_EXTRA) != 0 && header[12] == 'B' && header[13] == 'C';
+	}
+
+	private ParallelGzipInputStream (FileChannel channel, InputStream source, int threadNum, boolean isBGZF) throws IOException {
+		this.channel = channel;
+		this.source = source;
+		this.fileLength = channel == null ? -1 : channel.size();
+		this.threadNum = threadNum;
+		this.inflatePool = Executors.newFixedThreadPool(threadNum, runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		Thread producer = new Thread(() -> {
+			try {
+				if(isBGZF) {
+					inflateBlocks();
+				} else {
+					inflateMembers();
+				}
+			} catch(Exception e) {
+				error = e;
+			} finally {
+				inflatePool.shutdownNow();
+			}
+			try {
+				put(new byte[0]);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		});
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private void put (byte[] data) throws InterruptedException {
+		while(!isClosed && !chunks.offer(data, 100, TimeUnit.MILLISECONDS));
+	}
+
+	private byte[] readFully (long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of file at "+(position + buffer.position()));
+			}
+		}
+		return buffer.array();
+	}
+
+	//////////////////// BGZF ////////////////////
+
+	private void inflateBlocks () throws Exception {
+		ArrayDeque<Future<byte[]>> aheadBlocks = new ArrayDeque<Future<byte[]>>();
+		int blocksAhead = threadNum * BLOCKS_AHEAD_PER_THREAD;
+		long address = 0;
+		boolean isEnd = false;
+		while(!isClosed && (!isEnd || !aheadBlocks.isEmpty())) {
+			while(aheadBlocks.size() < blocksAhead && !isEnd) {
+				final byte[] compressed = readBlock(address);
+				if(compressed == null) {
+					isEnd = true;
+					break;
+				}
+				final long blockAddress = address;
+				address += compressed.length;
+				aheadBlocks.add(inflatePool.submit(() -> inflateBlock(blockAddress, compressed)));
+			}
+			if(aheadBlocks.isEmpty()) {
+				break;
+			}
+			byte[] data = aheadBlocks.poll().get();
+			// the EOF marker is empty
+			if(data.length > 0) {
+				put(data);
+			}
+		}
+	}
+
+	/**
+	 * The BGZF block at a given address of the file, or the next block of the stream. <br>
+	 * Return null at the end.
+	 */
+	private byte[] readBlock (long address) throws IOException {
+		if(source == null) {
+			if(address >= fileLength) {
+				return null;
+			}
+			byte[] header = readFully(address, BGZF_HEADER_SIZE);
+			return readFully(address, getBlockSize(header));
+		}
+
+		byte[] header = new byte[BGZF_HEADER_SIZE];
+		int length = readFully(source, header, 0, BGZF_HEADER_SIZE);
+		if(length == 0) {
+			return null;
+		}
+		if(!isBGZF(header, length)) {
+			throw new IOException("Invalid BGZF block at "+address);
+		}
+		byte[] block = Arrays.copyOf(header, getBlockSize(header));
+		if(readFully(source, block, BGZF_HEADER_SIZE, block.length - BGZF_HEADER_SIZE) != block.length - BGZF_HEADER_SIZE) {
+			throw new IOException("Truncated BGZF block at "+address);
+		}
+		return block;
+	}
+
+	/**
+	 * Read bytes until the given length or the end of a stream.
+	 *
+	 * @return the number of bytes read
+	 */
+	static int readFully (InputStream input, byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while(total < length) {
+			int size = input.read(buffer, offset + total, length - total);
+			if(size == -1) {
+				break;
+			}
+			total += size;
+		}
+		return total;
+	}
+
+	private static int getBlockSize (byte[] header) {
+		return ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+	}
+
+	private static byte[] inflateBlock (long address, byte[] compressed) throws DataFormatException {
+		int length = compressed.length;
+		int inflatedSize = (compressed[length-4] & 0xFF) | ((compressed[length-3] & 0xFF) << 8) |
+				((compressed[length-2] & 0xFF) << 16) | ((compressed[length-1] & 0xFF) << 24);
+		byte[] data = new byte[inflatedSize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed, BGZF_HEADER_SIZE, length - BGZF_HEADER_SIZE - BGZF_FOOTER_SIZE);
+			int inflated = 0;
+			while(inflated < inflatedSize) {
+				int size = inflater.inflate(data, inflated, inflatedSize - inflated);
+				if(size == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new DataFormatException("Truncated BGZF block at "+address);
+				}
+				inflated += size;
+			}
+		} finally {
+			inflater.end();
+		}
+		return data;
+	}
+
+	//////////////////// gzip members ////////////////////
+
+	private void inflateMembers () throws Exception {
+		long offset = 0;
+		while(!isClosed && offset < fileLength) {
+			ArrayList<Future<Segment>> segments = new ArrayList<Future<Segment>>();
+			for(int i=0; i<threadNum * SEGMENTS_PER_THREAD; i++) {
+				final long segmentStart = offset + (long) i * SEGMENT_SIZE;
+				if(segmentStart >= fileLength) {
+					break;
+				}
+				final long segmentEnd = Math.min(segmentStart + SEGMENT_SIZE, fileLength);
+				// the first segment starts at a verified member
+				final boolean isVerified = i == 0;
+				segments.add(inflatePool.submit(() -> inflateSegment(segmentStart, segmentEnd, isVerified)));
+			}
+
+			// accept the segments in order
+			long acceptedEnd = offset;
+			for(Future<Segment> future : segments) {
+				Segment segment = future.get();
+				if(isClosed) {
+					break;
+				}
+				// no member or inside the accepted bytes
+				if(segment.start == -1 || segment.start < acceptedEnd) {
+					continue;
+				}
+				// a member starts between the segments: restart at the accepted end
+				if(segment.start > acceptedEnd) {
+					break;
+				}
+				if(segment.isFailed) {
+					// a corrupt member is an error, as in gzip
+					if(segment.start == 0 || isMemberMagic(segment.start)) {
+						throw new IOException("Invalid gzip member at "+segment.start);
+					}
+					// gzip also ignores trailing bytes which are not a member
+					System.out.println("Trailing bytes after the last gzip member are ignored: "+(fileLength - segment.start)+" bytes");
+					break;
+				}
+				for(byte[] data : segment.chunks) {
+					put(data);
+				}
+				acceptedEnd = segment.end;
+				// a large member is streamed, and the next round starts after the member
+				if(segment.decoder != null) {
+					cancel(segments);
+					byte[] data = null;
+					while(!isClosed && (data = segment.decoder.read()) != null) {
+						put(data);
+					}
+					acceptedEnd = segment.decoder.end;
+					break;
+				}
+			}
+			cancel(segments);
+
+			// trailing bytes which are not a member
+			if(acceptedEnd == offset) {
+				break;
+			}
+			offset = acceptedEnd;
+		}
+	}
+
+	// running segments are not interrupted, because an interrupt closes the file channel
+	private static void cancel (ArrayList<Future<Segment>> segments) {
+		for(Future<Segment> future : segments) {
+			future.cancel(false);
+		}
+	}
+
+	private Segment inflateSegment (long segmentStart, long segmentEnd, boolean isVerified) throws IOException {
+		Segment segment = new Segment();
+		segment.start = isVerified ? segmentStart : findMemberHeader(segmentStart, segmentEnd);
+		if(segment.start == -1) {
+			return segment;
+		}
+
+		long memberStart = segment.start;
+		long outputSize = 0;
+		try {
+			while(memberStart < segmentEnd && memberStart < fileLength && !isClosed) {
+				MemberDecoder decoder = new MemberDecoder(memberStart);
+				byte[] data = null;
+				while((data = decoder.read()) != null) {
+					segment.chunks.add(data);
+					outputSize += data.length;
+					if(outputSize > MAX_SEGMENT_OUTPUT && !decoder.isFinished) {
+						segment.decoder = decoder;
+						segment.end = memberStart;
+						return segment;
+					}
+				}
+				memberStart = decoder.end;
+				segment.end = memberStart;
+			}
+		} catch (IOException | DataFormatException e) {
+			// a speculative start is not a member
+			segment.isFailed = true;
+			if(!isVerified) {
+				segment.start = -1;
+			}
+		}
+		// the members before a failed member are accepted, and the failed member is checked by the next verified segment
+		if(isVerified && segment.isFailed && segment.end != -1) {
+			segment.isFailed = false;
+		}
+		return segment;
+	}
+
+	// the magic and the deflate method of a gzip member
+	private boolean isMemberMagic (long offset) throws IOException {
+		if(offset + 3 > fileLength) {
+			return false;
+		}
+		byte[] bytes = readFully(offset, 3);
+		return (bytes[0] & 0xFF) == 0x1F && (bytes[1] & 0xFF) == 0x8B && bytes[2] == 8;
+	}
+
+	/**
+	 * The first offset in [start, end) which looks like a gzip member header, or -1.
+	 */
+	private long findMemberHeader (long start, long end) throws IOException {
+		int length = (int) Math.min(end - start + GZIP_HEADER_SIZE, fileLength - start);
+		byte[] bytes = readFully(start, length);
+		for(int i=0; i + GZIP_HEADER_SIZE <= length && start + i < end; i++) {
+			if((bytes[i] & 0xFF) == 0x1F && (bytes[i+1] & 0xFF) == 0x8B && bytes[i+2] == 8 &&
+					(bytes[i+3] & FLAG_RESERVED) == 0 && (bytes[i+8] == 0 || bytes[i+8] == 2 || bytes[i+8] == 4) &&
+					((bytes[i+9] & 0xFF) <= 13 || (bytes[i+9] & 0xFF) == 255)) {
+				return start + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Inflate a gzip member in chunks.
+	 */
+	private class MemberDecoder {
+		private Inflater inflater = new Inflater(true);
+		private CRC32 crc = new CRC32();
+		private long size = 0;
+		private long inputOffset;
+		private byte[] input;
+		// offset after the member
+		long end = -1;
+		boolean isFinished = false;
+
+		MemberDecoder (long start) throws IOException {
+			int length = (int) Math.min(CHUNK_SIZE, fileLength - start);
+			input = readFully(start, length);
+			if(length < GZIP_HEADER_SIZE || (input[0] & 0xFF) != 0x1F || (input[1] & 0xFF) != 0x8B || input[2] != 8 ||
+					(input[3] & FLAG_RESERVED) != 0) {
+				throw new IOException("Not a gzip member at "+start);
+			}
+			int flags = input[3] & 0xFF;
+			int headerSize = GZIP_HEADER_SIZE;
+			if((flags & FLAG_EXTRA) != 0) {
+				headerSize += 2 + ((input[headerSize] & 0xFF) | ((input[headerSize+1] & 0xFF) << 8));
+			}
+			if((flags & FLAG_NAME) != 0) {
+				while(headerSize < length && input[headerSize] != 0) headerSize++;
+				headerSize++;
+			}
+			if((flags & FLAG_COMMENT) != 0) {
+				while(headerSize < length && input[headerSize] != 0) headerSize++;
+				headerSize++;
+			}
+			if((flags & FLAG_HCRC) != 0) {
+				headerSize += 2;
+			}
+			if(headerSize >= length) {
+				throw new IOException("Too long gzip header at "+start);
+			}
+			inflater.setInput(input, headerSize, length - headerSize);
+			inputOffset = start + length;
+		}
+
+		/**
+		 * The next inflated chunk, or null at the end of the member.
+		 */
+		byte[] read () throws IOException, DataFormatException {
+			if(isFinished) {
+				return null;
+			}
+			byte[] data = new byte[CHUNK_SIZE];
+			int length = 0;
+			while(length < data.length && !inflater.finished()) {
+				int size = inflater.inflate(data, length, data.length - length);
+				if(size == 0) {
+					if(inflater.needsDictionary()) {
+						throw new DataFormatException("Dictionary is not supported");
+					}
+					if(inflater.needsInput()) {
+						int inputSize = (int) Math.min(CHUNK_SIZE, fileLength - inputOffset);
+						if(inputSize <= 0) {
+							throw new IOException("Truncated gzip member");
+						}
+						input = readFully(inputOffset, inputSize);
+						inputOffset += inputSize;
+						inflater.setInput(input);
+					}
+				}
+				length += size;
+			}
+			crc.update(data, 0, length);
+			size += length;
+
+			if(inflater.finished()) {
+				finish();
+				if(length == 0) {
+					return null;
+				}
+			}
+			return length == data.length ? data : Arrays.copyOf(data, length);
+		}
+
+		private void finish () throws IOException {
+			long trailerOffset = inputOffset - inflater.getRemaining();
+			inflater.end();
+			byte[] trailer = readFully(trailerOffset, GZIP_TRAILER_SIZE);
+			long trailerCRC = (trailer[0] & 0xFFL) | ((trailer[1] & 0xFFL) << 8) | ((trailer[2] & 0xFFL) << 16) | ((trailer[3] & 0xFFL) << 24);
+			long trailerSize = (trailer[4] & 0xFFL) | ((trailer[5] & 0xFFL) << 8) | ((trailer[6] & 0xFFL) << 16) | ((trailer[7] & 0xFFL) << 24);
+			if(trailerCRC != crc.getValue() || trailerSize != (size & 0xFFFFFFFFL)) {
+				throw new IOException("CRC error of gzip member at "+trailerOffset);
+			}
+			end = trailerOffset + GZIP_TRAILER_SIZE;
+			isFinished = true;
+		}
+	}
+
+	//////////////////// InputStream ////////////////////
+
+	private boolean nextChunk () throws IOException {
+		while(!isDone && pos == chunk.length) {
+			try {
+				chunk = chunks.take();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			pos = 0;
+			isDone = chunk.length == 0;
+		}
+		if(isDone && error != null) {
+			throw error instanceof IOException ? (IOException) error : new IOException(error);
+		}
+		return !isDone;
+	}
+
+	@Override
+	public int read () throws IOException {
+		if(!nextChunk()) {
+			return -1;
+		}
+		return chunk[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read (byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextChunk()) {
+			return -1;
+		}
+		int length = Math.min(len, chunk.length - pos);
+		System.arraycopy(chunk, pos, b, off, length);
+		pos += length;
+		return length;
+	}
+
+	@Override
+	public void close () throws IOException {
+		isClosed = true;
+		chunks.clear();
+		inflatePool.shutdownNow();
+		if(channel != null) {
+			channel.close();
+		}
+		if(source != null) {
+			source.close();
+		}
+	}
+}
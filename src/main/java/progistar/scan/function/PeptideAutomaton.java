@@ -0,0 +1,272 @@
+package progistar.scan.function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over amino acids stored in double-array form. <br>
+ * A transition from state s by code c goes to t = base[s] + c if check[t] == s, otherwise it follows fail[s]. <br>
+ * All tables are primitive arrays, and matches are reported through MatchVisitor without any allocation.
+ *
+ */
+public class PeptideAutomaton {
+
+	public static final int ROOT = 0;
+	// code 0 is reserved for unknown amino acids (X, stop codon and so on).
+	public static final int UNKNOWN_CODE = 0;
+	public static final int ALPHABET_SIZE = 27;
+
+	private static final int FREE = -1;
+	private static final int[] AA_TO_CODE = new int[128];
+
+	static {
+		for(char aa='A'; aa<='Z'; aa++) {
+			AA_TO_CODE[aa] = aa - 'A' + 1;
+			AA_TO_CODE[Character.toLowerCase(aa)] = aa - 'A' + 1;
+		}
+		// unknown amino acid
+		AA_TO_CODE['X'] = UNKNOWN_CODE;
+		AA_TO_CODE['x'] = UNKNOWN_CODE;
+	}
+
+	private int[] base;
+	private int[] check;
+	private int[] fail;
+	// keyword index ending at each state (-1 if there is no keyword)
+	private int[] terminal;
+	// the nearest state in the failure chain having a keyword (-1 if there is no such state)
+	private int[] dictionaryLink;
+	private int[] keywordLengths;
+
+	private PeptideAutomaton () {}
+
+	public static int toCode (char aa) {
+		return aa < 128 ? AA_TO_CODE[aa] : UNKNOWN_CODE;
+	}
+
+	/**
+	 * Build an automaton from unique keywords. <br>
+	 * Keyword index is the index of the given list. <br>
+	 * The keywords are sorted, and each trie node (a range of the sorted keywords sharing a prefix)
+	 * is placed into the double-array directly, so no pointer-based trie is built.
+	 *
+	 * @param keywords
+	 * @return
+	 */
+	public static PeptideAutomaton build (ArrayList<String> keywords) {
+		PeptideAutomaton automaton = new PeptideAutomaton();
+		int size = keywords.size();
+
+		automaton.keywordLengths = new int[size];
+		Integer[] sorted = new Integer[size];
+		for(int i=0; i<size; i++) {
+			sorted[i] = i;
+			automaton.keywordLengths[i] = keywords.get(i).length();
+		}
+		Arrays.sort(sorted, (k1, k2) -> keywords.get(k1).compareTo(keywords.get(k2)));
+
+		int capacity = Math.max(size * 4, ALPHABET_SIZE * 2);
+		automaton.base = new int[capacity];
+		automaton.check = new int[capacity];
+		automaton.terminal = new int[capacity];
+		Arrays.fill(automaton.check, FREE);
+		Arrays.fill(automaton.terminal, -1);
+		automaton.check[ROOT] = ROOT;
+
+		// stack of nodes: state, depth, start of the range, end of the range (exclusive)
+		int[] stack = new int[4 * 64];
+		int top = 0;
+		stack[top++] = ROOT; stack[top++] = 0; stack[top++] = 0; stack[top++] = size;
+
+		int[] childCodes = new int[ALPHABET_SIZE];
+		int[] childStarts = new int[ALPHABET_SIZE];
+		int[] childEnds = new int[ALPHABET_SIZE];
+		int searchFrom = 1;
+		int maxState = ROOT;
+		int numOfStates = 1;
+
+		while(top > 0) {
+			int end = stack[--top];
+			int start = stack[--top];
+			int depth = stack[--top];
+			int state = stack[--top];
+
+			// a keyword ending at this node comes first in the sorted range
+			while(start < end && keywords.get(sorted[start]).length() == depth) {
+				automaton.terminal[state] = sorted[start];
+				start++;
+			}
+
+			// group the range by the next amino acid
+			int numOfChildren = 0;
+			for(int i=start; i<end; i++) {
+				int code = toCode(keywords.get(sorted[i]).charAt(depth));
+				if(numOfChildren == 0 || childCodes[numOfChildren-1] != code) {
+					childCodes[numOfChildren] = code;
+					childStarts[numOfChildren] = i;
+					numOfChildren++;
+				}
+				childEnds[numOfChildren-1] = i+1;
+			}
+			if(numOfChildren == 0) {
+				continue;
+			}
+
+			// find the smallest base which can hold all children
+			int b = Math.max(1, searchFrom - childCodes[0]);
+			while(true) {
+				automaton.ensureCapacity(b + ALPHABET_SIZE);
+				boolean isFit = true;
+				for(int i=0; i<numOfChildren; i++) {
+					if(automaton.check[b + childCodes[i]] != FREE) {
+						isFit = false;
+						break;
+					}
+				}
+				if(isFit) {
+					break;
+				}
+				b++;
+			}
+
+			automaton.base[state] = b;
+			for(int i=0; i<numOfChildren; i++) {
+				int child = b + childCodes[i];
+				automaton.check[child] = state;
+				maxState = Math.max(maxState, child);
+				numOfStates++;
+
+				if(top + 4 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				stack[top++] = child; stack[top++] = depth+1; stack[top++] = childStarts[i]; stack[top++] = childEnds[i];
+			}
+
+			// move the search pointer to the first free slot
+			while(searchFrom < automaton.check.length && automaton.check[searchFrom] != FREE) {
+				searchFrom++;
+			}
+		}
+
+		automaton.ensureCapacity(maxState + ALPHABET_SIZE + 1);
+		automaton.fail = new int[automaton.check.length];
+		automaton.dictionaryLink = new int[automaton.check.length];
+		Arrays.fill(automaton.dictionaryLink, -1);
+
+		// failure and dictionary links by BFS
+		int[] queue = new int[numOfStates];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = ROOT;
+		while(head < tail) {
+			int state = queue[head++];
+			if(automaton.base[state] == 0) {
+				continue;
+			}
+			for(int code=1; code<ALPHABET_SIZE; code++) {
+				int child = automaton.base[state] + code;
+				if(automaton.check[child] != state) {
+					continue;
+				}
+
+				if(state == ROOT) {
+					automaton.fail[child] = ROOT;
+				} else {
+					automaton.fail[child] = automaton.next(automaton.fail[state], code);
+				}
+
+				int failState = automaton.fail[child];
+				automaton.dictionaryLink[child] = automaton.terminal[failState] != -1 ? failState : automaton.dictionaryLink[failState];
+				queue[tail++] = child;
+			}
+		}
+
+		return automaton;
+	}
+
+	private void ensureCapacity (int size) {
+		if(size < check.length) {
+			return;
+		}
+		int newSize = Math.max(size + 1, check.length * 2);
+		int oldSize = check.length;
+		base = Arrays.copyOf(base, newSize);
+		check = Arrays.copyOf(check, newSize);
+		terminal = Arrays.copyOf(terminal, newSize);
+		Arrays.fill(check, oldSize, newSize, FREE);
+		Arrays.fill(terminal, oldSize, newSize, -1);
+	}
+
+	/**
+	 * Goto function with failure.
+	 *
+	 * @param state
+	 * @param code
+	 * @return
+	 */
+	public int next (int state, int code) {
+		if(code == UNKNOWN_CODE) {
+			return ROOT;
+		}
+
+		while(true) {
+			int child = base[state] + code;
+			if(base[state] != 0 && check[child] == state) {
+				return child;
+			}
+			if(state == ROOT) {
+				return ROOT;
+			}
+			state = fail[state];
+		}
+	}
+
+	/**
+	 * Report all keywords ending at the given state.
+	 *
+	 * @param state
+	 * @param strand
+	 * @param frame
+	 * @param end zero-based amino acid position of the last matched amino acid
+	 * @param visitor
+	 */
+	public void report (int state, char strand, int frame, int end, MatchVisitor visitor) {
+		if(terminal[state] == -1) {
+			state = dictionaryLink[state];
+		}
+		while(state != -1) {
+			int keywordIdx = terminal[state];
+			visitor.visit(keywordIdx, strand, frame, end - keywordLengths[keywordIdx] + 1, end);
+			state = dictionaryLink[state];
+		}
+	}
+
+	/**
+	 * Whether there is any keyword ending at the given state.
+	 *
+	 * @param state
+	 * @return
+	 */
+	public boolean hasOutput (int state) {
+		return terminal[state] != -1 || dictionaryLink[state] != -1;
+	}
+
+	/**
+	 * Find all keywords in a translated sequence.
+	 *
+	 * @param peptide
+	 * @param length
+	 * @param strand it is passed to the visitor as it is.
+	 * @param frame it is passed to the visitor as it is.
+	 * @param visitor
+	 */
+	public void search (byte[] peptide, int length, char strand, int frame, MatchVisitor visitor) {
+		int state = ROOT;
+		for(int pos=0; pos<length; pos++) {
+			state = next(state, toCode((char) peptide[pos]));
+			if(hasOutput(state)) {
+				report(state, strand, frame, pos, visitor);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package progistar.scan.function;
+
+import java.util.ArrayList;
+
+import progistar.scan.data.Constants;
+import progistar.scan.data.Parameters;
+import progistar.scan.data.SequenceTable;
+
+/**
+ * Matching engine for peptide sequences. <br>
+ * Scan, target and FASTQ modes use this class only, so the engine can be switched by --engine option. <br>
+ * <br>
+ * codon: CodonAutomaton (default) <br>
+ * frame: translates each frame and runs PeptideAutomaton <br>
+ * trie: translates each frame and runs org.ahocorasick.trie.Trie <br>
+ *
+ */
+public abstract class PeptideMatcher {
+
+	protected String[] keywords;
+	// keyword index => SequenceTable id
+	protected int[] keywordIds;
+	// prefilter of translated frames (only for the engines translating reads)
+	protected KmerFilter filter = null;
+
+	protected PeptideMatcher (ArrayList<String> sequences) {
+		this.keywords = sequences.toArray(new String[sequences.size()]);
+		this.keywordIds = new int[keywords.length];
+		for(int i=0; i<keywords.length; i++) {
+			this.keywordIds[i] = SequenceTable.getId(keywords[i]);
+		}
+	}
+
+	public String getKeyword (int keywordIdx) {
+		return keywords[keywordIdx];
+	}
+	
+	public int getKeywordId (int keywordIdx) {
+		return keywordIds[keywordIdx];
+	}
+	
+	/**
+	 * Build a k-mer prefilter of the keywords. <br>
+	 * It is used by frame and trie engines. The codon engine does not translate reads,
+	 * and its automaton step is as cheap as a k-mer probe, so it ignores the prefilter.
+	 *
+	 * @param k 0 disables the prefilter
+	 */
+	public void buildFilter (int k) {
+		this.filter = null;
+		if(k > 0 && !(this instanceof CodonAutomaton)) {
+			this.filter = KmerFilter.build(keywords, k);
+		}
+	}
+	
+	public KmerFilter getFilter () {
+		return this.filter;
+	}
+
+	/**
+	 * Find all keywords in the three frames of the given strands. <br>
+	 * Matches are reported in the order of the strands.
+	 *
+	 * @param bases read sequence as it is in the record.
+	 * @param strands '+' uses the bases as they are, '-' uses the reverse complement.
+	 * @param visitor
+	 */
+	public void match (byte[] bases, ArrayList<Character> strands, MatchVisitor visitor) {
+		match(bases, 0, bases.length, strands, visitor);
+	}
+
+	/**
+	 * Find all keywords in bases[offset, offset+length) (e.g. a read in a FASTQ chunk). <br>
+	 * Offsets of the matches are relative to the offset.
+	 *
+	 * @param bases
+	 * @param offset
+	 * @param length
+	 * @param strands
+	 * @param visitor
+	 */
+	public abstract void match (byte[] bases, int offset, int length, ArrayList<Character> strands, MatchVisitor visitor);
+
+	/**
+	 * Build a matching engine given by Parameters.engine.
+	 *
+	 * @param sequences unique sequences
+	 * @return
+	 */
+	public static PeptideMatcher build (ArrayList<String> sequences) {
+		if(Parameters.engine.equalsIgnoreCase(Constants.ENGINE_FRAME)) {
+			return new FrameMatcher(sequences);
+		} else if(Parameters.engine.equalsIgnoreCase(Constants.ENGINE_TRIE)) {
+			return new TrieMatcher(sequences);
+		}
+		return new CodonAutomaton(sequences);
+	}
+}
@@ -1,21 +1,25 @@
 package progistar.scan.function;
 
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.fastq.FastqRecord;
+import progistar.scan.data.FastqBatch;
 import progistar.scan.data.Parameters;
-import progistar.scan.data.Phred;
 
 public class PhredQualityCheck {
 
 	
-	public static boolean isPass (SAMRecord record, int start, int end) {
-		String phredStr = record.getBaseQualityString().substring(start, end);
-		return testByROI(phredStr);
+	public static boolean isPass (SAMRecord record, ReadQuality quality, int start, int end) {
+		if(!quality.isLoaded()) {
+			quality.load(record.getBaseQualities());
+		}
+		return testByROI(quality, start, end);
 	}
 	
-	public static boolean isPass (FastqRecord record, int start, int end) {
-		String phredStr = record.getBaseQualityString().substring(start, end);
-		return testByROI(phredStr);
+	public static boolean isPass (FastqBatch records, int index, ReadQuality quality, int start, int end) {
+		if(!quality.isLoaded()) {
+			// Phred33
+			quality.load(records.data, records.qualityStarts[index], records.baseLengths[index], 33);
+		}
+		return testByROI(quality, start, end);
 	}
 	
 	/**
@@ -43,14 +47,12 @@ public class PhredQualityCheck {
 	 * quality check by ROI unit. <br>
 	 * discard if a probability of at least single base error is greater than ROIErrorThreshold. 
 	 * 
-	 * @param phredStr
+	 * @param quality
+	 * @param start
+	 * @param end
 	 * @return
 	 */
-	private static boolean testByROI (String phredStr) {
-		if(Phred.getProbOfAtLeastOneError(phredStr) < Parameters.ROIErrorThreshold) {
-			return true;
-		}
-		
-		return false;
+	private static boolean testByROI (ReadQuality quality, int start, int end) {
+		return quality.isPass(start, end);
 	}
 }
@@ -0,0 +1,343 @@
+package progistar.scan.function;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import progistar.scan.data.Parameters;
+
+/**
+ * Records of a BAM file span, decoded by a staged pipeline. <br>
+ * 1) block reader: the decode thread reads compressed BGZF blocks ahead of the decoder. <br>
+ * 2) inflate: the blocks are inflated in parallel on a pool shared by all tasks (--inflate_thread). <br>
+ * 3) decode: the decode thread parses records from the inflated blocks in file order and decodes their cigars.
+ * Bases, qualities and tags are decoded lazily by the matcher, so skipped reads (e.g. secondary reads) are not decoded. <br>
+ * 4) match: the thread running the task (-@) takes batches of records from a bounded queue. <br>
+ * Per-stage counters are kept to see whether a run is bound by decompression or by matching (see getSummary).
+ *
+ */
+public class PipelinedRecordIterator implements SAMRecordIterator {
+
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final int BGZF_FOOTER_SIZE = 8;
+	private static final int BATCH_SIZE = 1024;
+	private static final int QUEUE_SIZE = 4;
+	// blocks inflated ahead of the decoder per inflate thread
+	private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+
+	private static ExecutorService inflatePool = null;
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	// stage counters
+	private static LongAdder inflatedBlocks = new LongAdder();
+	private static LongAdder inflatedBytes = new LongAdder();
+	private static LongAdder inflateNanos = new LongAdder();
+	private static LongAdder decodedRecords = new LongAdder();
+	private static LongAdder decodeNanos = new LongAdder();
+	// the decoder waits for the matcher (queue is full)
+	private static LongAdder decodeWaitNanos = new LongAdder();
+	// the matcher waits for the decoder (queue is empty)
+	private static LongAdder matchWaitNanos = new LongAdder();
+
+	private ArrayBlockingQueue<ArrayList<SAMRecord>> queue = new ArrayBlockingQueue<ArrayList<SAMRecord>>(QUEUE_SIZE);
+	private ArrayList<SAMRecord> batch = new ArrayList<SAMRecord>();
+	private int batchIdx = 0;
+	private boolean isDone = false;
+	private volatile boolean isClosed = false;
+	private Thread decoder;
+
+	private static class Block {
+		long address;
+		byte[] data;
+	}
+
+	/**
+	 * A stream of the inflated blocks of a chunk in file order. <br>
+	 * Blocks are read and submitted to the inflate pool ahead of the current block, up to the block of the chunk end.
+	 */
+	private static class BlockStream extends InputStream {
+		private RandomAccessFile raf;
+		private long fileLength;
+		// the last block to read
+		private long endAddress;
+		private long nextAddress;
+		private ArrayDeque<Future<Block>> aheadBlocks = new ArrayDeque<Future<Block>>();
+		private int blocksAhead;
+
+		private long address = -1;
+		private byte[] data = new byte[0];
+		private int pos = 0;
+
+		public BlockStream (RandomAccessFile raf, long fileLength, long startOffset, long endOffset, int blocksAhead) throws IOException {
+			this.raf = raf;
+			this.fileLength = fileLength;
+			// the chunk ends at the start of a block if the offset in the block is 0
+			this.endAddress = (endOffset & 0xFFFF) == 0 ? (endOffset >>> 16) - 1 : endOffset >>> 16;
+			this.nextAddress = startOffset >>> 16;
+			this.blocksAhead = blocksAhead;
+			if(nextBlock()) {
+				this.pos = (int) (startOffset & 0xFFFF);
+			}
+		}
+
+		/**
+		 * Virtual offset of the next byte, or -1 at the end of file.
+		 */
+		public long getVirtualOffset () throws IOException {
+			while(pos == data.length) {
+				if(!nextBlock()) {
+					return -1;
+				}
+			}
+			return (address << 16) | pos;
+		}
+
+		private boolean nextBlock () throws IOException {
+			while(aheadBlocks.size() < blocksAhead && nextAddress < fileLength && nextAddress <= endAddress) {
+				final long blockAddress = nextAddress;
+				final byte[] compressed = readBlock(blockAddress);
+				nextAddress += compressed.length;
+				aheadBlocks.add(inflatePool.submit(() -> inflate(blockAddress, compressed)));
+			}
+			if(aheadBlocks.isEmpty()) {
+				return false;
+			}
+			try {
+				Block block = aheadBlocks.poll().get();
+				address = block.address;
+				data = block.data;
+				pos = 0;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			return true;
+		}
+
+		private byte[] readBlock (long blockAddress) throws IOException {
+			byte[] header = new byte[BGZF_HEADER_SIZE];
+			raf.seek(blockAddress);
+			raf.readFully(header);
+			int blockSize = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+			byte[] compressed = new byte[blockSize];
+			System.arraycopy(header, 0, compressed, 0, BGZF_HEADER_SIZE);
+			raf.readFully(compressed, BGZF_HEADER_SIZE, blockSize - BGZF_HEADER_SIZE);
+			return compressed;
+		}
+
+		@Override
+		public int read () throws IOException {
+			if(getVirtualOffset() == -1) {
+				return -1;
+			}
+			return data[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read (byte[] b, int off, int len) throws IOException {
+			if(len == 0) {
+				return 0;
+			}
+			if(getVirtualOffset() == -1) {
+				return -1;
+			}
+			int length = Math.min(len, data.length - pos);
+			System.arraycopy(data, pos, b, off, length);
+			pos += length;
+			return length;
+		}
+
+		@Override
+		public void close () {
+			for(Future<Block> block : aheadBlocks) {
+				block.cancel(false);
+			}
+			aheadBlocks.clear();
+		}
+	}
+
+	public PipelinedRecordIterator (File file, SAMFileHeader header, BAMFileSpan fileSpan) {
+		initInflatePool();
+		decoder = new Thread(() -> decode(file, header, fileSpan.getChunks()));
+		decoder.setDaemon(true);
+		decoder.start();
+	}
+
+	private static synchronized void initInflatePool () {
+		if(inflatePool == null) {
+			inflatePool = Executors.newFixedThreadPool(Parameters.inflateThreadNum, runnable -> {
+				Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Stop the inflate pool. Use it when all tasks are done.
+	 */
+	public static synchronized void shutdown () {
+		if(inflatePool != null) {
+			inflatePool.shutdown();
+			inflatePool = null;
+		}
+	}
+
+	private static Block inflate (long address, byte[] compressed) throws DataFormatException {
+		long startTime = System.nanoTime();
+		int length = compressed.length;
+		int inflatedSize = (compressed[length-4] & 0xFF) | ((compressed[length-3] & 0xFF) << 8) |
+				((compressed[length-2] & 0xFF) << 16) | ((compressed[length-1] & 0xFF) << 24);
+		Block block = new Block();
+		block.address = address;
+		block.data = new byte[inflatedSize];
+
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(compressed, BGZF_HEADER_SIZE, length - BGZF_HEADER_SIZE - BGZF_FOOTER_SIZE);
+		int inflated = 0;
+		while(inflated < inflatedSize) {
+			int size = inflater.inflate(block.data, inflated, inflatedSize - inflated);
+			if(size == 0 && (inflater.finished() || inflater.needsInput())) {
+				throw new DataFormatException("Truncated BGZF block at "+address);
+			}
+			inflated += size;
+		}
+
+		inflatedBlocks.increment();
+		inflatedBytes.add(inflatedSize);
+		inflateNanos.add(System.nanoTime() - startTime);
+		return block;
+	}
+
+	private void decode (File file, SAMFileHeader header, List<Chunk> chunks) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			BAMRecordCodec codec = new BAMRecordCodec(header);
+			int blocksAhead = Parameters.inflateThreadNum * BLOCKS_AHEAD_PER_THREAD;
+			ArrayList<SAMRecord> records = new ArrayList<SAMRecord>(BATCH_SIZE);
+
+			for(Chunk chunk : chunks) {
+				if(isClosed) {
+					return;
+				}
+				try (BlockStream stream = new BlockStream(raf, file.length(), chunk.getChunkStart(), chunk.getChunkEnd(), blocksAhead)) {
+					codec.setInputStream(stream);
+					while(!isClosed) {
+						long offset = stream.getVirtualOffset();
+						if(offset == -1 || offset >= chunk.getChunkEnd()) {
+							break;
+						}
+
+						long startTime = System.nanoTime();
+						SAMRecord samRecord = codec.decode();
+						if(samRecord == null) {
+							break;
+						}
+						// the other variable-length fields are decoded by the matcher if the read is matched
+						samRecord.getCigar();
+						decodeNanos.add(System.nanoTime() - startTime);
+						decodedRecords.increment();
+
+						records.add(samRecord);
+						if(records.size() == BATCH_SIZE) {
+							put(records);
+							records = new ArrayList<SAMRecord>(BATCH_SIZE);
+						}
+					}
+				}
+			}
+			if(!records.isEmpty()) {
+				put(records);
+			}
+			// the end of records
+			put(new ArrayList<SAMRecord>());
+		} catch(Exception e) {
+			// the matcher closed the iterator and interrupted the decoder
+			if(isClosed) {
+				return;
+			}
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private void put (ArrayList<SAMRecord> records) throws InterruptedException {
+		if(isClosed) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		queue.put(records);
+		decodeWaitNanos.add(System.nanoTime() - startTime);
+	}
+
+	@Override
+	public boolean hasNext() {
+		while(!isDone && batchIdx == batch.size()) {
+			try {
+				long startTime = System.nanoTime();
+				batch = queue.take();
+				matchWaitNanos.add(System.nanoTime() - startTime);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			batchIdx = 0;
+			isDone = batch.isEmpty();
+		}
+		return !isDone;
+	}
+
+	@Override
+	public SAMRecord next() {
+		if(!hasNext()) {
+			return null;
+		}
+		return batch.get(batchIdx++);
+	}
+
+	@Override
+	public void close() {
+		isClosed = true;
+		// wake the decoder if it waits for the queue or for an inflated block
+		decoder.interrupt();
+		queue.clear();
+	}
+
+	@Override
+	public SAMRecordIterator assertSorted(SortOrder sortOrder) {
+		return this;
+	}
+
+	/**
+	 * Stage counters of all pipelines. <br>
+	 * Inflate and decode times are thread times. Wait times tell the slower stage:
+	 * a matcher waiting for records means decompression bound, and a decoder waiting for a free queue means matching bound.
+	 *
+	 * @return
+	 */
+	public static String getSummary () {
+		double seconds = 1e9;
+		return "Pipeline: inflated "+inflatedBlocks.sum()+" blocks ("+(inflatedBytes.sum() >> 20)+" MB) in "
+				+String.format("%.2f", inflateNanos.sum()/seconds)+" sec, decoded "+decodedRecords.sum()+" records in "
+				+String.format("%.2f", decodeNanos.sum()/seconds)+" sec, matcher waited "
+				+String.format("%.2f", matchWaitNanos.sum()/seconds)+" sec, decoder waited "
+				+String.format("%.2f", decodeWaitNanos.sum()/seconds)+" sec";
+	}
+}
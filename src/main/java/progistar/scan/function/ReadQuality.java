@@ -0,0 +1,78 @@
+package progistar.scan.function;
+
+import progistar.scan.data.Parameters;
+import progistar.scan.data.Phred;
+
+/**
+ * Quality context of a read for ROI check. <br>
+ * Prefix sums of correct phreds are calculated once per read, so each ROI check is a subtraction and a comparison. <br>
+ * Correct phreds are not negative; if the whole read passes, every ROI of the read also passes.
+ *
+ */
+public class ReadQuality {
+
+	// prefixSums[i] = sum of correct phreds of [0, i)
+	private double[] prefixSums = new double[256];
+	private double cutoff = Phred.getCorrectPhredCutoff(Parameters.ROIErrorThreshold);
+	private int length = 0;
+	private boolean isLoaded = false;
+	private boolean isAllPass = false;
+
+	/**
+	 * Use it when a new read is processed.
+	 * 
+	 */
+	public void clear () {
+		this.isLoaded = false;
+	}
+
+	public boolean isLoaded () {
+		return this.isLoaded;
+	}
+
+	/**
+	 * 
+	 * @param qualities raw base qualities (SAMRecord.getBaseQualities)
+	 */
+	public void load (byte[] qualities) {
+		load(qualities, 0, qualities.length, 0);
+	}
+
+	/**
+	 * 
+	 * @param qualities
+	 * @param offset
+	 * @param length
+	 * @param phredOffset 33 for Phred33 qualities in a FASTQ file, 0 for raw base qualities
+	 */
+	public void load (byte[] qualities, int offset, int length, int phredOffset) {
+		this.length = length;
+		if(prefixSums.length <= length) {
+			prefixSums = new double[length * 2];
+		}
+
+		double sum = 0;
+		prefixSums[0] = 0;
+		for(int i=0; i<length; i++) {
+			sum += Phred.getCorrectPhred(qualities[offset + i] - phredOffset);
+			prefixSums[i+1] = sum;
+		}
+
+		// there is no base quality information ("*").
+		this.isAllPass = length == 0 || sum < cutoff;
+		this.isLoaded = true;
+	}
+
+	/**
+	 * 
+	 * @param start zero-based (inclusive)
+	 * @param end zero-based (exclusive)
+	 * @return
+	 */
+	public boolean isPass (int start, int end) {
+		if(isAllPass) {
+			return true;
+		}
+		return prefixSums[end] - prefixSums[start] < cutoff;
+	}
+}
@@ -0,0 +1,55 @@
+package progistar.scan.function;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import progistar.scan.data.Parameters;
+
+/**
+ * Thread-confined readers of the BAM file. <br>
+ * Each thread opens its reader once and reuses it for all of its tasks,
+ * so a task does not parse the header and load the index again. <br>
+ * A reader serves one iterator at a time: close the iterator before the next query. <br>
+ * The index is cached per reader, and its file is memory-mapped, so the pages are shared between the readers.
+ *
+ */
+public class SamReaderPool {
+
+	private static ThreadLocal<SamReader> readers = new ThreadLocal<SamReader>();
+	private static ConcurrentLinkedQueue<SamReader> openReaders = new ConcurrentLinkedQueue<SamReader>();
+
+	/**
+	 * Return the reader of the current thread.
+	 *
+	 * @return
+	 */
+	public static SamReader get () {
+		SamReader samReader = readers.get();
+		if(samReader == null) {
+			// to prevent racing
+			File file = new File(Parameters.bamFile.getAbsolutePath());
+			samReader = SamReaderFactory.makeDefault().open(file);
+			readers.set(samReader);
+			openReaders.add(samReader);
+		}
+		return samReader;
+	}
+
+	/**
+	 * Close all readers. Use it when all tasks on the BAM file are done.
+	 */
+	public static void closeAll () {
+		SamReader samReader = null;
+		while((samReader = openReaders.poll()) != null) {
+			try {
+				samReader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		readers = new ThreadLocal<SamReader>();
+	}
+}
@@ -1,10 +1,7 @@
 package progistar.scan.function;
 
-import java.io.File;
-
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.fastq.FastqReader;
 import progistar.scan.data.Constants;
 import progistar.scan.data.Parameters;
@@ -23,19 +20,9 @@ public class ScanModeRun extends Mode {
 	
 	private static void scanReads (Task task) {
 		long startTime = System.currentTimeMillis();
-		// to prevent racing
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		
-		
-		
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
-			SAMRecordIterator iterator = null;
-			if(task.readType == Constants.MAPPED_READS) {
-				iterator = samReader.queryOverlapping(task.chrName, task.start, task.end);
-			} else {
-				iterator = samReader.queryUnmapped();
-			}
-			find(iterator, Task.allTrie, task);
+		SamReader samReader = SamReaderPool.get();
+		try (SAMRecordIterator iterator = query(samReader, task)) {
+			find(iterator, Task.allTrie, Task.allMatcher, task);
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -1,17 +1,26 @@
 package progistar.scan.function;
 
-import java.io.File;
+import java.util.ArrayList;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import progistar.scan.data.Constants;
 import progistar.scan.data.Parameters;
 import progistar.scan.run.Task;
 
+/**
+ * Strandedness estimation by XS tags. <br>
+ * The tags are counted by detection tasks (the first reads of each chromosome),
+ * or by the tasks reading the whole BAM file as a side effect (see Mode.find and TargetModeRun),
+ * and the strandedness is decided once all tasks are done.
+ *
+ */
 public class StrandDetection {
 
+	// the first reads of the BAM file checked for XS tags before the main tasks
+	public static final int PROBE_READS = 100000;
+
 	public static void runDetection (Task task) {
 		if(task.type == Constants.TYPE_STRAND_DETECTION_TASK) {
 			if(Parameters.verbose) {
@@ -23,55 +32,14 @@ public class StrandDetection {
 	
 	private static void detect (Task task) {
 		long startTime = System.currentTimeMillis();
-		// to prevent racing
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
-			SAMRecordIterator iterator = samReader.queryOverlapping(task.chrName, 1, Integer.MAX_VALUE);
+		SamReader samReader = SamReaderPool.get();
+		try (SAMRecordIterator iterator = samReader.queryOverlapping(task.chrName, 1, Integer.MAX_VALUE)) {
 			int size = task.end;
 			
 			while((size--) > 0 && iterator.hasNext()) {
 				SAMRecord samRecord = iterator.next();
-				
-				boolean isPass = false;
-				if(Parameters.count.equalsIgnoreCase(Constants.COUNT_PRIMARY) && samRecord.isSecondaryAlignment()) {
-            		isPass = true;
-            	}
-				
-				Object xsTag = samRecord.getAttribute("XS");
-				if(xsTag == null) {
-					isPass = true;
-				}
-				
-				if(isPass) {
-					continue;
-				}
-				
-				
-				int flags = samRecord.getFlags();
-				boolean isFirstSegment = (0x40 & flags) == 0x40 ? true : false;
-				boolean isForward = (0x10 & flags) == 0x10 ? false : true;
-				boolean strand = ((Character) xsTag) == '+' ? true : false;
-				
-				// first segment
-				if(isFirstSegment) {
-					if(isForward == strand) {
-						task.R1F++;
-					} else {
-						task.R1R++;
-					}
-				} 
-				// second segment
-				else {
-					if(isForward == strand) {
-						task.R2F++;
-					} else {
-						task.R2R++;
-					}
-				}
-				
+				count(samRecord, task);
 			}
-			
-			iterator.close();
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -82,4 +50,102 @@ public class StrandDetection {
 			System.out.println("Task"+task.taskIdx+" "+(endTime-startTime)/1000+" sec");
 		}
 	}
+	
+	/**
+	 * Return true if any of the first reads of the BAM file has an XS tag. <br>
+	 * It is checked before the main tasks, so a BAM file without XS tags fails before the whole traversal.
+	 * 
+	 * @param samReader
+	 * @param reads
+	 * @return
+	 */
+	public static boolean hasXSTag (SamReader samReader, int reads) {
+		try (SAMRecordIterator iterator = samReader.iterator()) {
+			while((reads--) > 0 && iterator.hasNext()) {
+				if(iterator.next().getAttribute("XS") != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Count a read by its XS tag and orientation.
+	 * 
+	 * @param samRecord
+	 * @param task
+	 */
+	public static void count (SAMRecord samRecord, Task task) {
+		if(Parameters.count.equalsIgnoreCase(Constants.COUNT_PRIMARY) && samRecord.isSecondaryAlignment()) {
+			return;
+		}
+		
+		Object xsTag = samRecord.getAttribute("XS");
+		if(xsTag == null) {
+			return;
+		}
+		
+		int flags = samRecord.getFlags();
+		boolean isFirstSegment = (0x40 & flags) == 0x40 ? true : false;
+		boolean isForward = (0x10 & flags) == 0x10 ? false : true;
+		boolean strand = ((Character) xsTag) == '+' ? true : false;
+		
+		// first segment
+		if(isFirstSegment) {
+			if(isForward == strand) {
+				task.R1F++;
+			} else {
+				task.R1R++;
+			}
+		} 
+		// second segment
+		else {
+			if(isForward == strand) {
+				task.R2F++;
+			} else {
+				task.R2R++;
+			}
+		}
+	}
+	
+	/**
+	 * Decide the strandedness from the counts of the given tasks. <br>
+	 * If no XS tag is counted, the matches of both strands are kept (non-stranded).
+	 * 
+	 * @param tasks
+	 */
+	public static void decide (ArrayList<Task> tasks) {
+		long R1F = 0;
+		long R1R = 0;
+		long R2F = 0;
+		long R2R = 0;
+		
+		for(Task task :tasks) {
+			R1F += task.R1F;
+			R1R += task.R1R;
+			R2F += task.R2F;
+			R2R += task.R2R;
+		}
+		
+		if(R1F*10 < R1R && R2F > R2R*10) {
+			Parameters.strandedness = Constants.RF_STRANDED;
+		} else if(R1F > R1R*10 && R2F*10 < R2R) {
+			Parameters.strandedness = Constants.FR_STRANDED;
+		} else {
+			Parameters.strandedness = Constants.NON_STRANDED;
+		}
+		
+		System.out.println("Estimate strandedness");
+		System.out.println("1F\t1R\t2F\t2R");
+		System.out.println(R1F+"\t"+R1R+"\t"+R2F+"\t"+R2R);
+		
+		if(R1F+R1R+R2F+R2R == 0) {
+			// the matches of both strands are already kept, so the run is not discarded
+			System.out.println("Fail to estimate stradedness! There is no XS tag.");
+			System.out.println("Reads are counted as non-stranded. Please specify strandedness if it is wrong.");
+		} else {
+			System.out.println("Strandedness: "+Parameters.strandedness+"-stranded");
+		}
+	}
 }
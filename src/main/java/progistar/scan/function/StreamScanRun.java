@@ -0,0 +1,251 @@
+package progistar.scan.function;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CloseableIterator;
+import progistar.scan.data.Constants;
+import progistar.scan.data.Parameters;
+import progistar.scan.run.Task;
+
+/**
+ * Scan mode over a BAM/SAM stream in one sequential pass, without a BAM index. <br>
+ * It is used for stdin (-b -) and for a BAM/SAM file without an index, e.g. an unsorted BAM file from a pipeline. <br>
+ * The reading thread puts batches of records into a bounded queue in file order, and matcher threads (-@) take the batches.
+ * Each matcher runs one task (see Task.getStreamScanTasks), so the tasks are merged as in indexed scan mode. <br>
+ * With inflate threads (--inflate_thread), BGZF blocks of a BAM stream are inflated in parallel (see ParallelGzipInputStream)
+ * and records are decoded by BAMRecordCodec. Otherwise, htsjdk reads the stream (BAM or SAM). <br>
+ * BAM records decode their variable-length fields lazily, so the bases are decoded in the matcher threads.
+ *
+ */
+public class StreamScanRun extends Mode {
+
+	private static final int BATCH_SIZE = 4096;
+	// batches in the queue per matcher
+	private static final int BATCHES_PER_MATCHER = 2;
+	private static final int BUFFER_SIZE = 1 << 16;
+	// the size of a BGZF block header
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+	/**
+	 * Return true if the BAM/SAM file is read as a stream: stdin or a file without an index.
+	 *
+	 * @return
+	 */
+	public static boolean isStream () {
+		if(isStdin()) {
+			return true;
+		}
+		return !SamReaderPool.get().hasIndex();
+	}
+
+	public static boolean isStdin () {
+		return Parameters.bamFile.getName().equals(Constants.STDIN);
+	}
+
+	/**
+	 * Run stream tasks. Each task is run by one matcher thread.
+	 *
+	 * @param tasks
+	 */
+	public static void run (ArrayList<Task> tasks) {
+		long startTime = System.currentTimeMillis();
+		ArrayBlockingQueue<ArrayList<SAMRecord>> queue = new ArrayBlockingQueue<ArrayList<SAMRecord>>(tasks.size() * BATCHES_PER_MATCHER);
+		ArrayList<Thread> matchers = new ArrayList<Thread>();
+		for(Task task : tasks) {
+			Thread matcher = new Thread(() -> match(queue, task));
+			matcher.start();
+			matchers.add(matcher);
+		}
+
+		long reads = 0;
+		try (InputStream input = new BufferedInputStream(isStdin() ? System.in : new FileInputStream(Parameters.bamFile), BUFFER_SIZE)) {
+			// peek the first block
+			input.mark(BGZF_HEADER_SIZE);
+			byte[] header = new byte[BGZF_HEADER_SIZE];
+			int length = ParallelGzipInputStream.readFully(input, header, 0, BGZF_HEADER_SIZE);
+			input.reset();
+
+			if(Parameters.inflateThreadNum > 0 && ParallelGzipInputStream.isBGZF(header, length)) {
+				try (InputStream inflated = ParallelGzipInputStream.openBGZF(input, Parameters.inflateThreadNum)) {
+					reads = readBAM(inflated, queue);
+				}
+			} else {
+				SamReader samReader = SamReaderFactory.makeDefault().open(SamInputResource.of(input));
+				reads = read(samReader.iterator(), queue);
+			}
+
+			// a batch without records stops a matcher
+			for(int i=0; i<matchers.size(); i++) {
+				queue.put(new ArrayList<SAMRecord>());
+			}
+			for(Thread matcher : matchers) {
+				matcher.join();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		long endTime = System.currentTimeMillis();
+		System.out.println("Stream: "+reads+" reads in "+(endTime-startTime)/1000+" sec");
+	}
+
+	private static void match (ArrayBlockingQueue<ArrayList<SAMRecord>> queue, Task task) {
+		long startTime = System.currentTimeMillis();
+		try {
+			while(true) {
+				ArrayList<SAMRecord> batch = queue.take();
+				if(batch.isEmpty()) {
+					break;
+				}
+				// note that if you process something inside "find" function,
+				// you are care about concurrence, conflicts.
+				find(new BatchIterator(batch), Task.allTrie, Task.allMatcher, task);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		task.elapsedTime = System.currentTimeMillis() - startTime;
+		task.peakMemory = CheckMemory.checkUsedMemoryMB();
+	}
+
+	private static long read (CloseableIterator<SAMRecord> iterator, ArrayBlockingQueue<ArrayList<SAMRecord>> queue) throws InterruptedException {
+		long reads = 0;
+		ArrayList<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+		while(iterator.hasNext()) {
+			batch.add(iterator.next());
+			if(batch.size() == BATCH_SIZE) {
+				queue.put(batch);
+				batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+			}
+			reads++;
+		}
+		if(!batch.isEmpty()) {
+			queue.put(batch);
+		}
+		iterator.close();
+		return reads;
+	}
+
+	/**
+	 * Read the records of an inflated BAM stream.
+	 *
+	 * @param input
+	 * @param queue
+	 * @return the number of reads
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static long readBAM (InputStream input, ArrayBlockingQueue<ArrayList<SAMRecord>> queue) throws IOException, InterruptedException {
+		BinaryCodec binaryCodec = new BinaryCodec(input);
+		SAMFileHeader header = readHeader(binaryCodec);
+		BAMRecordCodec recordCodec = new BAMRecordCodec(header);
+		recordCodec.setInputStream(input);
+		return read(new CloseableIterator<SAMRecord>() {
+			private SAMRecord next = recordCodec.decode();
+
+			@Override
+			public boolean hasNext () {
+				return next != null;
+			}
+
+			@Override
+			public SAMRecord next () {
+				SAMRecord samRecord = next;
+				next = recordCodec.decode();
+				return samRecord;
+			}
+
+			@Override
+			public void close () {}
+		}, queue);
+	}
+
+	/**
+	 * Read the header of a BAM stream: the magic, the SAM header text and the references.
+	 *
+	 * @param binaryCodec
+	 * @return
+	 * @throws IOException
+	 */
+	private static SAMFileHeader readHeader (BinaryCodec binaryCodec) throws IOException {
+		byte[] magic = new byte[BAM_MAGIC.length];
+		binaryCodec.readBytes(magic);
+		if(!Arrays.equals(magic, BAM_MAGIC)) {
+			throw new IOException("Invalid BAM file header: "+Parameters.bamFile.getName());
+		}
+
+		// the text can be padded with null characters
+		String text = binaryCodec.readString(binaryCodec.readInt());
+		int textEnd = text.indexOf('\0');
+		if(textEnd != -1) {
+			text = text.substring(0, textEnd);
+		}
+		SAMFileHeader header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(text), Parameters.bamFile.getName());
+
+		// the references of the binary header are used if the text has no @SQ lines
+		int referenceNum = binaryCodec.readInt();
+		SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+		for(int i=0; i<referenceNum; i++) {
+			byte[] name = new byte[binaryCodec.readInt()];
+			binaryCodec.readBytes(name);
+			// without the null terminator
+			dictionary.addSequence(new SAMSequenceRecord(new String(name, 0, name.length - 1, StandardCharsets.ISO_8859_1), binaryCodec.readInt()));
+		}
+		if(header.getSequenceDictionary().isEmpty()) {
+			header.setSequenceDictionary(dictionary);
+		} else if(header.getSequenceDictionary().size() != referenceNum) {
+			throw new IOException("The number of references is different between the header text and the binary header: "+Parameters.bamFile.getName());
+		}
+		return header;
+	}
+
+	// records of a batch for Mode.find
+	private static class BatchIterator implements SAMRecordIterator {
+		private ArrayList<SAMRecord> batch;
+		private int index = 0;
+
+		BatchIterator (ArrayList<SAMRecord> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public boolean hasNext () {
+			return index < batch.size();
+		}
+
+		@Override
+		public SAMRecord next () {
+			return batch.get(index++);
+		}
+
+		@Override
+		public void close () {}
+
+		@Override
+		public SAMRecordIterator assertSorted (SAMFileHeader.SortOrder sortOrder) {
+			return this;
+		}
+	}
+}
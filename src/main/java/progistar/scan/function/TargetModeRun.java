@@ -1,20 +1,24 @@
 package progistar.scan.function;
 
-import java.io.File;
+import java.util.ArrayList;
 
 import org.ahocorasick.trie.Trie;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Constants;
 import progistar.scan.data.Parameters;
 import progistar.scan.data.SequenceRecord;
+import progistar.scan.data.TargetCluster;
 import progistar.scan.run.Task;
 
 public class TargetModeRun extends Mode {
+
+	// margin of the query window around a target.
+	// in case of soft-clip, it can be zero because of unstable record range.
+	public static final int WINDOW_MARGIN = 100;
 	
 	public static void runTargetMode (Task task) {
 		if(task.type == Constants.TYPE_TARGET_MODE_TASK) {
@@ -30,13 +34,17 @@ public class TargetModeRun extends Mode {
 	
 	private static void countUnmappedReads(Task task) {
 		long startTime = System.currentTimeMillis();
-		// to prevent racing
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
-			// for unmapped reads
-			Trie trie = SequenceRecord.getTrie(task.records);
-			SAMRecordIterator iterator = samReader.queryUnmapped();
-			find(iterator, trie, task);
+		SamReader samReader = SamReaderPool.get();
+		// for unmapped reads
+		Trie trie = null;
+		PeptideMatcher matcher = null;
+		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+			trie = SequenceRecord.getTrie(task.records);
+		} else {
+			matcher = SequenceRecord.getMatcher(task.records);
+		}
+		try (SAMRecordIterator iterator = query(samReader, task)) {
+			find(iterator, trie, matcher, task);
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -48,23 +56,38 @@ public class TargetModeRun extends Mode {
 		}
 	}
 	
+	/**
+	 * Targets are merged into clusters of overlapping query windows (see TargetCluster).
+	 * Each cluster is read by one query and matched by one automaton of its sequences. <br>
+	 * A sweep task reads its file span with the clusters of a chromosome, and reads out of the windows are skipped.
+	 * 
+	 * @param task
+	 */
 	private static void countMappedReads (Task task) {
 		long startTime = System.currentTimeMillis();
-		// to prevent racing
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
-			double size = task.records.size();
-			for(int i=0; i<size; i++) {
-				task.currentRecordIdx = i;
-				SequenceRecord record = task.records.get(i);
+		SamReader samReader = SamReaderPool.get();
+		if(task.fileSpan != null) {
+			sweepMappedReads(samReader, task);
+			return;
+		}
+		try {
+			ArrayList<TargetCluster> clusters = TargetCluster.cluster(task.records, WINDOW_MARGIN);
+			for(TargetCluster cluster : clusters) {
+				task.targetCluster = cluster;
 				
-				Trie trie = Trie.builder().addKeyword(record.sequence).build();
+				Trie trie = null;
+				PeptideMatcher matcher = null;
+				if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+					trie = SequenceRecord.getTrie(cluster.records);
+				} else {
+					matcher = SequenceRecord.getMatcher(cluster.records);
+				}
 				
-	            // in case of soft-clip, it can be zero because of unstable record range.
-				SAMRecordIterator iterator = samReader.queryOverlapping(record.chr, record.start-100, record.end+100);
-				find(iterator, trie, task);
+				try (SAMRecordIterator iterator = samReader.queryOverlapping(cluster.chr, cluster.start, cluster.end)) {
+					find(iterator, trie, matcher, task);
+				}
 			}
-            
+			task.targetCluster = null;
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -76,17 +99,33 @@ public class TargetModeRun extends Mode {
 		}
 	}
 	
+	private static void sweepMappedReads (SamReader samReader, Task task) {
+		long startTime = System.currentTimeMillis();
+		Trie trie = null;
+		PeptideMatcher matcher = null;
+		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+			trie = SequenceRecord.getTrie(task.records);
+		} else {
+			matcher = SequenceRecord.getMatcher(task.records);
+		}
+		
+		try (SAMRecordIterator iterator = query(samReader, task)) {
+			find(iterator, trie, matcher, task);
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		long endTime = System.currentTimeMillis();
+		
+		if(Parameters.verbose) {
+			System.out.println("Task"+task.taskIdx+" "+(endTime-startTime)/1000+" sec");
+		}
+	}
+	
 	private static void estimateLibSize (Task task) {
 		long startTime = System.currentTimeMillis();
-		// to prevent racing
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
-			SAMRecordIterator iterator = null;
-			if(task.readType == Constants.MAPPED_READS) {
-				iterator = samReader.query(task.chrName, task.start, task.end, false);
-			} else {
-				iterator = samReader.queryUnmapped();
-			}
+		SamReader samReader = SamReaderPool.get();
+		try (SAMRecordIterator iterator = query(samReader, task)) {
 			estimate(iterator, task);
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -103,6 +142,8 @@ public class TargetModeRun extends Mode {
 
 	private static void estimate (SAMRecordIterator iterator, Task task) {
 		int count = 0;
+		// XS tags are counted in the same pass
+		boolean isStrandPending = Parameters.strandedness.equalsIgnoreCase(Constants.AUTO_STRANDED);
 		while (iterator.hasNext()) {
             SAMRecord samRecord = iterator.next();
             boolean isPass = false;
@@ -111,13 +152,18 @@ public class TargetModeRun extends Mode {
             // if the task is for mapped reads
             // only reads with below that genomic start are retrieved
             if(task.readType == Constants.MAPPED_READS) {
-            	if( !(samRecord.getAlignmentStart() >= task.start && 
+            	if( task.fileSpan == null && !(samRecord.getAlignmentStart() >= task.start && 
             			samRecord.getAlignmentStart() <= task.end) ) {
             		isPass = true;
             	}
             	
             } else if(task.readType == Constants.UNMAPPED_READS) {
-            	if(count < task.start || count > task.end) {
+            	// a file span task owns its slice of the unmapped tail
+            	if(task.fileSpan != null) {
+            		if(samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            			isPass = true;
+            		}
+            	} else if(count < task.start || count > task.end) {
         			isPass = true;
         		}
             }
@@ -126,20 +172,19 @@ public class TargetModeRun extends Mode {
             	continue;
             }
             
+            if(isStrandPending) {
+            	StrandDetection.count(samRecord, task);
+            }
+            
             // if barcode id is null or others, pass the read
             // no worry about bulk RNA-seq because it should be "undefined" in the bulk RNA-seq.
-            String barcodeId = BarcodeTable.getBarcodeFromBam(samRecord);
-            if(barcodeId.equalsIgnoreCase(Constants.NULL_BARCODE_ID) || barcodeId.equalsIgnoreCase(Constants.OTHER_BARCODE_ID) ) {
+            int barcodeOrdinal = BarcodeTable.getBarcodeOrdinalFromBam(samRecord);
+            if(Parameters.isSingleCellMode && (barcodeOrdinal == BarcodeTable.NULL_BARCODE_ORDINAL || barcodeOrdinal == BarcodeTable.OTHER_BARCODE_ORDINAL)) {
             	//continue;
             }
             
         	if(!samRecord.isSecondaryAlignment()) {
-            	Double pReads = task.processedReads.get(barcodeId);
-            	if(pReads == null) {
-            		pReads = .0;
-            	}
-            	pReads++;
-            	task.processedReads.put(barcodeId, pReads);
+            	task.processedReads[barcodeOrdinal]++;
         	}
             
         }
@@ -1,48 +1,189 @@
 package progistar.scan.function;
 
+import java.nio.charset.StandardCharsets;
+
 import progistar.scan.data.Codon;
 import progistar.scan.data.Constants;
 
 public class Translator {
-	
-	public static String translation (String nucleotides, int frame) {
-		StringBuilder peptides = new StringBuilder();
+
+	// 2-bit code of nucleotides (A=0, C=1, G=2, T=3)
+	private static final byte INVALID_CODE = 4;
+
+	// nucleotide => 2-bit code. It follows Codon (char & 7), so it is case-insensitive.
+	private static final byte[] FORWARD_CODE = new byte[256];
+	// nucleotide => 2-bit code of its complement. Only upper cases are complemented (same as getReverseComplement).
+	private static final byte[] REVERSE_CODE = new byte[256];
+
+	// 6-bit packed codon => amino acid
+	private static final byte[] CODON_TABLE = new byte[64];
+	private static final byte[] CODON_TABLE_IL = new byte[64];
+
+	private static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+
+	static {
+		for(int i=0; i<256; i++) {
+			FORWARD_CODE[i] = toCode((char) i);
+			REVERSE_CODE[i] = toCode(complement((char) i));
+		}
+
+		for(int codon=0; codon<64; codon++) {
+			char aa = Codon.nuclToAmino(""+NUCLEOTIDES[codon >> 4]+NUCLEOTIDES[(codon >> 2) & 3]+NUCLEOTIDES[codon & 3]);
+			CODON_TABLE[codon] = (byte) aa;
+			CODON_TABLE_IL[codon] = (byte) (aa == 'I' ? 'L' : aa);
+		}
+	}
+
+	/**
+	 * Per-thread translation buffers. <br>
+	 * peptides[0-2] are the three forward frames and peptides[3-5] are the three frames of the reverse complement.
+	 *
+	 */
+	public static class Frames {
+		public byte[][] peptides = new byte[6][64];
+		public int[] lengths = new int[6];
+		private byte[] nucleotides = new byte[192];
+
+		private void ensureCapacity (int length) {
+			int size = length / 3 + 1;
+			if(peptides[0].length < size) {
+				for(int i=0; i<6; i++) {
+					peptides[i] = new byte[size * 2];
+				}
+			}
+		}
+	}
+
+	private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(Frames::new);
+
+	private static byte toCode (char nt) {
+		switch(nt & 7) {
+			case 1: return 0; // A
+			case 3: return 1; // C
+			case 7: return 2; // G
+			case 4: return 3; // T
+			default: return INVALID_CODE;
+		}
+	}
+
+	public static char complement (char nt) {
+		switch(nt) {
+			case 'A': return 'T';
+			case 'C': return 'G';
+			case 'T': return 'A';
+			case 'G': return 'C';
+			default : return nt;
+		}
+	}
+
+	/**
+	 * Translates the forward and/or reverse frames of bases[0, length) in one pass. <br>
+	 * The result is written into the buffers of the calling thread, so it is valid until the next call in the same thread. <br>
+	 * Codons with an unknown nucleotide and stop codons are translated to X (same as Codon).
+	 *
+	 * @param bases
+	 * @param length
+	 * @param forward translate three forward frames (peptides[0-2])
+	 * @param reverse translate three reverse complement frames (peptides[3-5])
+	 * @param isILEqual translate I to L
+	 * @return
+	 */
+	public static Frames translation (byte[] bases, int length, boolean forward, boolean reverse, boolean isILEqual) {
+		return translation(bases, 0, length, forward, reverse, isILEqual);
+	}
+
+	/**
+	 * Translates bases[offset, offset+length) (see translation(byte[], int, boolean, boolean, boolean)).
+	 *
+	 * @param bases
+	 * @param offset
+	 * @param length
+	 * @param forward
+	 * @param reverse
+	 * @param isILEqual
+	 * @return
+	 */
+	public static Frames translation (byte[] bases, int offset, int length, boolean forward, boolean reverse, boolean isILEqual) {
+		Frames frames = FRAMES.get();
+		frames.ensureCapacity(length);
+
+		byte[] table = isILEqual ? CODON_TABLE_IL : CODON_TABLE;
+		byte[][] peptides = frames.peptides;
+		int[] lengths = frames.lengths;
+		for(int fr=0; fr<3; fr++) {
+			int size = length > fr ? (length - fr) / 3 : 0;
+			lengths[fr] = forward ? size : 0;
+			lengths[fr+3] = reverse ? size : 0;
+		}
+
+		int fwdCodon = 0;
+		int revCodon = 0;
+		int lastInvalid = -1;
+		for(int pos=0; pos<length; pos++) {
+			int nt = bases[offset + pos] & 0xFF;
+			int fwdCode = FORWARD_CODE[nt];
+			if(fwdCode == INVALID_CODE) {
+				lastInvalid = pos;
+			}
+			fwdCodon = ((fwdCodon << 2) | (fwdCode & 3)) & 63;
+			revCodon = (revCodon >>> 2) | ((REVERSE_CODE[nt] & 3) << 4);
+
+			if(pos < 2) {
+				continue;
+			}
+
+			boolean isValid = lastInvalid < pos - 2;
+			if(forward) {
+				int start = pos - 2;
+				peptides[start % 3][start / 3] = isValid ? table[fwdCodon] : (byte) 'X';
+			}
+			if(reverse) {
+				int start = length - 1 - pos;
+				peptides[3 + start % 3][start / 3] = isValid ? table[revCodon] : (byte) 'X';
+			}
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Translates the first frame of a given nucleotide sequence. Deletions are skipped.
+	 *
+	 * @param nucleotides
+	 * @param reverse translate the reverse complement
+	 * @return
+	 */
+	public static String translation (String nucleotides, boolean reverse) {
+		Frames frames = FRAMES.get();
 		int length = nucleotides.length();
-		StringBuilder codon = new StringBuilder();
-		for(int pos=frame; pos<length; pos++) {
-			
+		if(frames.nucleotides.length < length) {
+			frames.nucleotides = new byte[length * 2];
+		}
+
+		byte[] bases = frames.nucleotides;
+		int size = 0;
+		char deletion = Constants.NULL.charAt(0);
+		for(int pos=0; pos<length; pos++) {
 			char nt = nucleotides.charAt(pos);
-			
 			// skip deletion
-			if(nt == Constants.NULL.charAt(0)) {
-				continue;
-			}
-			
-			codon.append(nt);
-			if(codon.length() == 3) {
-				String codonStr = codon.toString();
-				char aa = Codon.nuclToAmino(codonStr.toUpperCase());
-				peptides.append(aa);
-				codon.setLength(0);
+			if(nt != deletion) {
+				bases[size++] = (byte) nt;
 			}
 		}
-		return peptides.toString();
+
+		translation(bases, size, !reverse, reverse, false);
+		int frame = reverse ? 3 : 0;
+		return new String(frames.peptides[frame], 0, frames.lengths[frame], StandardCharsets.ISO_8859_1);
 	}
-	
+
 	public static String getReverseComplement (String nucleotide) {
 		StringBuilder reverseComplementNTs = new StringBuilder(nucleotide);
 		int length = nucleotide.length();
 		for(int i=0; i<length; i++) {
-			switch(reverseComplementNTs.charAt(i)) {
-				case 'A': reverseComplementNTs.setCharAt(i, 'T'); break;
-				case 'C': reverseComplementNTs.setCharAt(i, 'G'); break;
-				case 'T': reverseComplementNTs.setCharAt(i, 'A'); break;
-				case 'G': reverseComplementNTs.setCharAt(i, 'C'); break;
-				default : break;
-			}
+			reverseComplementNTs.setCharAt(i, complement(reverseComplementNTs.charAt(i)));
 		}
-		
+
 		return reverseComplementNTs.reverse().toString();
 	}
-	
+
 }
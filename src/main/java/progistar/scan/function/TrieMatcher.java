@@ -0,0 +1,60 @@
+package progistar.scan.function;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+
+import org.ahocorasick.trie.Emit;
+import org.ahocorasick.trie.Trie;
+
+import progistar.scan.data.Parameters;
+
+/**
+ * Translates the frames of a read and finds keywords by org.ahocorasick.trie.Trie. <br>
+ * This is the original engine, and it is kept to compare with the other engines.
+ *
+ */
+public class TrieMatcher extends PeptideMatcher {
+
+	private Trie trie;
+	private Hashtable<String, Integer> keywordIndices = new Hashtable<String, Integer>();
+
+	public TrieMatcher (ArrayList<String> sequences) {
+		super(sequences);
+		this.trie = Trie.builder().addKeywords(sequences).build();
+		for(int i=0; i<keywords.length; i++) {
+			keywordIndices.put(keywords[i], i);
+		}
+	}
+
+	@Override
+	public void match (byte[] bases, int offset, int length, ArrayList<Character> strands, MatchVisitor visitor) {
+		Translator.Frames frames = Translator.translation(bases, offset, length, strands.contains('+'), strands.contains('-'), Parameters.isILEqual);
+
+		int probed = 0;
+		int rejected = 0;
+		for(Character strand : strands) {
+			int frameOffset = strand == '-' ? 3 : 0;
+			for(int fr=0; fr<3; fr++) {
+				// skip the frame without any k-mer of the keywords
+				if(filter != null) {
+					probed++;
+					if(!filter.mightMatch(frames.peptides[frameOffset + fr], frames.lengths[frameOffset + fr])) {
+						rejected++;
+						continue;
+					}
+				}
+				String peptide = new String(frames.peptides[frameOffset + fr], 0, frames.lengths[frameOffset + fr], StandardCharsets.ISO_8859_1);
+				Collection<Emit> emits = trie.parseText(peptide);
+				for(Emit emit : emits) {
+					visitor.visit(keywordIndices.get(emit.getKeyword()), strand, fr, emit.getStart(), emit.getEnd());
+				}
+			}
+		}
+		
+		if(filter != null) {
+			filter.count(probed, rejected);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package progistar.scan.function;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * Split the unmapped tail of a coordinate-sorted BAM file into virtual offset ranges. <br>
+ * A split point is found without reading the tail from its start:
+ * seek to the byte position, find the next BGZF block by its header,
+ * inflate the block and take the first unmapped record in it. <br>
+ * An unmapped record is recognized by its fixed fields (refID = pos = next refID = next pos = -1,
+ * no cigar, unmapped flag) and by its block size, which must also lead to the next record.
+ *
+ */
+public class UnmappedSpan {
+
+	private static final int BGZF_HEADER_SIZE = 18;
+	private static final int RECORD_FIXED_SIZE = 36;
+	private static final int BUFFER_SIZE = 1 << 17;
+	private static final int MAX_BLOCK_TRIALS = 16;
+
+	/**
+	 * Return sliceNum+1 boundaries of virtual offsets from startOffset to the end of file. <br>
+	 * Slices are cut by compressed bytes, and [boundaries[i], boundaries[i+1]) is the i-th slice.
+	 * Slices without any split point are merged, so fewer boundaries can be returned.
+	 *
+	 * @param file
+	 * @param startOffset virtual offset of the first unmapped record
+	 * @param sliceNum
+	 * @return
+	 * @throws IOException
+	 */
+	public static long[] split (File file, long startOffset, int sliceNum) throws IOException {
+		long fileLength = file.length();
+		long startAddress = startOffset >>> 16;
+		long[] boundaries = new long[sliceNum+1];
+		int size = 0;
+		boundaries[size++] = startOffset;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			BlockCompressedInputStream bgzf = new BlockCompressedInputStream(file)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for(int i=1; i<sliceNum; i++) {
+				long address = startAddress + (fileLength - startAddress) * i / sliceNum;
+				long offset = findRecordStart(raf, bgzf, address, fileLength, buffer);
+				if(offset > boundaries[size-1]) {
+					boundaries[size++] = offset;
+				}
+			}
+		}
+		boundaries[size++] = fileLength << 16;
+
+		if(size < boundaries.length) {
+			long[] merged = new long[size];
+			System.arraycopy(boundaries, 0, merged, 0, size);
+			boundaries = merged;
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Virtual offset of the first unmapped record starting in a BGZF block at or after a given address.
+	 * Return -1 if it is not found.
+	 */
+	private static long findRecordStart (RandomAccessFile raf, BlockCompressedInputStream bgzf,
+			long address, long fileLength, byte[] buffer) throws IOException {
+		long blockAddress = findBlock(raf, address, fileLength);
+		for(int trial=0; trial<MAX_BLOCK_TRIALS && blockAddress != -1; trial++) {
+			bgzf.seek(blockAddress << 16);
+			int blockLength = bgzf.available();
+			// EOF marker
+			if(blockLength == 0) {
+				return -1;
+			}
+
+			int length = 0;
+			int read = 0;
+			while(length < buffer.length && (read = bgzf.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+			}
+
+			for(int pos=0; pos<blockLength; pos++) {
+				if(isRecordStart(buffer, pos, length) ) {
+					int nextPos = pos + 4 + getInt(buffer, pos);
+					if(nextPos + RECORD_FIXED_SIZE > length || isRecordStart(buffer, nextPos, length)) {
+						return (blockAddress << 16) | pos;
+					}
+				}
+			}
+
+			blockAddress = getNextBlock(raf, blockAddress, fileLength);
+		}
+		return -1;
+	}
+
+	private static boolean isRecordStart (byte[] buffer, int pos, int length) {
+		if(pos + RECORD_FIXED_SIZE > length) {
+			return false;
+		}
+		int blockSize = getInt(buffer, pos);
+		int readNameLength = buffer[pos+12] & 0xFF;
+		int cigarNum = getShort(buffer, pos+16);
+		int flag = getShort(buffer, pos+18);
+		int seqLength = getInt(buffer, pos+20);
+
+		if(getInt(buffer, pos+4) != -1 || getInt(buffer, pos+8) != -1 ||
+			getInt(buffer, pos+24) != -1 || getInt(buffer, pos+28) != -1 || getInt(buffer, pos+32) != 0) {
+			return false;
+		}
+		if(readNameLength == 0 || cigarNum != 0 || (flag & 0x4) == 0 || seqLength < 0) {
+			return false;
+		}
+		if(blockSize < RECORD_FIXED_SIZE - 4 + readNameLength + (seqLength + 1) / 2 + seqLength) {
+			return false;
+		}
+		// read name is NUL-terminated
+		int nameEnd = pos + RECORD_FIXED_SIZE + readNameLength - 1;
+		return nameEnd >= length || buffer[nameEnd] == 0;
+	}
+
+	/**
+	 * Address of the first BGZF block at or after a given address. <br>
+	 * A block header is accepted if the next block header follows it (or it ends at the end of file).
+	 */
+	private static long findBlock (RandomAccessFile raf, long address, long fileLength) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while(address < fileLength) {
+			raf.seek(address);
+			int length = raf.read(buffer, 0, (int) Math.min(buffer.length, fileLength - address));
+			if(length <= 0) {
+				return -1;
+			}
+			for(int pos=0; pos + BGZF_HEADER_SIZE <= length; pos++) {
+				if(isBlockHeader(buffer, pos)) {
+					long blockAddress = address + pos;
+					long nextAddress = getNextBlock(raf, blockAddress, fileLength);
+					if(nextAddress != -1) {
+						return blockAddress;
+					}
+				}
+			}
+			// the last header can be cut by the buffer
+			address += Math.max(1, length - BGZF_HEADER_SIZE + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Address of the block following a given block, or -1 if the given block is invalid or the last one.
+	 */
+	private static long getNextBlock (RandomAccessFile raf, long blockAddress, long fileLength) throws IOException {
+		byte[] header = new byte[BGZF_HEADER_SIZE];
+		raf.seek(blockAddress);
+		raf.readFully(header);
+		if(!isBlockHeader(header, 0)) {
+			return -1;
+		}
+		long nextAddress = blockAddress + getShort(header, 16) + 1;
+		if(nextAddress >= fileLength || nextAddress + BGZF_HEADER_SIZE > fileLength) {
+			return -1;
+		}
+		raf.seek(nextAddress);
+		raf.readFully(header);
+		return isBlockHeader(header, 0) ? nextAddress : -1;
+	}
+
+	private static boolean isBlockHeader (byte[] buffer, int pos) {
+		return (buffer[pos] & 0xFF) == 0x1f && (buffer[pos+1] & 0xFF) == 0x8b &&
+				buffer[pos+2] == 8 && buffer[pos+3] == 4 &&
+				buffer[pos+12] == 'B' && buffer[pos+13] == 'C' &&
+				getShort(buffer, pos+14) == 2;
+	}
+
+	private static int getInt (byte[] buffer, int pos) {
+		return (buffer[pos] & 0xFF) | ((buffer[pos+1] & 0xFF) << 8) |
+				((buffer[pos+2] & 0xFF) << 16) | ((buffer[pos+3] & 0xFF) << 24);
+	}
+
+	private static int getShort (byte[] buffer, int pos) {
+		return (buffer[pos] & 0xFF) | ((buffer[pos+1] & 0xFF) << 8);
+	}
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
+import progistar.scan.data.CountVector;
 import progistar.scan.data.Parameters;
 import progistar.scan.data.SequenceRecord;
 
@@ -22,7 +23,7 @@ public class WriteStatistics {
 	 */
 	public static void write (String fileName,
 							  ArrayList<SequenceRecord> records,
-							  Hashtable<String, Hashtable<String, Long>> readCountsPeptLevel) 
+							  Hashtable<String, CountVector> readCountsPeptLevel) 
 							  throws IOException {
 		BufferedWriter BW = new BufferedWriter(new FileWriter(fileName));
 		
@@ -41,7 +41,7 @@ public class Annotate {
 		for(SequenceRecord sRecord : records) {
 			LinkedList<Annotation> annotations = new LinkedList<Annotation>();
 			// If the location is ".", then it is considered as "unknown"
-			if(sRecord.location.equalsIgnoreCase(Constants.NULL)) {
+			if(sRecord.location.isUnmapped()) {
 				// unmapped reads, unidentified region (.)
 				Annotation annotation = new Annotation();
 				annotation.classCode = Constants.MARK_UNKNOWN;
@@ -1,11 +1,14 @@
 package progistar.scan.run;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -15,55 +18,79 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import progistar.scan.data.Constants;
+import progistar.scan.function.LibrarySize;
+
 public class MakeSheet {
 	
 	public static String inputFilePath = null;
 	public static String outputFilePath = null;
 	public static String removeStr = null;
 	public static String threadNum = "4";
+	public static String libEstimate = Constants.LIB_ESTIMATE_EXACT;
 
-	public static void main(String[] args) throws IOException, InterruptedException {
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
 		parseOptions(args);
 		
 		BufferedWriter BW = new BufferedWriter(new FileWriter(outputFilePath));
 		File[] files = new File(inputFilePath).listFiles();
 		
-		BW.append("sample_name\tfile_path\ttotal_read_count");
-		BW.newLine();
+		// files are counted in parallel and written in the order of the list
+		ExecutorService executorService = Executors.newFixedThreadPool(Integer.parseInt(threadNum));
+		ArrayList<File> bamFiles = new ArrayList<File>();
+		ArrayList<Future<Long>> readCounts = new ArrayList<Future<Long>>();
 		for(File file :files) {
 			if(file.getName().startsWith(".")) continue;
 			if(file.getName().endsWith(".bam")) {
-				System.out.println(file.getName()+" is processed...");
-				String sampleName = file.getName().replace(removeStr, "");
-				String[] command = { "samtools", "view", "-F", "256", "-c", file.getAbsolutePath(), "-@", threadNum };
-				
-				ProcessBuilder processBuilder = new ProcessBuilder(command);
-
-		        // Redirect error stream to output stream
-		        processBuilder.redirectErrorStream(true);
-
-		        // Start the process
-		        Process process = processBuilder.start();
-
-		        // Read output
-		        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-		        String line;
-		        StringBuilder output = new StringBuilder();
-		        while ((line = reader.readLine()) != null) {
-		            output.append(line);
-		        }
-
-		        // Wait for the process to finish and get the exit code
-		        int exitCode = process.waitFor();
-				long totalReadCount= Long.parseLong(output.toString());
-				BW.append(sampleName+"\t"+file.getAbsolutePath()+"\t"+totalReadCount);
-				BW.newLine();
+				bamFiles.add(file);
+				readCounts.add(executorService.submit(() -> countReads(file)));
 			}
 		}
+		executorService.shutdown();
+		
+		BW.append("sample_name\tfile_path\ttotal_read_count");
+		BW.newLine();
+		for(int i=0; i<bamFiles.size(); i++) {
+			File file = bamFiles.get(i);
+			String sampleName = file.getName().replace(removeStr, "");
+			long totalReadCount = readCounts.get(i).get();
+			BW.append(sampleName+"\t"+file.getAbsolutePath()+"\t"+totalReadCount);
+			BW.newLine();
+		}
 		
 		BW.close();
 	}
 	
+	/**
+	 * The number of non-secondary reads (samtools view -F 256 -c). <br>
+	 * With --lib_estimate index|sample, it is estimated from the bam index if available (see LibrarySize).
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static long countReads (File file) throws IOException {
+		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
+			LibrarySize libSize = null;
+			if(!libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_EXACT)) {
+				int sampleSize = libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_INDEX) ? 0 : LibrarySize.SAMPLE_SIZE;
+				libSize = LibrarySize.estimate(samReader, sampleSize);
+			}
+			
+			long totalReadCount = 0;
+			if(libSize != null) {
+				totalReadCount = Math.round(libSize.size);
+				System.out.println(file.getName()+" is processed... "+libSize.getSummary());
+			} else {
+				totalReadCount = LibrarySize.count(samReader);
+				System.out.println(file.getName()+" is processed... "+totalReadCount+" reads");
+			}
+			return totalReadCount;
+		}
+	}
+	
 	/**
 	 * Parse and apply arguments
 	 * 
@@ -99,13 +126,22 @@ public class MakeSheet {
 				.longOpt("thread").argName("number")
 				.hasArg()
 				.required(false)
-				.desc("the number of threads to process. Default value is 4.")
+				.desc("the number of files to process at once. Default value is 4.")
+				.build();
+		
+		Option optionLibEstimate = Option.builder()
+				.longOpt("lib_estimate").argName("index|sample|exact")
+				.hasArg()
+				.required(false)
+				.desc("index: read counts of the bam index, sample: read counts of the bam index excluding secondary alignments by a sample of reads, "
+						+ "exact: decode all reads (same as samtools view -F 256 -c). A file without bam index is decoded. Default value is exact.")
 				.build();
 		
 		
 		options.addOption(optionInput)
 		.addOption(optionOutput)
 		.addOption(optionThread)
+		.addOption(optionLibEstimate)
 		.addOption(optionSuffix);
 		
 		CommandLineParser parser = new DefaultParser();
@@ -130,6 +166,16 @@ public class MakeSheet {
 		    if(cmd.hasOption("@")) {
 		    	threadNum = cmd.getOptionValue("@");
 		    }
+		    
+		    if(cmd.hasOption("lib_estimate")) {
+		    	libEstimate = cmd.getOptionValue("lib_estimate");
+		    	if(!libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_INDEX) &&
+		    		!libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_SAMPLE) &&
+		    		!libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_EXACT) ) {
+		    		System.out.println("Wrong library size estimation: "+libEstimate);
+		    		isFail = true;
+		    	}
+		    }
 		} catch (ParseException e) {
 			System.out.println(e.getMessage());
 			isFail = true;
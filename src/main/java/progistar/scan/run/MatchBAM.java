@@ -3,10 +3,6 @@ package progistar.scan.run;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,6 +23,13 @@ import progistar.scan.data.SequenceRecord;
 import progistar.scan.fileIO.ParseRecord;
 import progistar.scan.fileIO.WriteOutput;
 import progistar.scan.function.CheckMemory;
+import progistar.scan.function.KmerFilter;
+import progistar.scan.function.LibrarySize;
+import progistar.scan.function.Mode;
+import progistar.scan.function.PipelinedRecordIterator;
+import progistar.scan.function.SamReaderPool;
+import progistar.scan.function.StrandDetection;
+import progistar.scan.function.StreamScanRun;
 
 public class MatchBAM {
 
@@ -46,60 +49,48 @@ public class MatchBAM {
 		
 		ArrayList<SequenceRecord> records = ParseRecord.parse(Parameters.inputFile);
 		
+		// stdin or a BAM/SAM file without an index is scanned in one sequential pass (see StreamScanRun)
+		boolean isStream = StreamScanRun.isStream();
+		if(isStream && Parameters.mode.equalsIgnoreCase(Constants.MODE_TARGET)) {
+			System.out.println("Target mode needs a coordinate-sorted and indexed BAM file. Use scan mode for stdin or a BAM/SAM file without an index.");
+			System.exit(1);
+		}
+		if(isStream) {
+			System.out.println("There is no bam index. Reads are scanned in one pass.");
+		}
+		
+		// library size of target mode from the bam index
+		// the exact estimation decodes all reads (see Task.getLibSizeTask)
+		if(Parameters.mode.equalsIgnoreCase(Constants.MODE_TARGET) && LibraryTable.isEmpty() && 
+				!Parameters.isSingleCellMode && !Parameters.libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_EXACT)) {
+			int sampleSize = Parameters.libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_INDEX) ? 0 : LibrarySize.SAMPLE_SIZE;
+			LibrarySize libSize = LibrarySize.estimate(SamReaderPool.get(), sampleSize);
+			if(libSize != null) {
+				System.out.println(libSize.getSummary());
+				long[] processedReads = new long[BarcodeTable.getBarcodeSize()];
+				processedReads[BarcodeTable.DEFAULT_BARCODE_ORDINAL] = Math.round(libSize.size);
+				LibraryTable.addProcessedReads(processedReads);
+			} else {
+				System.out.println("There is no bam index. Library size is estimated by all reads.");
+			}
+		}
+		
 		//// Prepare tasks
 		ArrayList<Task> tasks = new ArrayList<Task>();
 		
 		// auto strand detection
-		if(Parameters.strandedness.equalsIgnoreCase(Constants.AUTO_STRANDED)) {
+		// XS tags are counted by the main tasks reading the whole BAM file (scan mode and library size estimation),
+		// and matches of both strands are kept until the strandedness is decided.
+		// Otherwise, detection tasks run together with the main tasks.
+		boolean isStrandPending = Parameters.strandedness.equalsIgnoreCase(Constants.AUTO_STRANDED);
+		// a BAM file without XS tags fails before the traversal (stdin cannot be read twice)
+		if(isStrandPending && !StreamScanRun.isStdin() && !StrandDetection.hasXSTag(SamReaderPool.get(), StrandDetection.PROBE_READS)) {
+			System.out.println("Fail to estimate stradedness! There is no XS tag in the first "+StrandDetection.PROBE_READS+" reads.");
+			System.out.println("It looks single-end RNA-seq experiement. Please specify strandedness.");
+			System.exit(1);
+		}
+		if(isStrandPending && Parameters.mode.equalsIgnoreCase(Constants.MODE_TARGET) && !LibraryTable.isEmpty()) {
 			tasks.addAll(Task.getStrandDetectionTask());
-			ExecutorService executorService = Executors.newFixedThreadPool(Parameters.threadNum);
-			List<Worker> callableExList = new ArrayList<>();
-			for(int i=0; i<tasks.size(); i++) {
-				Task task = tasks.get(i);
-				callableExList.add(new Worker(task, tasks.size()));
-			}
-			
-			// check peak memory
-			Parameters.peakMemory = Math.max(Parameters.peakMemory, CheckMemory.checkUsedMemoryMB());
-			
-			// reset done count
-			Worker.resetDoneCount();
-			executorService.invokeAll(callableExList);
-			executorService.shutdown();
-			
-			int R1F = 0;
-			int R1R = 0;
-			int R2F = 0;
-			int R2R = 0;
-			
-			for(Task task :tasks) {
-				R1F += task.R1F;
-				R1R += task.R1R;
-				R2F += task.R2F;
-				R2R += task.R2R;
-			}
-			
-			if(R1F*10 < R1R && R2F > R2R*10) {
-				Parameters.strandedness = Constants.RF_STRANDED;
-			} else if(R1F > R1R*10 && R2F*10 < R2R) {
-				Parameters.strandedness = Constants.FR_STRANDED;
-			} else {
-				Parameters.strandedness = Constants.NON_STRANDED;
-			}
-			
-			System.out.println("Estimate strandedness");
-			System.out.println("1F\t1R\t2F\t2R");
-			System.out.println(R1F+"\t"+R1R+"\t"+R2F+"\t"+R2R);
-			
-			if(R1F+R1R+R2F+R2R == 0) {
-				System.out.println("Fail to estimate stradedness!");
-				System.out.println("It looks single-end RNA-seq experiement. Please specify strandedness.");
-				System.exit(1);
-			} else {
-				System.out.println("Strandedness: "+Parameters.strandedness+"-stranded");
-			}
-			
-			tasks.clear();
 		}
 		/////////////////////////////////////////////////////////////////
 		
@@ -113,30 +104,41 @@ public class MatchBAM {
 			Parameters.chunkSize = (records.size() / (10 * Parameters.threadNum) ) +1;
 			tasks.addAll(Task.getTargetModeTasks(records, Parameters.chunkSize));
 		} else if(Parameters.mode.equalsIgnoreCase(Constants.MODE_SCAN)) {
-			tasks.addAll(Task.getScanModeTasks(records));
-		}
-		//// sort tasks by descending order
-		// Priority: Library > Unmapped > Mapped
-		Collections.sort(tasks);
-		
-		//// Enroll tasks on a thread pool
-		ExecutorService executorService = Executors.newFixedThreadPool(Parameters.threadNum);
-		List<Worker> callableExList = new ArrayList<>();
-		for(int i=0; i<tasks.size(); i++) {
-			Task task = tasks.get(i);
-			callableExList.add(new Worker(task, tasks.size()));
+			if(isStream) {
+				tasks.addAll(Task.getStreamScanTasks(records, Parameters.threadNum));
+			} else {
+				tasks.addAll(Task.getScanModeTasks(records));
+			}
 		}
+		//// Enroll tasks on a work-stealing pool
+		// longest-first, and large tasks are split when workers get idle
 		
 		// check peak memory
 		Parameters.peakMemory = Math.max(Parameters.peakMemory, CheckMemory.checkUsedMemoryMB());
 		
-		// reset done count
-		Worker.resetDoneCount();
-		executorService.invokeAll(callableExList);
-		executorService.shutdown();
+		if(isStream) {
+			StreamScanRun.run(tasks);
+		} else {
+			tasks = TaskScheduler.run(tasks);
+		}
 		//// End of tasks
 		
+		if(isStrandPending) {
+			StrandDetection.decide(tasks);
+			for(Task task : tasks) {
+				Mode.resolveStrands(task);
+			}
+		}
+		
 		System.out.println("Done all tasks!");
+		if(Task.allMatcher != null && Task.allMatcher.getFilter() != null) {
+			System.out.println(Task.allMatcher.getFilter().getSummary());
+		}
+		if(Parameters.inflateThreadNum > 0 && !isStream) {
+			System.out.println(PipelinedRecordIterator.getSummary());
+			PipelinedRecordIterator.shutdown();
+		}
+		SamReaderPool.closeAll();
 		// check peak memory
 		Parameters.peakMemory = Math.max(Parameters.peakMemory, CheckMemory.checkUsedMemoryMB());
 
@@ -147,16 +149,14 @@ public class MatchBAM {
 		
 		// calculate library size
 		if(LibraryTable.isEmpty()) {
+			long[] processedReads = new long[BarcodeTable.getBarcodeSize()];
 			for(Task task : tasks) {
-				task.processedReads.forEach((barcode, count)->{
-					Double libSize = LibraryTable.table.get(barcode);
-					if(libSize == null) {
-						libSize = .0;
-					}
-					libSize += count;
-					LibraryTable.table.put(barcode, libSize);
-				});
+				long[] reads = task.getProcessedReads();
+				for(int i=0; i<reads.length; i++) {
+					processedReads[i] += reads[i];
+				}
 			}
+			LibraryTable.addProcessedReads(processedReads);
 		}
 		
 		// make location table
@@ -164,11 +164,7 @@ public class MatchBAM {
 		
 		// union information
 		for(Task task : tasks) {
-			task.locTable.table.forEach((sequence, lInfos) -> {
-				lInfos.forEach((key, lInfo)->{
-					locTable.putLocation(lInfo);
-				});
-			});
+			locTable.merge(task.locTable);
 		}
 		
 		WriteOutput.writeMainOutput(records, Parameters.outputBaseFilePath, locTable);
@@ -193,7 +189,10 @@ public class MatchBAM {
 				args[i].equalsIgnoreCase("-w") || args[i].equalsIgnoreCase("--white_list") ||
 				args[i].equalsIgnoreCase("-p") || args[i].equalsIgnoreCase("--prob") ||
 				args[i].equalsIgnoreCase("-u") || args[i].equalsIgnoreCase("--union") ||
-				args[i].equalsIgnoreCase("-s") || args[i].equalsIgnoreCase("--strand")) {
+				args[i].equalsIgnoreCase("-s") || args[i].equalsIgnoreCase("--strand") ||
+				args[i].equalsIgnoreCase("--engine") || args[i].equalsIgnoreCase("--prefilter_k") ||
+				args[i].equalsIgnoreCase("--inflate_thread") || args[i].equalsIgnoreCase("--target_strategy") ||
+				args[i].equalsIgnoreCase("--lib_estimate")) {
 				nArgs[nIdx++] = args[i++];
 				nArgs[nIdx++] = args[i];
 			} 
@@ -225,7 +224,7 @@ public class MatchBAM {
 				.longOpt("bam").argName("bam|sam")
 				.hasArg()
 				.required(true)
-				.desc("bam or sam file.")
+				.desc("bam or sam file. \"-\" reads stdin. Scan mode reads stdin or a file without an index in one sequential pass.")
 				.build();
 		////////////////////////////////
 		
@@ -261,7 +260,7 @@ public class MatchBAM {
 				.hasArg()
 				.required(false)
 				.desc("TSV file including library size information." +
-						"\nIf this option is not specified, then it estimates the library size automatically. This estimation takes additional time for target mode.")
+						"\nIf this option is not specified, then it estimates the library size automatically (see --lib_estimate for target mode).")
 				.build();
 		
 		Option optionVerbose = Option.builder("v")
@@ -299,6 +298,47 @@ public class MatchBAM {
 						+ "auto: auto-detection. Auto-detection is only available if there is XS tag in a given BAM file (default is auto).")
 				.build();
 		
+		Option optionEngine = Option.builder()
+				.longOpt("engine").argName("codon|frame|trie")
+				.hasArg()
+				.required(false)
+				.desc("peptide matching engine. codon: match codons without translation, frame: translate three frames and match, "
+						+ "trie: translate three frames and match by the legacy Aho-Corasick trie (default is codon).")
+				.build();
+		
+		Option optionPrefilter = Option.builder()
+				.longOpt("prefilter_k").argName("int")
+				.hasArg()
+				.required(false)
+				.desc("k of amino acid k-mer prefilter for frame and trie engines. Reads without any query k-mer are skipped. "
+						+ "k <= 4 uses a bitset, and k > 4 uses a Bloom filter (0: disable, max: 12, default is 4).")
+				.build();
+		
+		Option optionInflateThread = Option.builder()
+				.longOpt("inflate_thread").argName("int")
+				.hasArg()
+				.required(false)
+				.desc("the number of threads inflating BGZF blocks of a BAM file (an indexed file or a stream in scan mode). "
+						+ "Matching runs on the threads given by -@, and records are passed from the inflate threads in batches (default is 0: inflate in the matching threads).")
+				.build();
+		
+		Option optionTargetStrategy = Option.builder()
+				.longOpt("target_strategy").argName("auto|query|sweep")
+				.hasArg()
+				.required(false)
+				.desc("how target mode reads each chromosome. query: index queries of target clusters, sweep: a sequential read of the chromosome, "
+						+ "auto: select by the compressed bytes of both from the bam index (default is auto).")
+				.build();
+		
+		Option optionLibEstimate = Option.builder()
+				.longOpt("lib_estimate").argName("index|sample|exact")
+				.hasArg()
+				.required(false)
+				.desc("how target mode estimates the library size without -l. index: read counts of the bam index, "
+						+ "sample: read counts of the bam index excluding secondary alignments by a sample of reads, exact: decode all reads. "
+						+ "Single-cell mode always uses exact (default is sample).")
+				.build();
+		
 		options.addOption(optionInput)
 		.addOption(optionOutput)
 		.addOption(optionStrandeness)
@@ -310,7 +350,12 @@ public class MatchBAM {
 		.addOption(optionVerbose)
 		.addOption(optionWhiteList)
 		.addOption(optionROIThreshold)
-		.addOption(optionUnionPeptide);
+		.addOption(optionUnionPeptide)
+		.addOption(optionEngine)
+		.addOption(optionPrefilter)
+		.addOption(optionInflateThread)
+		.addOption(optionTargetStrategy)
+		.addOption(optionLibEstimate);
 		
 		CommandLineParser parser = new DefaultParser();
 	    HelpFormatter helper = new HelpFormatter();
@@ -398,6 +443,55 @@ public class MatchBAM {
 		    	}
 		    }
 		    
+		    if(cmd.hasOption("engine")) {
+		    	Parameters.engine = cmd.getOptionValue("engine");
+		    	// there is no matched option
+		    	if(!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_CODON) &&
+		    		!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_FRAME) &&
+		    		!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_TRIE) ) {
+		    		System.out.println("Wrong engine: "+Parameters.engine);
+		    		isFail = true;
+		    	}
+		    }
+		    
+		    if(cmd.hasOption("inflate_thread")) {
+		    	Parameters.inflateThreadNum = Integer.parseInt(cmd.getOptionValue("inflate_thread"));
+		    	if(Parameters.inflateThreadNum < 0) {
+		    		System.out.println("Inflate threads must be non-negative: "+Parameters.inflateThreadNum);
+		    		isFail = true;
+		    	}
+		    }
+		    
+		    if(cmd.hasOption("target_strategy")) {
+		    	Parameters.targetStrategy = cmd.getOptionValue("target_strategy");
+		    	// there is no matched option
+		    	if(!Parameters.targetStrategy.equalsIgnoreCase(Constants.TARGET_STRATEGY_AUTO) &&
+		    		!Parameters.targetStrategy.equalsIgnoreCase(Constants.TARGET_STRATEGY_QUERY) &&
+		    		!Parameters.targetStrategy.equalsIgnoreCase(Constants.TARGET_STRATEGY_SWEEP) ) {
+		    		System.out.println("Wrong target strategy: "+Parameters.targetStrategy);
+		    		isFail = true;
+		    	}
+		    }
+		    
+		    if(cmd.hasOption("lib_estimate")) {
+		    	Parameters.libEstimate = cmd.getOptionValue("lib_estimate");
+		    	// there is no matched option
+		    	if(!Parameters.libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_INDEX) &&
+		    		!Parameters.libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_SAMPLE) &&
+		    		!Parameters.libEstimate.equalsIgnoreCase(Constants.LIB_ESTIMATE_EXACT) ) {
+		    		System.out.println("Wrong library size estimation: "+Parameters.libEstimate);
+		    		isFail = true;
+		    	}
+		    }
+		    
+		    if(cmd.hasOption("prefilter_k")) {
+		    	Parameters.prefilterK = Integer.parseInt(cmd.getOptionValue("prefilter_k"));
+		    	if(Parameters.prefilterK < 0 || Parameters.prefilterK > KmerFilter.MAX_K) {
+		    		System.out.println("Prefilter k is out of range [0,"+KmerFilter.MAX_K+"]: "+Parameters.prefilterK);
+		    		isFail = true;
+		    	}
+		    }
+		    
 		} catch (ParseException e) {
 			System.out.println(e.getMessage());
 			isFail = true;
@@ -408,7 +502,7 @@ public class MatchBAM {
 		    System.exit(0);
 		} else {
 			System.out.println("Input file name: "+Parameters.inputFile.getAbsolutePath());
-			System.out.println("BAM/SAM file name: "+Parameters.bamFile.getAbsolutePath());
+			System.out.println("BAM/SAM file name: "+(StreamScanRun.isStdin() ? "stdin" : Parameters.bamFile.getAbsolutePath()));
 			System.out.println("Output file name: "+Parameters.outputBaseFilePath);
 
 			if(Parameters.whitelistFile != null) {
@@ -417,10 +511,28 @@ public class MatchBAM {
 			
 			System.out.println("Strandedness: "+Constants.getFullNameOfStrandedness(Parameters.strandedness));
 			System.out.println("Mode: "+Parameters.mode);
+			if(Parameters.mode.equalsIgnoreCase(Constants.MODE_TARGET)) {
+				System.out.println("Target strategy: "+Parameters.targetStrategy);
+				if(Parameters.libFile == null) {
+					System.out.println("Library size estimation: "+(Parameters.isSingleCellMode ? Constants.LIB_ESTIMATE_EXACT : Parameters.libEstimate));
+				}
+			}
 			System.out.println("Count: "+Parameters.count);
 			System.out.println("Peptide level count: "+Parameters.union);
 			System.out.println("ROI cutoff: "+Parameters.ROIErrorThreshold);
 			System.out.println("Threads: "+Parameters.threadNum);
+			if(Parameters.inflateThreadNum > 0) {
+				System.out.println("Inflate threads: "+Parameters.inflateThreadNum);
+			}
+			System.out.println("Engine: "+Parameters.engine);
+			// the codon engine does not translate reads, so it has no k-mer prefilter (see PeptideMatcher.buildFilter)
+			if(Parameters.engine.equalsIgnoreCase(Constants.ENGINE_CODON)) {
+				System.out.println("Prefilter: off (codon engine)");
+			} else if(Parameters.prefilterK == 0) {
+				System.out.println("Prefilter: off");
+			} else {
+				System.out.println("Prefilter k: "+Parameters.prefilterK);
+			}
 			if(Parameters.verbose) {
 				System.out.println("Verbose messages");
 			}
@@ -15,10 +15,10 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import htsjdk.samtools.fastq.FastqRecord;
 import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Codon;
 import progistar.scan.data.Constants;
+import progistar.scan.data.FastqBatch;
 import progistar.scan.data.LibraryTable;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.Parameters;
@@ -27,6 +27,8 @@ import progistar.scan.data.SequenceRecord;
 import progistar.scan.fileIO.ParseRecord;
 import progistar.scan.fileIO.WriteOutput;
 import progistar.scan.function.CheckMemory;
+import progistar.scan.function.FASTQModeRun;
+import progistar.scan.function.KmerFilter;
 
 public class MatchFASTQ {
 
@@ -48,11 +50,9 @@ public class MatchFASTQ {
 		ArrayList<Task> tasks = Task.getFASTQModeTasks(records);
 		
 		//// Enroll tasks on a thread pool
-		int subAssistantThreadNum = 1;
-		if(Parameters.sequencingFileType == Constants.SEQ_FASTQ_PAIRED) {
-			subAssistantThreadNum = 2;
-		}
-		ExecutorService executorService = Executors.newFixedThreadPool(subAssistantThreadNum);
+		// the task reads FASTQ files (paired-end files in lockstep), and matcher threads take its batches
+		FASTQModeRun.startMatchers(Parameters.threadNum);
+		ExecutorService executorService = Executors.newFixedThreadPool(tasks.size());
 		List<Worker> callableExList = new ArrayList<>();
 		for(int i=0; i<tasks.size(); i++) {
 			Task task = tasks.get(i);
@@ -62,11 +62,15 @@ public class MatchFASTQ {
 		Parameters.peakMemory = Math.max(Parameters.peakMemory, CheckMemory.checkUsedMemoryMB());
 		executorService.invokeAll(callableExList);
 		executorService.shutdown();
+		ArrayList<LocTable> matcherLocTables = FASTQModeRun.stopMatchers();
 		
 		// reset done count
 		Worker.resetDoneCount();
 		//// End of tasks
 		System.out.println("Done all tasks!");
+		if(Task.allMatcher != null && Task.allMatcher.getFilter() != null) {
+			System.out.println(Task.allMatcher.getFilter().getSummary());
+		}
 		// check peak memory
 		Parameters.peakMemory = Math.max(Parameters.peakMemory, CheckMemory.checkUsedMemoryMB());
 
@@ -77,28 +81,22 @@ public class MatchFASTQ {
 		
 		// calculate library size
 		if(LibraryTable.isEmpty()) {
+			long[] processedReads = new long[BarcodeTable.getBarcodeSize()];
 			for(Task task : tasks) {
-				task.processedReads.forEach((barcode, count)->{
-					Double libSize = LibraryTable.table.get(barcode);
-					if(libSize == null) {
-						libSize = .0;
-					}
-					libSize += count;
-					LibraryTable.table.put(barcode, libSize);
-				});
+				long[] reads = task.getProcessedReads();
+				for(int i=0; i<reads.length; i++) {
+					processedReads[i] += reads[i];
+				}
 			}
+			LibraryTable.addProcessedReads(processedReads);
 		}
 		
 		// make location table
 		LocTable locTable = new LocTable();
 		
 		// union information
-		for(Task task : tasks) {
-			task.locTable.table.forEach((sequence, lInfos) -> {
-				lInfos.forEach((key, lInfo)->{
-					locTable.putLocation(lInfo);
-				});
-			});
+		for(LocTable matcherLocTable : matcherLocTables) {
+			locTable.merge(matcherLocTable);
 		}
 		WriteOutput.writeMainOutput(records, Parameters.outputBaseFilePath, locTable);
 		//WriteOutput.writeLocationLevelOutput(records, Parameters.outputBaseFilePath, locTable);
@@ -106,9 +104,9 @@ public class MatchFASTQ {
 		
 	}
 	
-	public static void count (ArrayList<FastqRecord> records) {
-		for(FastqRecord record : records) {
-			Task.allTrie.parseText(record.getReadString());
+	public static void count (FastqBatch records) {
+		for(int index=0; index<records.size; index++) {
+			Task.allTrie.parseText(records.getBases(index, '+'));
 		}
 	}
 
@@ -131,12 +129,15 @@ public class MatchFASTQ {
 				args[i].equalsIgnoreCase("-w") || args[i].equalsIgnoreCase("--white_list") ||
 				args[i].equalsIgnoreCase("-p") || args[i].equalsIgnoreCase("--prob") ||
 				args[i].equalsIgnoreCase("-u") || args[i].equalsIgnoreCase("--union") ||
-				args[i].equalsIgnoreCase("-s") || args[i].equalsIgnoreCase("--strand")) {
+				args[i].equalsIgnoreCase("-s") || args[i].equalsIgnoreCase("--strand") ||
+				args[i].equalsIgnoreCase("--engine") || args[i].equalsIgnoreCase("--prefilter_k") ||
+				args[i].equalsIgnoreCase("--inflate_thread")) {
 				nArgs[nIdx++] = args[i++];
 				nArgs[nIdx++] = args[i];
 			} 
 			else if( args[i].equalsIgnoreCase("-v") || args[i].equalsIgnoreCase("--verbose") ||
-					 args[i].equalsIgnoreCase("-e") || args[i].equalsIgnoreCase("--equal")) {
+					 args[i].equalsIgnoreCase("-e") || args[i].equalsIgnoreCase("--equal") ||
+					 args[i].equalsIgnoreCase("--fragment")) {
 				nArgs[nIdx++] = args[i];
 			}
 		}
@@ -238,6 +239,37 @@ public class MatchFASTQ {
 				.build();
 		
 		
+		Option optionEngine = Option.builder()
+				.longOpt("engine").argName("codon|frame|trie")
+				.hasArg()
+				.required(false)
+				.desc("peptide matching engine. codon: match codons without translation, frame: translate three frames and match, "
+						+ "trie: translate three frames and match by the legacy Aho-Corasick trie (default is codon).")
+				.build();
+		
+		Option optionPrefilter = Option.builder()
+				.longOpt("prefilter_k").argName("int")
+				.hasArg()
+				.required(false)
+				.desc("k of amino acid k-mer prefilter for frame and trie engines. Reads without any query k-mer are skipped. "
+						+ "k <= 4 uses a bitset, and k > 4 uses a Bloom filter (0: disable, max: 12, default is 4).")
+				.build();
+		
+		Option optionFragment = Option.builder()
+				.longOpt("fragment").argName("")
+				.required(false)
+				.desc("count a read pair once if both mates match the same sequence. The library size is the number of read pairs (only available in paired-end).")
+				.build();
+		
+		Option optionInflateThread = Option.builder()
+				.longOpt("inflate_thread").argName("int")
+				.hasArg()
+				.required(false)
+				.desc("the number of threads inflating a gzip FASTQ file. BGZF blocks are inflated in parallel, "
+						+ "and gzip members are located speculatively and inflated in parallel. A single-member gzip (e.g. from gzip) is not accelerated: "
+						+ "it is inflated by one thread ahead of the parser. Use bgzip for parallel inflation (default is 0: htsjdk inflates the file in its reading task).")
+				.build();
+		
 		options.addOption(optionInput)
 		.addOption(optionOutput)
 		.addOption(optionStrandeness)
@@ -249,7 +281,11 @@ public class MatchFASTQ {
 		.addOption(optionLibSize)
 		.addOption(optionVerbose)
 		.addOption(optionWhiteList)
-		.addOption(optionROIThreshold);
+		.addOption(optionROIThreshold)
+		.addOption(optionEngine)
+		.addOption(optionPrefilter)
+		.addOption(optionInflateThread)
+		.addOption(optionFragment);
 		
 		CommandLineParser parser = new DefaultParser();
 	    HelpFormatter helper = new HelpFormatter();
@@ -306,6 +342,18 @@ public class MatchFASTQ {
 		    	Parameters.threadNum = Integer.parseInt(cmd.getOptionValue("@"));
 		    }
 		    
+		    if(cmd.hasOption("fragment")) {
+		    	Parameters.isFragmentCount = true;
+		    }
+		    
+		    if(cmd.hasOption("inflate_thread")) {
+		    	Parameters.inflateThreadNum = Integer.parseInt(cmd.getOptionValue("inflate_thread"));
+		    	if(Parameters.inflateThreadNum < 0) {
+		    		System.out.println("Inflate threads must be non-negative: "+Parameters.inflateThreadNum);
+		    		isFail = true;
+		    	}
+		    }
+		    
 		    if(cmd.hasOption("c")) {
 		    	Parameters.count = cmd.getOptionValue("c");
 		    	
@@ -347,6 +395,25 @@ public class MatchFASTQ {
 		    	}
 		    }
 		    
+		    if(cmd.hasOption("engine")) {
+		    	Parameters.engine = cmd.getOptionValue("engine");
+		    	// there is no matched option
+		    	if(!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_CODON) &&
+		    		!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_FRAME) &&
+		    		!Parameters.engine.equalsIgnoreCase(Constants.ENGINE_TRIE) ) {
+		    		System.out.println("Wrong engine: "+Parameters.engine);
+		    		isFail = true;
+		    	}
+		    }
+		    
+		    if(cmd.hasOption("prefilter_k")) {
+		    	Parameters.prefilterK = Integer.parseInt(cmd.getOptionValue("prefilter_k"));
+		    	if(Parameters.prefilterK < 0 || Parameters.prefilterK > KmerFilter.MAX_K) {
+		    		System.out.println("Prefilter k is out of range [0,"+KmerFilter.MAX_K+"]: "+Parameters.prefilterK);
+		    		isFail = true;
+		    	}
+		    }
+		    
 		} catch (ParseException e) {
 			System.out.println(e.getMessage());
 			isFail = true;
@@ -381,8 +448,28 @@ public class MatchFASTQ {
 			System.out.println("Mode: "+Parameters.mode);
 			System.out.println("Count: "+Parameters.count);
 			System.out.println("Peptide level count: "+Parameters.union);
+			if(Parameters.isFragmentCount) {
+				if(Parameters.sequencingFileType == Constants.SEQ_FASTQ_PAIRED) {
+					System.out.println("Count read pairs (fragments)");
+				} else {
+					System.out.println("This is single-end reads. Fragment option is ignored.");
+					Parameters.isFragmentCount = false;
+				}
+			}
 			System.out.println("ROI cutoff: "+Parameters.ROIErrorThreshold);
 			System.out.println("Threads: "+Parameters.threadNum);
+			if(Parameters.inflateThreadNum > 0) {
+				System.out.println("Inflate threads: "+Parameters.inflateThreadNum);
+			}
+			System.out.println("Engine: "+Parameters.engine);
+			// the codon engine does not translate reads, so it has no k-mer prefilter (see PeptideMatcher.buildFilter)
+			if(Parameters.engine.equalsIgnoreCase(Constants.ENGINE_CODON)) {
+				System.out.println("Prefilter: off (codon engine)");
+			} else if(Parameters.prefilterK == 0) {
+				System.out.println("Prefilter: off");
+			} else {
+				System.out.println("Prefilter k: "+Parameters.prefilterK);
+			}
 			if(Parameters.verbose) {
 				System.out.println("Verbose messages");
 			}
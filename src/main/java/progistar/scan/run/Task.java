@@ -1,48 +1,100 @@
 package progistar.scan.run;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.ahocorasick.trie.Trie;
 
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
+import progistar.scan.data.BarcodeTable;
 import progistar.scan.data.Constants;
 import progistar.scan.data.LocTable;
 import progistar.scan.data.Parameters;
 import progistar.scan.data.SequenceRecord;
+import progistar.scan.data.TargetCluster;
+import progistar.scan.function.PeptideMatcher;
+import progistar.scan.function.SamReaderPool;
+import progistar.scan.function.TargetModeRun;
+import progistar.scan.function.UnmappedSpan;
 
 public class Task implements Comparable<Task> {
 
+	// the genomic window of the BAI linear index
+	private static final int LINEAR_INDEX_WINDOW = 16384;
+	// the smallest compressed size of a byte-range task
+	private static final long MIN_TASK_BYTES = 1L << 20;
+	// the smallest genomic range of a task without an index
+	private static final int MIN_TASK_RANGE = 100000;
+	// a query decodes at least one BGZF block
+	private static final long MIN_QUERY_BYTES = 1L << 16;
+	// the first reads of each chromosome for strand detection
+	private static final int STRAND_DETECTION_READS = 100000;
+
 	public int taskIdx = -1;
 	public int type = Constants.TYPE_TARGET_MODE_TASK;
 	public int readType = Constants.MAPPED_READS;
-	public Hashtable<String, Double> processedReads = new Hashtable<String, Double>();
+	// barcode ordinal => processed reads. Only the thread running the task updates it.
+	public long[] processedReads;
+	// barcode ordinal => processed reads counted by the threads sharing the task (FASTQ mode)
+	public LongAdder[] sharedProcessedReads;
 	// only available for TargetMode
 	public ArrayList<SequenceRecord> records = new ArrayList<SequenceRecord>();
 	public int currentRecordIdx = 0;
+	// the cluster of records being processed (mapped reads)
+	public TargetCluster targetCluster = null;
 	
 	// only available for ScanMode.
 	public static Trie allTrie = null;
+	public static PeptideMatcher allMatcher = null;
 	public LocTable locTable = new LocTable();
+	// matches kept until the strandedness is decided (see Mode.resolveStrands)
+	public LocTable[] strandCandidates = null;
 	public String chrName;
 	public int start;
 	public int end;
+	// virtual file offsets of the records owned by the task. null if the task queries a genomic range.
+	public BAMFileSpan fileSpan = null;
+	// alignment starts of the records owned by a file span task after a running split (see splitRunning)
+	public int minReadStart = 0;
+	public int maxReadStart = Integer.MAX_VALUE;
+	// forks the second half of the task when it is split while running. null if the task is not split while running.
+	public Forker forker = null;
+	
+	/**
+	 * The scheduler of a running task (see TaskScheduler).
+	 */
+	public interface Forker {
+		// no task is waiting for workers and a worker is free
+		boolean isIdle ();
+		void fork (Task task);
+	}
 	
+	// estimated cost: compressed bytes to decode if the BAM file has an index.
+	// Otherwise, the length of the genomic range (or the number of unmapped reads to iterate).
+	public long cost = 0;
+	// runtime of the task in milliseconds
+	public long elapsedTime = 0;
 	
 	// estimated memory usage
 	public long peakMemory = 0;
 	
 	// for strand type
-	public int R1F = 0;
-	public int R1R = 0;
-	public int R2F = 0;
-	public int R2R = 0;
+	public long R1F = 0;
+	public long R1R = 0;
+	public long R2F = 0;
+	public long R2R = 0;
 	
 	public String getTaskInfo () {
 		String typeStr = null;
@@ -64,9 +116,32 @@ public class Task implements Comparable<Task> {
 	
 	public Task(int type) {
 		this.type = type;
+		this.processedReads = new long[BarcodeTable.getBarcodeSize()];
+		if(type == Constants.TYPE_FASTQ_MODE_TASK) {
+			this.sharedProcessedReads = new LongAdder[processedReads.length];
+			for(int i=0; i<processedReads.length; i++) {
+				this.sharedProcessedReads[i] = new LongAdder();
+			}
+		}
 	}
 	
-	private static ArrayList<Task> getStrandDectectionTasks (String chrName, int size, int mode) {
+	/**
+	 * Return processed reads by barcode ordinal. <br>
+	 * Call it after the task is done.
+	 * 
+	 * @return
+	 */
+	public long[] getProcessedReads () {
+		long[] reads = processedReads.clone();
+		if(sharedProcessedReads != null) {
+			for(int i=0; i<reads.length; i++) {
+				reads[i] += sharedProcessedReads[i].sum();
+			}
+		}
+		return reads;
+	}
+	
+	private static ArrayList<Task> getStrandDectectionTasks (String chrName, int size, long cost, int mode) {
 		assert mode == Constants.TYPE_STRAND_DETECTION_TASK;
 		
 		ArrayList<Task> tasks = new ArrayList<Task>();
@@ -76,6 +151,7 @@ public class Task implements Comparable<Task> {
 		task.chrName = chrName;
 		task.start = 1;
 		task.end = size;
+		task.cost = cost;
 		tasks.add(task);
 		
 		return tasks;
@@ -118,6 +194,8 @@ public class Task implements Comparable<Task> {
 			task.chrName = chrName;
 			task.start = startInterval;
 			task.end = endInterval;
+			// unmapped reads are iterated from the first one
+			task.cost = task.readType == Constants.UNMAPPED_READS ? endInterval : endInterval - startInterval + 1;
 			tasks.add(task);
 			
 			startInterval = endInterval + 1;
@@ -130,27 +208,340 @@ public class Task implements Comparable<Task> {
 		return tasks;
 	}
 	
-	public static ArrayList<Task> getScanModeTasks (ArrayList<SequenceRecord> records) {
+	/**
+	 * Partition mapped reads by compressed byte volume using the BAM index. <br>
+	 * Each task owns a disjoint range of virtual file offsets, so every record is decoded by exactly one task. <br>
+	 * A range larger than the target size is bisected at the first record overlapping the middle of its genomic range,
+	 * until it is small enough or narrower than a linear index window. <br>
+	 * Return null if the BAM file has no index.
+	 * 
+	 * @param samReader
+	 * @param records
+	 * @param mode
+	 * @return
+	 */
+	private static ArrayList<Task> getFileSpanTasks (SamReader samReader, ArrayList<SequenceRecord> records, int mode) {
+		if(!samReader.hasIndex()) {
+			return null;
+		}
+		
 		ArrayList<Task> tasks = new ArrayList<Task>();
+		BAMIndex index = samReader.indexing().getIndex();
+		List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
+		long[] startOffsets = new long[chromosomes.size()];
+		long[] endOffsets = new long[chromosomes.size()];
+		long totalBytes = 0;
+		for(int i=0; i<chromosomes.size(); i++) {
+			startOffsets[i] = -1;
+			long[] offsets = getChromosomeOffsets(index, i, chromosomes.get(i).getSequenceLength());
+			if(offsets == null) {
+				continue;
+			}
+			startOffsets[i] = offsets[0];
+			endOffsets[i] = offsets[1];
+			totalBytes += getCompressedSize(startOffsets[i], endOffsets[i]);
+		}
 		
-		File file = new File(Parameters.bamFile.getAbsolutePath());
-		// build global trie
-		System.out.println("Build Trie");
-		Task.allTrie = SequenceRecord.getTrie(records);
-		System.out.println("Complete building Trie");
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
+		long targetBytes = Math.max(totalBytes / (Parameters.threadNum * Parameters.chunkSize), MIN_TASK_BYTES);
+		for(int i=0; i<chromosomes.size(); i++) {
+			if(startOffsets[i] != -1) {
+				splitFileSpan(index, i, chromosomes.get(i).getSequenceName(), 1, chromosomes.get(i).getSequenceLength(),
+						startOffsets[i], endOffsets[i], targetBytes, records, mode, tasks);
+			}
+		}
+		
+		return tasks;
+	}
+	
+	// the first and the end offsets of the reads of a chromosome, or null if it has no reads.
+	private static long[] getChromosomeOffsets (BAMIndex index, int refIdx, int length) {
+		BAMFileSpan span = index.getSpanOverlapping(refIdx, 1, length);
+		if(span == null || span.isEmpty()) {
+			return null;
+		}
+		long[] offsets = {span.getFirstOffset(), 0};
+		for(Chunk chunk : span.getChunks()) {
+			offsets[1] = Math.max(offsets[1], chunk.getChunkEnd());
+		}
+		return offsets;
+	}
+	
+	private static void splitFileSpan (BAMIndex index, int refIdx, String chrName, int start, int end, 
+			long startOffset, long endOffset, long targetBytes, ArrayList<SequenceRecord> records, int mode, ArrayList<Task> tasks) {
+		if(getCompressedSize(startOffset, endOffset) > targetBytes && end - start >= LINEAR_INDEX_WINDOW) {
+			int mid = start + (end - start) / 2;
+			long midOffset = getMidOffset(index, refIdx, mid, end, startOffset, endOffset);
+			
+			if(midOffset > startOffset) {
+				splitFileSpan(index, refIdx, chrName, start, mid-1, startOffset, midOffset, targetBytes, records, mode, tasks);
+			}
+			if(midOffset < endOffset) {
+				splitFileSpan(index, refIdx, chrName, mid, end, midOffset, endOffset, targetBytes, records, mode, tasks);
+			}
+			return;
+		}
+		
+		Task task = new Task(mode);
+		task.readType = Constants.MAPPED_READS;
+		task.records = records;
+		task.chrName = chrName;
+		task.start = start;
+		task.end = end;
+		task.fileSpan = new BAMFileSpan(new Chunk(startOffset, endOffset));
+		task.cost = getCompressedSize(startOffset, endOffset);
+		tasks.add(task);
+	}
+	
+	// reads overlapping [mid, end] start from this offset
+	private static long getMidOffset (BAMIndex index, int refIdx, int mid, int end, long startOffset, long endOffset) {
+		BAMFileSpan span = index.getSpanOverlapping(refIdx, mid, end);
+		long midOffset = (span == null || span.isEmpty()) ? endOffset : span.getFirstOffset();
+		return Math.max(startOffset, Math.min(midOffset, endOffset));
+	}
+	
+	// compressed bytes to decode for a cluster of target records
+	private static long getQueryCost (BAMIndex index, SAMFileHeader header, TargetCluster cluster) {
+		int refIdx = header.getSequenceIndex(cluster.chr);
+		if(refIdx == -1) {
+			return MIN_QUERY_BYTES;
+		}
+		long cost = 0;
+		BAMFileSpan span = index.getSpanOverlapping(refIdx, Math.max(1, cluster.start), cluster.end);
+		if(span != null) {
+			for(Chunk chunk : span.getChunks()) {
+				cost += getCompressedSize(chunk.getChunkStart(), chunk.getChunkEnd());
+			}
+		}
+		return Math.max(cost, MIN_QUERY_BYTES);
+	}
+	
+	/**
+	 * Select the strategy of a chromosome in target mode. <br>
+	 * Queries decode the BAI chunks of each cluster (at least one BGZF block per cluster), and a sweep decodes all reads of the chromosome.
+	 * The sweep is selected if the queries decode as many bytes as the sweep. <br>
+	 * Parameters.targetStrategy overrides it, but a sweep needs an index.
+	 * 
+	 * @param chrName
+	 * @param clusters
+	 * @param queryBytes
+	 * @param offsets reads of the chromosome (null if there is no index or no read)
+	 * @return
+	 */
+	private static String getTargetStrategy (String chrName, ArrayList<TargetCluster> clusters, long queryBytes, long[] offsets) {
+		int targetNum = 0;
+		for(TargetCluster cluster : clusters) {
+			targetNum += cluster.records.size();
+		}
+		
+		String strategy = Constants.TARGET_STRATEGY_QUERY;
+		String reason = null;
+		if(offsets == null) {
+			reason = "no indexed reads";
+		} else {
+			long sweepBytes = getCompressedSize(offsets[0], offsets[1]);
+			reason = "query "+queryBytes+" bytes, sweep "+sweepBytes+" bytes";
+			if(Parameters.targetStrategy.equalsIgnoreCase(Constants.TARGET_STRATEGY_AUTO)) {
+				strategy = queryBytes >= sweepBytes ? Constants.TARGET_STRATEGY_SWEEP : Constants.TARGET_STRATEGY_QUERY;
+			} else {
+				strategy = Parameters.targetStrategy;
+				reason += ", given by option";
+			}
+		}
+		System.out.println(chrName+": "+targetNum+" targets in "+clusters.size()+" clusters => "+strategy+" ("+reason+")");
+		return strategy;
+	}
+	
+	/**
+	 * Return true if the task can be split into two tasks. <br>
+	 * Strand detection and unmapped tasks are not split.
+	 * 
+	 * @return
+	 */
+	public boolean isSplittable () {
+		if(type == Constants.TYPE_STRAND_DETECTION_TASK || readType != Constants.MAPPED_READS) {
+			return false;
+		}
+		if(fileSpan != null) {
+			return cost >= 2 * MIN_TASK_BYTES && end - start >= 2 * LINEAR_INDEX_WINDOW;
+		}
+		// target mode: a chunk of records
+		if(type == Constants.TYPE_TARGET_MODE_TASK) {
+			return records.size() > 1;
+		}
+		return end - start >= 2 * MIN_TASK_RANGE;
+	}
+	
+	/**
+	 * Split the task into two halves: the genomic range and the file span at the first record overlapping the second half,
+	 * records for target mode without a file span, otherwise the genomic range. <br>
+	 * Return null if it cannot be split.
+	 * 
+	 * @param samReader an indexed reader for file span tasks
+	 * @return
+	 */
+	public Task[] split (SamReader samReader) {
+		if(!isSplittable()) {
+			return null;
+		}
+		
+		Task left = copy();
+		Task right = copy();
+		if(type == Constants.TYPE_TARGET_MODE_TASK && fileSpan == null) {
+			int mid = records.size() / 2;
+			left.records = new ArrayList<SequenceRecord>(records.subList(0, mid));
+			right.records = new ArrayList<SequenceRecord>(records.subList(mid, records.size()));
+			left.cost = cost / 2;
+			right.cost = cost - left.cost;
+			return new Task[] {left, right};
+		}
+		
+		int mid = start + (end - start) / 2;
+		left.end = mid-1;
+		right.start = mid;
+		if(fileSpan != null) {
+			int refIdx = samReader.getFileHeader().getSequenceIndex(chrName);
+			long startOffset = fileSpan.getFirstOffset();
+			long endOffset = fileSpan.getChunks().get(0).getChunkEnd();
+			long midOffset = getMidOffset(samReader.indexing().getIndex(), refIdx, mid, end, startOffset, endOffset);
+			// all reads start in one half
+			if(midOffset == startOffset || midOffset == endOffset) {
+				return null;
+			}
+			left.fileSpan = new BAMFileSpan(new Chunk(startOffset, midOffset));
+			right.fileSpan = new BAMFileSpan(new Chunk(midOffset, endOffset));
+			left.cost = getCompressedSize(startOffset, midOffset);
+			right.cost = getCompressedSize(midOffset, endOffset);
+		} else {
+			left.cost = left.end - left.start + 1;
+			right.cost = right.end - right.start + 1;
+		}
+		return new Task[] {left, right};
+	}
+	
+	/**
+	 * Split a running file span task of mapped reads after the read being processed. <br>
+	 * The running task keeps the reads starting before the middle of the remaining genomic range,
+	 * and the returned task owns the reads starting from the middle: its file span starts at the first read overlapping the middle,
+	 * and the reads starting before the middle are skipped (see Mode.find). <br>
+	 * Return null if the remaining range is too small to split.
+	 * 
+	 * @param samReader an indexed reader
+	 * @param currentStart the alignment start of the read being processed
+	 * @return
+	 */
+	public Task splitRunning (SamReader samReader, int currentStart) {
+		if(fileSpan == null || readType != Constants.MAPPED_READS || !samReader.hasIndex()) {
+			return null;
+		}
+		int remainingStart = Math.max(currentStart, start) + 1;
+		int remainingEnd = Math.min(maxReadStart, end);
+		if(remainingEnd - remainingStart < 2 * LINEAR_INDEX_WINDOW) {
+			return null;
+		}
+		
+		int refIdx = samReader.getFileHeader().getSequenceIndex(chrName);
+		int mid = remainingStart + (remainingEnd - remainingStart) / 2;
+		long startOffset = fileSpan.getFirstOffset();
+		long endOffset = fileSpan.getChunks().get(0).getChunkEnd();
+		long midOffset = getMidOffset(samReader.indexing().getIndex(), refIdx, mid, remainingEnd, startOffset, endOffset);
+		if(midOffset == endOffset || getCompressedSize(midOffset, endOffset) < MIN_TASK_BYTES) {
+			return null;
+		}
+		
+		Task rest = copy();
+		rest.start = mid;
+		rest.minReadStart = mid;
+		rest.fileSpan = new BAMFileSpan(new Chunk(midOffset, endOffset));
+		rest.cost = getCompressedSize(midOffset, endOffset);
+		end = mid-1;
+		maxReadStart = mid-1;
+		cost -= rest.cost;
+		return rest;
+	}
+	
+	private Task copy () {
+		Task task = new Task(type);
+		task.readType = readType;
+		task.records = records;
+		task.chrName = chrName;
+		task.start = start;
+		task.end = end;
+		task.fileSpan = fileSpan;
+		task.minReadStart = minReadStart;
+		task.maxReadStart = maxReadStart;
+		task.targetCluster = targetCluster;
+		return task;
+	}
+	
+	// compressed bytes between two virtual file offsets
+	private static long getCompressedSize (long startOffset, long endOffset) {
+		return (endOffset >>> 16) - (startOffset >>> 16);
+	}
+	
+	/**
+	 * Partition unmapped reads (reads without coordinate). <br>
+	 * With a BAM index, the unmapped tail following the last mapped read is split once into virtual offset ranges
+	 * (see UnmappedSpan), and the count of the index replaces the counting pass. <br>
+	 * Without an index, unmapped reads are counted and partitioned by their order.
+	 * 
+	 * @param samReader
+	 * @param file
+	 * @param records
+	 * @param mode
+	 * @return
+	 * @throws IOException
+	 */
+	private static ArrayList<Task> getUnmappedTasks (SamReader samReader, File file, ArrayList<SequenceRecord> records, int mode) throws IOException {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		
+		if(samReader.hasIndex() && samReader.type() == SamReader.Type.BAM_TYPE && 
+				samReader.indexing().getIndex() instanceof AbstractBAMFileIndex) {
+			AbstractBAMFileIndex index = (AbstractBAMFileIndex) samReader.indexing().getIndex();
+			Long unmappedSize = index.getNoCoordinateCount();
+			boolean hasUnmapped = false;
+			if(unmappedSize != null) {
+				hasUnmapped = unmappedSize > 0;
+			} else {
+				// old index without the count
+				try (SAMRecordIterator unmappedIter = samReader.queryUnmapped()) {
+					hasUnmapped = unmappedIter.hasNext();
+				}
+			}
+			if(!hasUnmapped) {
+				return tasks;
+			}
+			Parameters.unmmapedMarker = SAMRecord.NO_ALIGNMENT_REFERENCE_NAME;
+			
+			// the unmapped tail starts where the last mapped read ends
+			long startOffset = -1;
 			List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
-			for(SAMSequenceRecord chromosome : chromosomes) {
-				// System.out.println(chromosome.getSAMString());
-				String chrName = chromosome.getSequenceName();
-				int start = chromosome.getStart();
-				int end = chromosome.getEnd();
-				
-				tasks.addAll(getChromosomeLevelTasks(records, chrName, start, end, Constants.TYPE_SCAN_MODE_TASK));
+			for(int i=0; i<chromosomes.size(); i++) {
+				BAMFileSpan span = index.getSpanOverlapping(i, 1, chromosomes.get(i).getSequenceLength());
+				if(span == null || span.isEmpty()) {
+					continue;
+				}
+				for(Chunk chunk : span.getChunks()) {
+					startOffset = Math.max(startOffset, chunk.getChunkEnd());
+				}
+			}
+			if(startOffset == -1) {
+				startOffset = ((BAMFileSpan) samReader.indexing().getFilePointerSpanningReads()).getFirstOffset();
 			}
 			
-			// for unmapped reads
-			SAMRecordIterator unmappedIter = samReader.queryUnmapped();
+			long[] boundaries = UnmappedSpan.split(file, startOffset, Parameters.threadNum);
+			for(int i=0; i<boundaries.length-1; i++) {
+				Task task = new Task(mode);
+				task.readType = Constants.UNMAPPED_READS;
+				task.records = records;
+				task.chrName = Constants.NULL;
+				task.fileSpan = new BAMFileSpan(new Chunk(boundaries[i], boundaries[i+1]));
+				task.cost = getCompressedSize(boundaries[i], boundaries[i+1]);
+				tasks.add(task);
+			}
+			return tasks;
+		}
+		
+		try (SAMRecordIterator unmappedIter = samReader.queryUnmapped()) {
 			int size = 0;
 			while(unmappedIter.hasNext()) {
 				SAMRecord samRecord = unmappedIter.next();
@@ -161,15 +552,55 @@ public class Task implements Comparable<Task> {
 			}
 			if(Parameters.unmmapedMarker != null) {
 				// System.out.println("@SQ\t"+Scan.unmmapedMarker+"\tLN:"+size);
-				tasks.addAll(getChromosomeLevelTasks(records, Constants.NULL, 1, size, Constants.TYPE_SCAN_MODE_TASK));
+				tasks.addAll(getChromosomeLevelTasks(records, Constants.NULL, 1, size, mode));
+			}
+		}
+		return tasks;
+	}
+	
+	// build the global trie (nucleotide) or matcher (peptide)
+	private static void buildMatcher (ArrayList<SequenceRecord> records) {
+		System.out.println("Build Trie");
+		if(Parameters.sequence.equalsIgnoreCase(Constants.SEQUENCE_NUCLEOTIDE)) {
+			Task.allTrie = SequenceRecord.getTrie(records);
+		} else {
+			Task.allMatcher = SequenceRecord.getMatcher(records);
+			if(Task.allMatcher != null) {
+				Task.allMatcher.buildFilter(Parameters.prefilterK);
 			}
+		}
+		System.out.println("Complete building Trie");
+	}
+	
+	public static ArrayList<Task> getScanModeTasks (ArrayList<SequenceRecord> records) {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		
+		File file = new File(Parameters.bamFile.getAbsolutePath());
+		buildMatcher(records);
+		try {
+			SamReader samReader = SamReaderPool.get();
+			ArrayList<Task> fileSpanTasks = getFileSpanTasks(samReader, records, Constants.TYPE_SCAN_MODE_TASK);
+			if(fileSpanTasks != null) {
+				tasks.addAll(fileSpanTasks);
+			} else {
+				List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
+				for(SAMSequenceRecord chromosome : chromosomes) {
+					// System.out.println(chromosome.getSAMString());
+					String chrName = chromosome.getSequenceName();
+					int start = chromosome.getStart();
+					int end = chromosome.getEnd();
+					
+					tasks.addAll(getChromosomeLevelTasks(records, chrName, start, end, Constants.TYPE_SCAN_MODE_TASK));
+				}
+			}
+			
+			// for unmapped reads
+			tasks.addAll(getUnmappedTasks(samReader, file, records, Constants.TYPE_SCAN_MODE_TASK));
 			
 			// assign idx
 			for(int i=0; i<tasks.size(); i++) {
 				tasks.get(i).taskIdx = (i+1);
 			}
-			
-			unmappedIter.close();
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -179,6 +610,30 @@ public class Task implements Comparable<Task> {
 		return tasks;
 	}
 	
+	/**
+	 * Scan mode tasks for a BAM/SAM stream (see StreamScanRun). <br>
+	 * Each matcher thread runs one task over the batches of reads it takes, so a task has no range.
+	 * 
+	 * @param records
+	 * @param taskNum the number of matcher threads
+	 * @return
+	 */
+	public static ArrayList<Task> getStreamScanTasks (ArrayList<SequenceRecord> records, int taskNum) {
+		ArrayList<Task> tasks = new ArrayList<Task>();
+		
+		buildMatcher(records);
+		for(int i=0; i<taskNum; i++) {
+			Task task = new Task(Constants.TYPE_SCAN_MODE_TASK);
+			task.readType = Constants.ALL_READS;
+			task.records = records;
+			task.chrName = Constants.NULL;
+			task.taskIdx = (i+1);
+			tasks.add(task);
+		}
+		
+		return tasks;
+	}
+	
 	public static ArrayList<Task> getTargetModeTasks (ArrayList<SequenceRecord> records, int chunkSize) {
 		System.out.println("Prepare tasks with chunk size = "+chunkSize);
 		
@@ -205,28 +660,15 @@ public class Task implements Comparable<Task> {
 		// generate unmapped tasks
 		File file = new File(Parameters.bamFile.getAbsolutePath());
 		if(unmappedSize != 0) {
-			try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
+			try {
+				SamReader samReader = SamReaderPool.get();
 				// for unmapped reads
-				SAMRecordIterator unmappedIter = samReader.queryUnmapped();
-				int size = 0;
-				while(unmappedIter.hasNext()) {
-					SAMRecord samRecord = unmappedIter.next();
-					if(Parameters.unmmapedMarker == null) {
-						Parameters.unmmapedMarker = samRecord.getReferenceName();
-					}
-					size ++;
-				}
-				if(Parameters.unmmapedMarker != null) {
-					// System.out.println("@SQ\t"+Scan.unmmapedMarker+"\tLN:"+size);
-					tasks.addAll(getChromosomeLevelTasks(unmappedRecords, Constants.NULL, 1, size, Constants.TYPE_TARGET_MODE_TASK));
-				}
+				tasks.addAll(getUnmappedTasks(samReader, file, unmappedRecords, Constants.TYPE_TARGET_MODE_TASK));
 				
 				// assign idx
 				for(int i=0; i<tasks.size(); i++) {
 					tasks.get(i).taskIdx = (i+1);
 				}
-				
-				unmappedIter.close();
 			} catch(Exception e) {
 				e.printStackTrace();
 				System.exit(1);
@@ -234,19 +676,62 @@ public class Task implements Comparable<Task> {
 		}
 		
 		
-		// generate mapped tasks
-		int sIdx = 0;
-		while(sIdx < mappedSize) {
-			int eIdx = sIdx + chunkSize > mappedSize ? mappedSize : sIdx + chunkSize;
-			Task task = new Task(Constants.TYPE_TARGET_MODE_TASK);
-			task.readType = Constants.MAPPED_READS;
-			
-			for(int i=sIdx; i<eIdx; i++) {
-				task.records.add(mappedRecords.get(i));
+		// generate mapped tasks by genomic locality
+		// each chromosome is read by queries of target clusters or by a sequential sweep
+		try {
+			SamReader samReader = SamReaderPool.get();
+			SAMFileHeader header = samReader.getFileHeader();
+			BAMIndex index = samReader.hasIndex() ? samReader.indexing().getIndex() : null;
+			ArrayList<TargetCluster> clusters = TargetCluster.cluster(mappedRecords, TargetModeRun.WINDOW_MARGIN);
+			Task task = null;
+			int sIdx = 0;
+			while(sIdx < clusters.size()) {
+				// clusters of a chromosome
+				String chrName = clusters.get(sIdx).chr;
+				int eIdx = sIdx;
+				long queryBytes = 0;
+				ArrayList<TargetCluster> chrClusters = new ArrayList<TargetCluster>();
+				for(; eIdx < clusters.size() && clusters.get(eIdx).chr.equals(chrName); eIdx++) {
+					TargetCluster cluster = clusters.get(eIdx);
+					cluster.cost = index == null ? MIN_QUERY_BYTES : getQueryCost(index, header, cluster);
+					queryBytes += cluster.cost;
+					chrClusters.add(cluster);
+				}
+				sIdx = eIdx;
+				
+				int refIdx = header.getSequenceIndex(chrName);
+				long[] offsets = (index == null || refIdx == -1) ? 
+						null : getChromosomeOffsets(index, refIdx, header.getSequence(refIdx).getSequenceLength());
+				
+				if(getTargetStrategy(chrName, chrClusters, queryBytes, offsets).equalsIgnoreCase(Constants.TARGET_STRATEGY_SWEEP)) {
+					TargetCluster chrCluster = TargetCluster.merge(chrClusters);
+					long sweepBytes = getCompressedSize(offsets[0], offsets[1]);
+					ArrayList<Task> sweepTasks = new ArrayList<Task>();
+					splitFileSpan(index, refIdx, chrName, 1, header.getSequence(refIdx).getSequenceLength(), offsets[0], offsets[1], 
+							Math.max(sweepBytes / Parameters.threadNum, MIN_TASK_BYTES), chrCluster.records, Constants.TYPE_TARGET_MODE_TASK, sweepTasks);
+					for(Task sweepTask : sweepTasks) {
+						sweepTask.targetCluster = chrCluster;
+						tasks.add(sweepTask);
+						sweepTask.taskIdx = tasks.size();
+					}
+					task = null;
+				} else {
+					// a cluster of nearby targets is not split into tasks
+					for(TargetCluster cluster : chrClusters) {
+						if(task == null || task.records.size() >= chunkSize) {
+							task = new Task(Constants.TYPE_TARGET_MODE_TASK);
+							task.readType = Constants.MAPPED_READS;
+							tasks.add(task);
+							task.taskIdx = tasks.size();
+						}
+						task.records.addAll(cluster.records);
+						task.cost += cluster.cost;
+					}
+				}
 			}
-			tasks.add(task);
-			task.taskIdx = tasks.size();
-			sIdx = eIdx;
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
 		
 		if(Parameters.verbose) {
@@ -262,24 +747,17 @@ public class Task implements Comparable<Task> {
 	public static ArrayList<Task> getFASTQModeTasks (ArrayList<SequenceRecord> records) {
 		ArrayList<Task> tasks = new ArrayList<Task>();
 		
-		// build global trie
-		System.out.println("Build Trie");
-		Task.allTrie = SequenceRecord.getTrie(records);
-		System.out.println("Complete building Trie");
-			
+		buildMatcher(records);
 		
 		if(Parameters.sequencingFileType == Constants.SEQ_FASTQ_SINGLE) {
 			Task task = new Task(Constants.TYPE_FASTQ_MODE_TASK);
 			task.start = 0;
 			tasks.add(task);
 		} else if(Parameters.sequencingFileType == Constants.SEQ_FASTQ_PAIRED) {
-			// first fastq
+			// first and second fastq in lockstep (mates are in the same batch)
 			Task task = new Task(Constants.TYPE_FASTQ_MODE_TASK);
 			task.start = 1;
-			tasks.add(task);
-			// second fastq
-			task = new Task(Constants.TYPE_FASTQ_MODE_TASK);
-			task.start = 2;
+			task.end = 2;
 			tasks.add(task);
 		}
 		
@@ -291,19 +769,48 @@ public class Task implements Comparable<Task> {
 		return tasks;
 	}
 	
+	/**
+	 * Compressed bytes of the first reads of a chromosome, in proportion to the reads of the chromosome in the index. <br>
+	 * Without an index, it is the number of reads, as a genomic range without an index.
+	 * 
+	 * @param samReader
+	 * @param refIdx
+	 * @param reads
+	 * @return
+	 */
+	private static long getStrandDetectionCost (SamReader samReader, int refIdx, int reads) {
+		if(!samReader.hasIndex()) {
+			return reads;
+		}
+		BAMIndex index = samReader.indexing().getIndex();
+		long[] offsets = getChromosomeOffsets(index, refIdx, samReader.getFileHeader().getSequence(refIdx).getSequenceLength());
+		if(offsets == null) {
+			return MIN_QUERY_BYTES;
+		}
+		long bytes = getCompressedSize(offsets[0], offsets[1]);
+		BAMIndexMetaData metaData = index.getMetaData(refIdx);
+		long records = metaData == null ? 0 : (long) metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+		if(records > reads) {
+			bytes = bytes * reads / records;
+		}
+		return Math.max(bytes, MIN_QUERY_BYTES);
+	}
+	
 	public static ArrayList<Task> getStrandDetectionTask () {
 		ArrayList<Task> tasks = new ArrayList<Task>();
 		
-		File file = new File(Parameters.bamFile.getAbsolutePath());
 		Task.allTrie = null;
+		Task.allMatcher = null;
 		
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
+		try {
+			SamReader samReader = SamReaderPool.get();
 			// System.out.println(samReader.getFileHeader().getSequenceDictionary().getSequences().get(0).getSequenceLength());
 			List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
-			for(SAMSequenceRecord chromosome : chromosomes) {
+			for(int i=0; i<chromosomes.size(); i++) {
 				// System.out.println(chromosome.getSAMString());
-				String chrName = chromosome.getSequenceName();
-				tasks.addAll(getStrandDectectionTasks(chrName, 100000, Constants.TYPE_STRAND_DETECTION_TASK));
+				String chrName = chromosomes.get(i).getSequenceName();
+				tasks.addAll(getStrandDectectionTasks(chrName, STRAND_DETECTION_READS, 
+						getStrandDetectionCost(samReader, i, STRAND_DETECTION_READS), Constants.TYPE_STRAND_DETECTION_TASK));
 			}
 			
 			// assign idx
@@ -323,40 +830,33 @@ public class Task implements Comparable<Task> {
 		
 		File file = new File(Parameters.bamFile.getAbsolutePath());
 		Task.allTrie = null;
+		Task.allMatcher = null;
 		
-		try (SamReader samReader = SamReaderFactory.makeDefault().open(file)) {
+		try {
+			SamReader samReader = SamReaderPool.get();
 			// System.out.println(samReader.getFileHeader().getSequenceDictionary().getSequences().get(0).getSequenceLength());
-			List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
-			for(SAMSequenceRecord chromosome : chromosomes) {
-				// System.out.println(chromosome.getSAMString());
-				String chrName = chromosome.getSequenceName();
-				int start = chromosome.getStart();
-				int end = chromosome.getEnd();
-				tasks.addAll(getChromosomeLevelTasks(null, chrName, start, end, Constants.TYPE_TARGET_MODE_TASK));
+			ArrayList<Task> fileSpanTasks = getFileSpanTasks(samReader, null, Constants.TYPE_TARGET_MODE_TASK);
+			if(fileSpanTasks != null) {
+				tasks.addAll(fileSpanTasks);
+			} else {
+				List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
+				for(SAMSequenceRecord chromosome : chromosomes) {
+					// System.out.println(chromosome.getSAMString());
+					String chrName = chromosome.getSequenceName();
+					int start = chromosome.getStart();
+					int end = chromosome.getEnd();
+					tasks.addAll(getChromosomeLevelTasks(null, chrName, start, end, Constants.TYPE_TARGET_MODE_TASK));
+				}
 			}
 			
 			// for unmapped reads
-			SAMRecordIterator unmappedIter = samReader.queryUnmapped();
-			int size = 0;
-			while(unmappedIter.hasNext()) {
-				SAMRecord samRecord = unmappedIter.next();
-				if(Parameters.unmmapedMarker == null) {
-					Parameters.unmmapedMarker = samRecord.getReferenceName();
-				}
-				size ++;
-			}
-			if(Parameters.unmmapedMarker != null) {
-				// System.out.println("@SQ\t"+Scan.unmmapedMarker+"\tLN:"+size);
-				tasks.addAll(getChromosomeLevelTasks(null, Constants.NULL, 1, size, Constants.TYPE_TARGET_MODE_TASK));
-			}
+			tasks.addAll(getUnmappedTasks(samReader, file, null, Constants.TYPE_TARGET_MODE_TASK));
 			
 			// assign idx
 			for(int i=0; i<tasks.size(); i++) {
 				tasks.get(i).taskIdx = (i+1);
 			}
 			
-			unmappedIter.close();
-			
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -0,0 +1,139 @@
+package progistar.scan.run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import progistar.scan.data.Parameters;
+import progistar.scan.function.SamReaderPool;
+
+/**
+ * Run BAM tasks on a work-stealing pool. <br>
+ * Tasks are submitted in descending order of their estimated cost (see Task.cost),
+ * so the largest tasks do not start last. <br>
+ * When no task is left in the queues and a worker is idle, a task about to run is split into two halves (see Task.split)
+ * and one half is left for the idle worker. This repeats on the halves until they cannot be split. <br>
+ * A running file span task checks for idle workers between its reads, and forks the rest of its genomic range
+ * in the same way (see Task.splitRunning). <br>
+ * Runtimes of the tasks are reported at the end to check the tail latency.
+ *
+ */
+public class TaskScheduler {
+
+	private static final int SLOWEST_TASKS = 3;
+
+	private ForkJoinPool pool;
+	private ConcurrentLinkedQueue<Task> doneTasks = new ConcurrentLinkedQueue<Task>();
+	private AtomicInteger lastTaskIdx = new AtomicInteger();
+
+	private class TaskAction extends RecursiveAction implements Task.Forker {
+		private static final long serialVersionUID = 1L;
+		private Task task;
+
+		public TaskAction (Task task) {
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			while(isIdle()) {
+				Task[] halves = task.split(SamReaderPool.get());
+				if(halves == null) {
+					break;
+				}
+				Worker.addTotalTasks(1);
+				halves[0].taskIdx = task.taskIdx;
+				halves[1].taskIdx = lastTaskIdx.incrementAndGet();
+				new TaskAction(halves[1]).fork();
+				task = halves[0];
+			}
+
+			// the running task forks the rest of its span when workers get idle (see Mode.find)
+			task.forker = this;
+			new Worker(task).call();
+			task.forker = null;
+			doneTasks.add(task);
+		}
+
+		/**
+		 * True if no task is left in the queues and a worker is free to take a new one. <br>
+		 * Empty queues alone also hold when all workers are busy, and then a split only costs an index lookup.
+		 */
+		@Override
+		public boolean isIdle () {
+			return pool.getQueuedTaskCount() == 0 && pool.getQueuedSubmissionCount() == 0
+					&& pool.getActiveThreadCount() < pool.getParallelism();
+		}
+
+		@Override
+		public void fork (Task rest) {
+			Worker.addTotalTasks(1);
+			rest.taskIdx = lastTaskIdx.incrementAndGet();
+			new TaskAction(rest).fork();
+		}
+	}
+
+	/**
+	 * Run all tasks and return the executed tasks. <br>
+	 * A split task is replaced with its halves in the returned list.
+	 *
+	 * @param tasks
+	 * @return
+	 */
+	public static ArrayList<Task> run (ArrayList<Task> tasks) {
+		TaskScheduler scheduler = new TaskScheduler();
+		// longest-first. The same cost follows the task priority (Library > Unmapped > Mapped).
+		ArrayList<Task> orderedTasks = new ArrayList<Task>(tasks);
+		Collections.sort(orderedTasks, (t1, t2) -> {
+			int cmp = Long.compare(t2.cost, t1.cost);
+			return cmp != 0 ? cmp : t1.compareTo(t2);
+		});
+
+		// asyncMode: forked tasks are taken in FIFO order
+		scheduler.pool = new ForkJoinPool(Parameters.threadNum, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		try {
+			Worker.resetDoneCount(orderedTasks.size());
+			for(Task task : orderedTasks) {
+				scheduler.lastTaskIdx.set(Math.max(scheduler.lastTaskIdx.get(), task.taskIdx));
+			}
+			for(Task task : orderedTasks) {
+				scheduler.pool.execute(scheduler.new TaskAction(task));
+			}
+			// forked halves are still accepted after shutdown
+			scheduler.pool.shutdown();
+			scheduler.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		ArrayList<Task> doneTasks = new ArrayList<Task>(scheduler.doneTasks);
+		printRuntimes(doneTasks);
+		return doneTasks;
+	}
+
+	private static void printRuntimes (ArrayList<Task> tasks) {
+		if(tasks.size() == 0) {
+			return;
+		}
+		ArrayList<Task> sortedTasks = new ArrayList<Task>(tasks);
+		Collections.sort(sortedTasks, (t1, t2) -> Long.compare(t1.elapsedTime, t2.elapsedTime));
+		int size = sortedTasks.size();
+		System.out.println("Task runtime (ms): "+size+" tasks, median "+sortedTasks.get(size/2).elapsedTime
+				+", 90th "+sortedTasks.get((int) (size * 0.9)).elapsedTime+", max "+sortedTasks.get(size-1).elapsedTime);
+		for(int i=size-1; i>=Math.max(0, size-SLOWEST_TASKS); i--) {
+			Task task = sortedTasks.get(i);
+			String range = task.chrName == null ? "" : " "+task.chrName+":"+task.start+"-"+task.end;
+			System.out.println(" "+task.getTaskInfo()+range+" cost "+task.cost+" "+task.elapsedTime+" ms");
+		}
+		if(Parameters.verbose) {
+			for(Task task : tasks) {
+				System.out.println(task.getTaskInfo()+"\t"+task.cost+"\t"+task.elapsedTime);
+			}
+		}
+	}
+}
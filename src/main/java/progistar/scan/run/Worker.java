@@ -26,13 +26,43 @@ public class Worker implements Callable<String> {
 		Worker.progress = 0;
 	}
 	
+	/**
+	 * Use it when new job gets started and the workers are created later.
+	 * 
+	 * @param totalTasks
+	 */
+	public static synchronized void resetDoneCount (int totalTasks) {
+		resetDoneCount();
+		Worker.totalTasks = totalTasks;
+	}
+	
 	public Worker (Task task, int totalTasks) {
 		super();
 		this.task = task;
 		Worker.totalTasks = totalTasks;
 	}
 	
+	/**
+	 * Use it when the total number of tasks is already set.
+	 * 
+	 * @param task
+	 */
+	public Worker (Task task) {
+		super();
+		this.task = task;
+	}
+	
+	/**
+	 * Use it when a task is split into more tasks.
+	 * 
+	 * @param addedTasks
+	 */
+	public static synchronized void addTotalTasks (int addedTasks) {
+		Worker.totalTasks += addedTasks;
+	}
+	
 	public String call() {
+		long startTime = System.currentTimeMillis();
 		if(Parameters.verbose) {
 			System.out.println(task.getTaskInfo());
 		}
@@ -55,6 +85,7 @@ public class Worker implements Callable<String> {
 		
 		// call once
 		this.task.peakMemory = CheckMemory.checkUsedMemoryMB();
+		this.task.elapsedTime = System.currentTimeMillis() - startTime;
 		countTasks();
 		
 		return task.getTaskInfo();
@@ -0,0 +1,151 @@
+package progistar.scan.function;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+import progistar.scan.data.FastqBatch;
+
+/**
+ * FastqParser must return the requested number of records per batch, so paired files stay in lockstep,
+ * and must read CRLF line ends and blank lines.
+ *
+ */
+public class FastqParserTest extends TestCase {
+
+	private static final int RECORDS = 30000;
+	private static final int[] BATCH_SIZES = {1, 1000, 4096, 50000};
+
+	private File file1;
+	private File file2;
+
+	@Override
+	protected void setUp () throws IOException {
+		file1 = File.createTempFile("parser_R1", ".fastq.gz");
+		file2 = File.createTempFile("parser_R2", ".fastq.gz");
+	}
+
+	@Override
+	protected void tearDown () {
+		file1.delete();
+		file2.delete();
+	}
+
+	public void testLockstep () throws IOException {
+		// mates with different record sizes
+		ArrayList<String[]> records1 = newRecords(RECORDS, 8, 50, new Random(1));
+		ArrayList<String[]> records2 = newRecords(RECORDS, 120, 151, new Random(2));
+		writeFastq(file1, records1, "\n", false);
+		writeFastq(file2, records2, "\n", false);
+
+		for(int inflateThreadNum : new int[] {0, 2}) {
+			for(int batchSize : BATCH_SIZES) {
+				try (FastqParser parser1 = new FastqParser(file1, inflateThreadNum);
+						FastqParser parser2 = new FastqParser(file2, inflateThreadNum)) {
+					int index = 0;
+					while(true) {
+						FastqBatch batch1 = parser1.read(batchSize);
+						FastqBatch batch2 = parser2.read(batchSize);
+						if(batch1 == null) {
+							assertNull(batch2);
+							break;
+						}
+						assertEquals(Math.min(batchSize, RECORDS - index), batch1.size);
+						assertEquals(batch1.size, batch2.size);
+						assertRecords(records1, index, batch1);
+						assertRecords(records2, index, batch2);
+						index += batch1.size;
+					}
+					assertEquals(RECORDS, index);
+				}
+			}
+		}
+	}
+
+	public void testCRLF () throws IOException {
+		ArrayList<String[]> records = newRecords(RECORDS, 20, 100, new Random(3));
+		// CRLF, blank lines between records and no line feed at the end of the file
+		writeFastq(file1, records, "\r\n", true);
+
+		for(int batchSize : BATCH_SIZES) {
+			try (FastqParser parser = new FastqParser(file1, 0)) {
+				int index = 0;
+				FastqBatch batch = null;
+				while((batch = parser.read(batchSize)) != null) {
+					assertEquals(Math.min(batchSize, RECORDS - index), batch.size);
+					assertRecords(records, index, batch);
+					index += batch.size;
+				}
+				assertEquals(RECORDS, index);
+			}
+		}
+	}
+
+	public void testTruncatedRecord () throws IOException {
+		try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file1))) {
+			output.write("@read1\nACGT\n+\nIIII\n@read2\nACGT\n".getBytes(StandardCharsets.ISO_8859_1));
+		}
+		try (FastqParser parser = new FastqParser(file1, 0)) {
+			parser.read(10);
+			fail("a truncated record is read without an error");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void assertRecords (ArrayList<String[]> records, int index, FastqBatch batch) {
+		for(int i=0; i<batch.size; i++) {
+			String[] record = records.get(index + i);
+			assertEquals(record[0], batch.getReadName(i));
+			assertEquals(record[1], batch.getReadString(i));
+			assertEquals(record[2], new String(batch.data, batch.qualityStarts[i], batch.baseLengths[i], StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	private static void writeFastq (File file, ArrayList<String[]> records, String lineEnd, boolean hasBlankLines) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(String[] record : records) {
+			text.append('@').append(record[0]).append(lineEnd)
+			.append(record[1]).append(lineEnd)
+			.append('+').append(lineEnd)
+			.append(record[2]).append(lineEnd);
+			if(hasBlankLines) {
+				text.append(lineEnd);
+			}
+		}
+		if(hasBlankLines) {
+			// the last line without a line end
+			text.setLength(text.length() - 2 * lineEnd.length());
+		}
+		try (OutputStream output = new GZIPOutputStream(new FileOutputStream(file))) {
+			output.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	// name, bases and qualities with random lengths
+	private static ArrayList<String[]> newRecords (int size, int nameLength, int maxReadLength, Random random) {
+		ArrayList<String[]> records = new ArrayList<String[]>();
+		String bases = "ACGTN";
+		for(int i=0; i<size; i++) {
+			StringBuilder name = new StringBuilder("read"+i+":");
+			for(int j=0; j<nameLength; j++) {
+				name.append((char) ('a' + random.nextInt(26)));
+			}
+			int readLength = 1 + random.nextInt(maxReadLength);
+			StringBuilder read = new StringBuilder();
+			StringBuilder quality = new StringBuilder();
+			for(int j=0; j<readLength; j++) {
+				read.append(bases.charAt(random.nextInt(bases.length())));
+				quality.append((char) ('!' + random.nextInt(41)));
+			}
+			records.add(new String[] {name.toString(), read.toString(), quality.toString()});
+		}
+		return records;
+	}
+}
@@ -0,0 +1,141 @@
+package progistar.scan.function;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * ParallelGzipInputStream must give the same bytes as gzip for BGZF, multi-member and single-member files,
+ * and fail on a corrupt member.
+ *
+ */
+public class ParallelGzipInputStreamTest extends TestCase {
+
+	private static final int[] THREADS = {1, 2, 4};
+
+	private File file;
+
+	@Override
+	protected void setUp () throws IOException {
+		file = File.createTempFile("parallel", ".gz");
+	}
+
+	@Override
+	protected void tearDown () {
+		file.delete();
+	}
+
+	public void testBGZF () throws IOException {
+		byte[] text = newText(6 << 20, new Random(1));
+		try (OutputStream output = new BlockCompressedOutputStream(file)) {
+			output.write(text);
+		}
+		for(int threadNum : THREADS) {
+			assertTrue(Arrays.equals(text, readAll(ParallelGzipInputStream.open(file, threadNum))));
+		}
+	}
+
+	public void testBGZFStream () throws IOException {
+		byte[] text = newText(3 << 20, new Random(2));
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream output = new BlockCompressedOutputStream(compressed, (File) null)) {
+			output.write(text);
+		}
+		for(int threadNum : THREADS) {
+			InputStream input = ParallelGzipInputStream.openBGZF(new ByteArrayInputStream(compressed.toByteArray()), threadNum);
+			assertTrue(Arrays.equals(text, readAll(input)));
+		}
+	}
+
+	public void testMultiMember () throws IOException {
+		byte[] text = newText(8 << 20, new Random(3));
+		writeMembers(file, text, 100000, null);
+		for(int threadNum : THREADS) {
+			assertTrue(Arrays.equals(text, readAll(ParallelGzipInputStream.open(file, threadNum))));
+		}
+	}
+
+	public void testSingleMember () throws IOException {
+		// larger than a segment output, so the member is streamed
+		byte[] text = newText(12 << 20, new Random(4));
+		writeMembers(file, text, text.length, null);
+		for(int threadNum : THREADS) {
+			assertTrue(Arrays.equals(text, readAll(ParallelGzipInputStream.open(file, threadNum))));
+		}
+	}
+
+	public void testTrailingBytes () throws IOException {
+		byte[] text = newText(2 << 20, new Random(5));
+		writeMembers(file, text, 100000, new byte[1000]);
+		for(int threadNum : THREADS) {
+			assertTrue(Arrays.equals(text, readAll(ParallelGzipInputStream.open(file, threadNum))));
+		}
+	}
+
+	public void testCorruptMember () throws IOException {
+		byte[] text = newText(4 << 20, new Random(6));
+		writeMembers(file, text, 100000, null);
+		// damage the deflate data in the middle of the file
+		byte[] compressed = java.nio.file.Files.readAllBytes(file.toPath());
+		for(int i=compressed.length / 2; i<compressed.length / 2 + 64; i++) {
+			compressed[i] ^= 0x5A;
+		}
+		try (OutputStream output = new FileOutputStream(file)) {
+			output.write(compressed);
+		}
+		for(int threadNum : THREADS) {
+			try {
+				readAll(ParallelGzipInputStream.open(file, threadNum));
+				fail("a corrupt member is read without an error: "+threadNum+" threads");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	private static byte[] readAll (InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (InputStream in = input) {
+			byte[] buffer = new byte[1 << 16];
+			int size = 0;
+			while((size = in.read(buffer)) != -1) {
+				output.write(buffer, 0, size);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	// gzip members of a given size, followed by trailing bytes
+	private static void writeMembers (File file, byte[] text, int memberSize, byte[] trailingBytes) throws IOException {
+		try (OutputStream output = new FileOutputStream(file)) {
+			for(int start=0; start<text.length; start+=memberSize) {
+				GZIPOutputStream member = new GZIPOutputStream(output);
+				member.write(text, start, Math.min(memberSize, text.length - start));
+				member.finish();
+			}
+			if(trailingBytes != null) {
+				output.write(trailingBytes);
+			}
+		}
+	}
+
+	// FASTQ-like lines
+	private static byte[] newText (int size, Random random) {
+		byte[] text = new byte[size];
+		byte[] bases = {'A', 'C', 'G', 'T'};
+		for(int i=0; i<size; i++) {
+			text[i] = i % 101 == 100 ? (byte) '\n' : bases[random.nextInt(bases.length)];
+		}
+		return text;
+	}
+}
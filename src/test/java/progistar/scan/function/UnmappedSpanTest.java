@@ -0,0 +1,145 @@
+package progistar.scan.function;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import junit.framework.TestCase;
+
+/**
+ * The slices of UnmappedSpan.split must partition the unmapped reads of queryUnmapped in order.
+ *
+ */
+public class UnmappedSpanTest extends TestCase {
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T', 'N'};
+
+	private File bamFile;
+
+	@Override
+	protected void setUp () throws IOException {
+		bamFile = File.createTempFile("unmapped", ".bam");
+		writeBAM(bamFile, 2000, 30000, new Random(7));
+	}
+
+	@Override
+	protected void tearDown () {
+		bamFile.delete();
+		new File(bamFile.getPath().replaceAll("\\.bam$", ".bai")).delete();
+	}
+
+	public void testSlicesPartitionUnmappedReads () throws IOException {
+		try (SamReader samReader = SamReaderFactory.makeDefault().open(bamFile)) {
+			assertTrue(samReader.hasIndex());
+			ArrayList<String> expected = new ArrayList<String>();
+			try (SAMRecordIterator iterator = samReader.queryUnmapped()) {
+				while(iterator.hasNext()) {
+					expected.add(iterator.next().getReadName());
+				}
+			}
+			long startOffset = getUnmappedStart(samReader);
+
+			for(int sliceNum : new int[] {1, 2, 3, 8, 32}) {
+				long[] boundaries = UnmappedSpan.split(bamFile, startOffset, sliceNum);
+				assertTrue(boundaries.length >= 2 && boundaries.length <= sliceNum+1);
+				if(sliceNum > 1) {
+					assertTrue("no split point in "+sliceNum+" slices", boundaries.length > 2);
+				}
+
+				ArrayList<String> actual = new ArrayList<String>();
+				for(int i=0; i<boundaries.length-1; i++) {
+					assertTrue(boundaries[i] < boundaries[i+1]);
+					// the same filter as unmapped file span tasks (see Mode.find)
+					try (CloseableIterator<SAMRecord> iterator = samReader.indexing().iterator(new BAMFileSpan(new Chunk(boundaries[i], boundaries[i+1])))) {
+						while(iterator.hasNext()) {
+							SAMRecord samRecord = iterator.next();
+							if(samRecord.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+								actual.add(samRecord.getReadName());
+							}
+						}
+					}
+				}
+				assertEquals("slices: "+sliceNum, expected, actual);
+			}
+		}
+	}
+
+	// the end of the last mapped read (see Task.getUnmappedTasks)
+	private static long getUnmappedStart (SamReader samReader) {
+		AbstractBAMFileIndex index = (AbstractBAMFileIndex) samReader.indexing().getIndex();
+		long startOffset = -1;
+		List<SAMSequenceRecord> chromosomes = samReader.getFileHeader().getSequenceDictionary().getSequences();
+		for(int i=0; i<chromosomes.size(); i++) {
+			BAMFileSpan span = index.getSpanOverlapping(i, 1, chromosomes.get(i).getSequenceLength());
+			if(span == null || span.isEmpty()) {
+				continue;
+			}
+			for(Chunk chunk : span.getChunks()) {
+				startOffset = Math.max(startOffset, chunk.getChunkEnd());
+			}
+		}
+		return startOffset;
+	}
+
+	/**
+	 * A coordinate-sorted and indexed BAM file with mapped reads, placed unmapped mates
+	 * and an unmapped tail of random reads.
+	 */
+	private static void writeBAM (File file, int mappedNum, int unmappedNum, Random random) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, file);
+		for(int i=0; i<mappedNum; i++) {
+			SAMRecord samRecord = newRecord(header, "mapped"+i, random);
+			samRecord.setReferenceName(i < mappedNum / 2 ? "chr1" : "chr2");
+			samRecord.setAlignmentStart(1 + random.nextInt(900000));
+			if(i % 10 == 0) {
+				// an unmapped mate placed at the position of its mate
+				samRecord.setReadUnmappedFlag(true);
+			} else {
+				samRecord.setCigarString(samRecord.getReadLength()+"M");
+				samRecord.setMappingQuality(60);
+			}
+			writer.addAlignment(samRecord);
+		}
+		for(int i=0; i<unmappedNum; i++) {
+			SAMRecord samRecord = newRecord(header, "unmapped"+i, random);
+			samRecord.setReadUnmappedFlag(true);
+			writer.addAlignment(samRecord);
+		}
+		writer.close();
+	}
+
+	private static SAMRecord newRecord (SAMFileHeader header, String readName, Random random) {
+		SAMRecord samRecord = new SAMRecord(header);
+		samRecord.setReadName(readName);
+		int length = 50 + random.nextInt(101);
+		byte[] bases = new byte[length];
+		byte[] qualities = new byte[length];
+		for(int i=0; i<length; i++) {
+			bases[i] = (byte) BASES[random.nextInt(BASES.length)];
+			qualities[i] = (byte) random.nextInt(42);
+		}
+		samRecord.setReadBases(bases);
+		samRecord.setBaseQualities(qualities);
+		samRecord.setAttribute("NM", random.nextInt(5));
+		return samRecord;
+	}
+}